@@ -0,0 +1,84 @@
+package algo;
+
+import ru.ifmo.genetics.dna.LightDna;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Extracts canonical k-mers of a sequence by rolling 2-bit forward and reverse-complement codes,
+ * without creating any objects per k-mer.<br></br>
+ * Codes are the same as in ShortKmer (A = 0, G = 1, C = 2, T = 3), canonical k-mer is min(fw, rc),
+ * so the values are equal to ShortKmer.toLong() of the k-mers, returned by ShortKmer.kmersOf.
+ */
+public class RollingKmers {
+
+    /**
+     * 2-bit code of an ASCII nucleotide, or -1 for N and any other character.
+     */
+    private static final byte[] CODES = new byte[256];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        CODES['A'] = CODES['a'] = 0;
+        CODES['G'] = CODES['g'] = 1;
+        CODES['C'] = CODES['c'] = 2;
+        CODES['T'] = CODES['t'] = 3;
+    }
+
+    /**
+     * @return 2-bit code of an ASCII nucleotide, or -1 for N and any other character
+     */
+    public static int code(byte nuc) {
+        return CODES[nuc & 0xFF];
+    }
+
+    private static long mask(int k) {
+        if (k < 1 || k > 32) {
+            throw new IllegalArgumentException("k must be in [1, 32], got " + k);
+        }
+        return (k == 32) ? -1L : (1L << (2 * k)) - 1;
+    }
+
+
+    /**
+     * Passes all canonical k-mers of dna to consumer, in order of their positions.
+     */
+    public static void forEachKmer(LightDna dna, int k, LongConsumer consumer) {
+        long mask = mask(k);
+        int rcShift = 2 * (k - 1);
+        long fw = 0, rc = 0;
+        int len = dna.length();
+        for (int i = 0; i < len; i++) {
+            long nuc = dna.nucAt(i);
+            fw = ((fw << 2) | nuc) & mask;
+            rc = (rc >>> 2) | ((3 - nuc) << rcShift);
+            if (i >= k - 1) {
+                consumer.accept(Math.min(fw, rc));
+            }
+        }
+    }
+
+    /**
+     * Passes all canonical k-mers of ASCII sequence seq[from, to) to consumer, in order of their positions.
+     * N (or any other non-ACGT character) breaks the sequence, k-mers containing it are skipped.
+     */
+    public static void forEachKmer(byte[] seq, int from, int to, int k, LongConsumer consumer) {
+        long mask = mask(k);
+        int rcShift = 2 * (k - 1);
+        long fw = 0, rc = 0;
+        int valid = 0;  // number of correct nucleotides at the end of the current k-mer
+        for (int i = from; i < to; i++) {
+            int code = CODES[seq[i] & 0xFF];
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            fw = ((fw << 2) | code) & mask;
+            rc = (rc >>> 2) | ((long) (3 - code) << rcShift);
+            if (++valid >= k) {
+                consumer.accept(Math.min(fw, rc));
+            }
+        }
+    }
+}
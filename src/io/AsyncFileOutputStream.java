@@ -0,0 +1,171 @@
+package io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File output stream, that writes data on its own I/O thread.<br></br>
+ * Data is collected into one of several direct buffers, filled buffer is passed to the I/O thread
+ * (which writes it by FileChannel) and the next free buffer is taken, so computation overlaps disk writes.
+ * Usually wrapped in DataOutputStream. Not thread-safe, as any buffered stream.
+ */
+public class AsyncFileOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 23;  // 8 Mb
+    public static final int DEFAULT_BUFFERS = 2;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free, filled;
+    private final Thread ioThread;
+
+    private ByteBuffer current;
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+
+    public AsyncFileOutputStream(File file) throws IOException {
+        this(file, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsyncFileOutputStream(File file, int buffers, int bufferSize) throws IOException {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers are needed, got " + buffers);
+        }
+        this.file = file;
+        out = new FileOutputStream(file);
+        channel = out.getChannel();
+
+        free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        filled = new ArrayBlockingQueue<ByteBuffer>(buffers + 1);
+        for (int i = 1; i < buffers; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        current = ByteBuffer.allocateDirect(bufferSize);
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "async-writer-" + threadNumber.incrementAndGet());
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) {
+                    break;
+                }
+                if (error == null) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException e) {
+                        error = e;  // reported to the writing thread, buffers are still returned
+                    }
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Writer of " + file + " was interrupted");
+        }
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!current.hasRemaining()) {
+            submit();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!current.hasRemaining()) {
+                submit();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Passes current buffer to the I/O thread and takes the next free one.
+     */
+    private void submit() throws IOException {
+        checkError();
+        if (closed) {
+            throw new IOException("Stream to " + file + " is closed");
+        }
+        current.flip();
+        try {
+            filled.put(current);
+            current = free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing to " + file);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Can't write to " + file + ": " + error.getMessage(), error);
+        }
+    }
+
+    /**
+     * Passes buffered data to the I/O thread without waiting for it to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.position() > 0) {
+            submit();
+        }
+    }
+
+    /**
+     * Writes all buffered data, stops the I/O thread and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            try {
+                filled.put(END);
+                ioThread.join();
+            } catch (InterruptedException e) {
+                ioThread.interrupt();
+                error = new InterruptedIOException("Interrupted while closing " + file);
+            } finally {
+                out.close();
+            }
+        }
+        checkError();
+    }
+}
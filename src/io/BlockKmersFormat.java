@@ -0,0 +1,252 @@
+package io;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Version 2 of .kmers.bin format: self-describing, sorted by key and block-compressed.<br></br>
+ * <br></br>
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   long   MAGIC ("MFKMERS2")
+ *   int    version
+ *   int    k (0, if unknown)
+ *   int    value width in bytes (2 for short values, 8 for long values)
+ *   long   records count
+ *   long   min key, max key
+ *   int    blocks count
+ *   blocks index, for every block:
+ *       long firstKey, int records, long offset (from file start), int compressed length, int raw length
+ *   blocks data
+ * </pre>
+ *
+ * Every block is compressed independently by Deflater, so blocks can be decoded in parallel.
+ * Raw block is a sequence of (varint key delta from the previous key (or from firstKey), varint value) pairs.<br></br>
+ * <br></br>
+ *
+ * Version 1 is a headerless stream of (long key, short value) records.
+ * It can't start with MAGIC, because k-mers with k <= 31 are less than 2^62 and MAGIC is greater.
+ */
+public class BlockKmersFormat {
+
+    public static final long MAGIC = 0x4D464B4D45525332L;    // "MFKMERS2"
+    public static final int VERSION = 2;
+
+    public static final int BLOCK_RECORDS = 1 << 18;    // 256 K records per block
+    static final int HEADER_SIZE = 8 + 4 + 4 + 4 + 8 + 8 + 8 + 4;
+    static final int INDEX_ENTRY_SIZE = 8 + 4 + 8 + 4 + 4;
+    static final int MAX_RAW_BLOCK_SIZE = BLOCK_RECORDS * (10 + 10);   // two varints per record
+
+
+    public static class Header {
+        public final int version;
+        public final int k;
+        public final int valueWidth;
+        public final long recordsCount;
+        public final long minKey, maxKey;
+
+        public final long[] blockFirstKey;
+        public final int[] blockRecords;
+        public final long[] blockOffset;
+        public final int[] blockCompressedLength;
+        public final int[] blockRawLength;
+
+        Header(int version, int k, int valueWidth, long recordsCount, long minKey, long maxKey, int blocksCount) {
+            this.version = version;
+            this.k = k;
+            this.valueWidth = valueWidth;
+            this.recordsCount = recordsCount;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            blockFirstKey = new long[blocksCount];
+            blockRecords = new int[blocksCount];
+            blockOffset = new long[blocksCount];
+            blockCompressedLength = new int[blocksCount];
+            blockRawLength = new int[blocksCount];
+        }
+
+        public int blocksCount() {
+            return blockFirstKey.length;
+        }
+
+        /**
+         * @return size of header and blocks index in bytes, i.e. the offset of the first block
+         */
+        public long size() {
+            return HEADER_SIZE + (long) blocksCount() * INDEX_ENTRY_SIZE;
+        }
+    }
+
+
+    /**
+     * @return true, if the file starts with version 2 MAGIC
+     */
+    public static boolean isBlockFormat(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static Header readHeader(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads header and blocks index, leaving the stream at the start of the first block.
+     */
+    public static Header readHeader(DataInput in) throws IOException {
+        if (in.readLong() != MAGIC) {
+            throw new IOException("Not a block k-mers file (bad magic number)");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported k-mers file version " + version);
+        }
+        int k = in.readInt();
+        int valueWidth = in.readInt();
+        long recordsCount = in.readLong();
+        long minKey = in.readLong();
+        long maxKey = in.readLong();
+        int blocksCount = in.readInt();
+
+        Header h = new Header(version, k, valueWidth, recordsCount, minKey, maxKey, blocksCount);
+        for (int i = 0; i < blocksCount; i++) {
+            h.blockFirstKey[i] = in.readLong();
+            h.blockRecords[i] = in.readInt();
+            h.blockOffset[i] = in.readLong();
+            h.blockCompressedLength[i] = in.readInt();
+            h.blockRawLength[i] = in.readInt();
+        }
+        return h;
+    }
+
+    static void writeHeader(Header h, ByteBuffer out) {
+        out.putLong(MAGIC);
+        out.putInt(h.version);
+        out.putInt(h.k);
+        out.putInt(h.valueWidth);
+        out.putLong(h.recordsCount);
+        out.putLong(h.minKey);
+        out.putLong(h.maxKey);
+        out.putInt(h.blocksCount());
+        for (int i = 0; i < h.blocksCount(); i++) {
+            out.putLong(h.blockFirstKey[i]);
+            out.putInt(h.blockRecords[i]);
+            out.putLong(h.blockOffset[i]);
+            out.putInt(h.blockCompressedLength[i]);
+            out.putInt(h.blockRawLength[i]);
+        }
+    }
+
+
+    static int writeVarLong(long v, byte[] buf, int pos) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+
+    /**
+     * Per-thread decoder of compressed blocks. Not thread-safe.
+     */
+    public static class BlockDecoder {
+        public final long[] keys = new long[BLOCK_RECORDS];
+        public final long[] values = new long[BLOCK_RECORDS];
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] raw = new byte[MAX_RAW_BLOCK_SIZE];
+        private byte[] compressed = new byte[0];
+
+        /**
+         * Decodes block from position to limit of given buffer into keys and values arrays.
+         *
+         * @return the number of records decoded
+         */
+        public int decode(Header h, int block, ByteBuffer data) {
+            int len = data.remaining();
+            byte[] in;
+            int inOffset;
+            if (data.hasArray()) {
+                in = data.array();
+                inOffset = data.arrayOffset() + data.position();
+            } else {
+                if (compressed.length < len) {
+                    compressed = new byte[len];
+                }
+                data.duplicate().get(compressed, 0, len);
+                in = compressed;
+                inOffset = 0;
+            }
+
+            int rawLength = h.blockRawLength[block];
+            inflater.reset();
+            inflater.setInput(in, inOffset, len);
+            try {
+                int r = 0;
+                while (r < rawLength) {
+                    int n = inflater.inflate(raw, r, rawLength - r);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    r += n;
+                }
+                if (r != rawLength) {
+                    throw new RuntimeException("Corrupted k-mers block " + block + ": " + r + " of " + rawLength + " bytes inflated");
+                }
+            } catch (DataFormatException e) {
+                throw new RuntimeException("Corrupted k-mers block " + block, e);
+            }
+
+            int n = h.blockRecords[block];
+            long key = h.blockFirstKey[block];
+            int pos = 0;
+            for (int i = 0; i < n; i++) {
+                long v = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = raw[pos++];
+                    v |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                key += v;
+                keys[i] = key;
+
+                v = 0;
+                shift = 0;
+                do {
+                    b = raw[pos++];
+                    v |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                values[i] = v;
+            }
+            if (pos != rawLength) {
+                throw new RuntimeException("Corrupted k-mers block " + block + ": bad raw length");
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package io;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Writer of k-mers files in version 2 format (see BlockKmersFormat).<br></br>
+ * The number of records and key range must be known in advance,
+ * records must be added in increasing order of keys.
+ */
+public class BlockKmersWriter {
+
+    static final int LOG_BUCKETS = 12;
+    static final int MAX_GROUP_RECORDS = 1 << 26;   // 64 M records (1 Gb for keys and values arrays)
+
+
+    /**
+     * Iteration over records of unsorted source (e.g. hash map). Every restart() begins a new pass.
+     */
+    public static abstract class RecordsCursor {
+        public long key, value;
+
+        public abstract void restart();
+        public abstract boolean next();
+    }
+
+    /**
+     * Writes records of unsorted source sorted by key.<br></br>
+     * Key range is split to buckets by the highest bits, consecutive buckets are grouped, so that
+     * every group fits in MAX_GROUP_RECORDS; one pass over the source is made for every group.
+     */
+    public static void writeSorted(RecordsCursor records, long recordsCount, long minKey, long maxKey,
+                                   File outFile, int k, int valueWidth) throws IOException {
+        int shift = 0;
+        long[] groupEnds;   // exclusive bucket ends of groups
+        if (recordsCount <= MAX_GROUP_RECORDS) {
+            groupEnds = null;
+        } else {
+            shift = Math.max(0, 64 - Long.numberOfLeadingZeros(maxKey - minKey) - LOG_BUCKETS);
+            long[] bucketSize = new long[(int) ((maxKey - minKey) >>> shift) + 1];
+            records.restart();
+            while (records.next()) {
+                bucketSize[(int) ((records.key - minKey) >>> shift)]++;
+            }
+            long[] ends = new long[bucketSize.length];
+            int groups = 0;
+            long cur = 0;
+            for (int b = 0; b < bucketSize.length; b++) {
+                if (cur > 0 && cur + bucketSize[b] > MAX_GROUP_RECORDS) {
+                    ends[groups++] = b;
+                    cur = 0;
+                }
+                cur += bucketSize[b];
+            }
+            ends[groups++] = bucketSize.length;
+            groupEnds = new long[groups];
+            System.arraycopy(ends, 0, groupEnds, 0, groups);
+        }
+
+        BlockKmersWriter writer = new BlockKmersWriter(outFile, k, valueWidth, recordsCount, minKey, maxKey);
+        try {
+            int groups = (groupEnds == null) ? 1 : groupEnds.length;
+            int size = (int) Math.max(1, Math.min(recordsCount, MAX_GROUP_RECORDS));
+            long[] keys = null, values = null;
+            long groupStart = 0;
+            for (int g = 0; g < groups; g++) {
+                long groupEnd = (groupEnds == null) ? Long.MAX_VALUE : groupEnds[g];
+                int n = 0;
+                records.restart();
+                while (records.next()) {
+                    long b = (records.key - minKey) >>> shift;
+                    if (groupEnds == null || (b >= groupStart && b < groupEnd)) {
+                        if (keys == null || n == keys.length) {
+                            int newSize = (keys == null) ? size : (int) Math.min(Integer.MAX_VALUE - 8, 2L * keys.length);
+                            keys = grow(keys, newSize);
+                            values = grow(values, newSize);
+                        }
+                        keys[n] = records.key;
+                        values[n] = records.value;
+                        n++;
+                    }
+                }
+                if (n > 0) {
+                    LongArrays.radixSort(keys, values, 0, n);
+                }
+                for (int i = 0; i < n; i++) {
+                    writer.add(keys[i], values[i]);
+                }
+                groupStart = groupEnd;
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long[] grow(long[] a, int size) {
+        long[] b = new long[size];
+        if (a != null) {
+            System.arraycopy(a, 0, b, 0, a.length);
+        }
+        return b;
+    }
+
+
+    final BlockKmersFormat.Header h;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+
+    final Deflater deflater = new Deflater();
+    final byte[] raw = new byte[BlockKmersFormat.MAX_RAW_BLOCK_SIZE];
+    byte[] compressed = new byte[BlockKmersFormat.MAX_RAW_BLOCK_SIZE + (BlockKmersFormat.MAX_RAW_BLOCK_SIZE >> 4) + 64];
+
+    int block = 0, blockRecords = 0, rawPos = 0;
+    long prevKey;
+    long written = 0;
+    long position;
+
+    public BlockKmersWriter(File outFile, int k, int valueWidth, long recordsCount, long minKey, long maxKey)
+            throws IOException {
+        int blocksCount = (int) ((recordsCount + BlockKmersFormat.BLOCK_RECORDS - 1) / BlockKmersFormat.BLOCK_RECORDS);
+        h = new BlockKmersFormat.Header(BlockKmersFormat.VERSION, k, valueWidth, recordsCount, minKey, maxKey, blocksCount);
+
+        raf = new RandomAccessFile(outFile, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        position = h.size();    // header is written on close
+    }
+
+    public void add(long key, long value) throws IOException {
+        if (written == h.recordsCount) {
+            throw new IllegalStateException("More records than declared " + h.recordsCount);
+        }
+        if (blockRecords == 0) {
+            h.blockFirstKey[block] = key;
+            prevKey = key;
+        } else if (key <= prevKey) {
+            throw new IllegalArgumentException("Keys must be added in increasing order");
+        }
+        rawPos = BlockKmersFormat.writeVarLong(key - prevKey, raw, rawPos);
+        rawPos = BlockKmersFormat.writeVarLong(h.valueWidth == 2 ? (value & 0xFFFF) : value, raw, rawPos);
+        prevKey = key;
+        blockRecords++;
+        written++;
+
+        if (blockRecords == BlockKmersFormat.BLOCK_RECORDS) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(raw, 0, rawPos);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == compressed.length) {
+                byte[] newCompressed = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, newCompressed, 0, len);
+                compressed = newCompressed;
+            }
+            len += deflater.deflate(compressed, len, compressed.length - len);
+        }
+
+        h.blockRecords[block] = blockRecords;
+        h.blockOffset[block] = position;
+        h.blockCompressedLength[block] = len;
+        h.blockRawLength[block] = rawPos;
+        writeFully(ByteBuffer.wrap(compressed, 0, len), position);
+        position += len;
+
+        block++;
+        blockRecords = 0;
+        rawPos = 0;
+    }
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            if (blockRecords > 0) {
+                flushBlock();
+            }
+            if (written != h.recordsCount) {
+                throw new IllegalStateException("Written " + written + " records instead of declared " + h.recordsCount);
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) h.size());
+            BlockKmersFormat.writeHeader(h, header);
+            header.flip();
+            writeFully(header, 0);
+        } finally {
+            deflater.end();
+            channel.close();
+            raf.close();
+        }
+    }
+}
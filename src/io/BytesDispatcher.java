@@ -1,32 +1,49 @@
 package io;
 
 import org.apache.log4j.Logger;
-import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
-import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
-import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.tool.Tool;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * Hands out work ranges of all files one after another, so workers never wait for the file switch:
+ * while the last ranges of one file are processed, the next file is already being read.<br></br>
+ * Files in block format (see BlockKmersFormat) are dispatched block by block.
+ */
 public class BytesDispatcher {
-    final Logger logger = Logger.getLogger("bytes-dispatcher");
+    final Logger logger;
 
-    final InputStream is;
+    final File[] files;
     public final int workRangeSize;
+    final boolean mapped;
+
+    int fileIndex = -1;
+    InputStream is = null;
+    MappedBytesDispatcher mappedDispatcher = null;
+    BlockKmersFormat.Header header = null;    // not null, if the current file is in block format
+    RandomAccessFile blockFile = null;       // for mapping blocks
+    int block = 0;
+    long fileBytesRead = 0;
     long bytesRead = 0;
 
     final BigLong2ShortHashMap hm; // for debug output
 
-    public BytesDispatcher(InputStream is, int workRangeSize, BigLong2ShortHashMap hmForMonitoring) {
-        this.is = is;
+    public BytesDispatcher(File[] files, int workRangeSize, boolean mapped,
+                           BigLong2ShortHashMap hmForMonitoring, Logger logger) {
+        this.files = files;
         this.workRangeSize = workRangeSize;
-//        Tool.debug(logger, "Using " + workRangeSize + " bytes as workRangeSize");
+        this.mapped = mapped;
+        this.logger = logger;
         hm = hmForMonitoring;
     }
 
@@ -36,34 +53,104 @@ public class BytesDispatcher {
         return new byte[workRangeSize];
     }
 
-    public synchronized int readWorkRange(byte[] range) {
+    /**
+     * @param buffer worker's own array, used only if files are read through streams
+     * @return next work range, or null, if all files have been processed
+     */
+    public synchronized BytesWorkRange getWorkRange(byte[] buffer) {
         try {
-            int read = 0;
-            while (read < range.length) {
-                int r = is.read(range, read, range.length - read);
-                if (r == -1) {
-                    break;
+            while (true) {
+                if (fileIndex >= files.length) {
+                    return null;
+                }
+                if (fileIndex >= 0) {
+                    if (header != null) {
+                        if (block < header.blocksCount()) {
+                            ByteBuffer range = mapped ? mapBlock(block) : readBlock(block, buffer);
+                            fileBytesRead += range.remaining();
+                            bytesRead += range.remaining();
+                            return new BytesWorkRange(fileIndex, range, header, block++);
+                        }
+                    } else {
+                        ByteBuffer range = mapped ? mappedDispatcher.getWorkRange() : readWorkRange(buffer);
+                        if (range != null) {
+                            fileBytesRead += range.remaining();
+                            bytesRead += range.remaining();
+                            return new BytesWorkRange(fileIndex, range);
+                        }
+                    }
+                    closeFile();
                 }
-                read += r;
+                openNextFile();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't load k-mers file", e);
+        }
+    }
+
+    private ByteBuffer readWorkRange(byte[] range) throws IOException {
+        int read = 0;
+        while (read < range.length) {
+            int r = is.read(range, read, range.length - read);
+            if (r == -1) {
+                break;
             }
+            read += r;
+        }
+        return read == 0 ? null : ByteBuffer.wrap(range, 0, read);
+    }
+
+    private ByteBuffer mapBlock(int block) throws IOException {
+        return blockFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                header.blockOffset[block], header.blockCompressedLength[block]);
+    }
 
-            bytesRead += read;
-            /*
-            if ((bytesRead & ((1 << 29) - 1)) == 0) { // 512 Mb
-                Tool.debug(logger, "Processed " + (bytesRead >> 20) + " Mb of data:");
-                if (hm != null) {
-                    Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
-                            "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[1].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[2].size()) + ", "
-                            + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+    private ByteBuffer readBlock(int block, byte[] range) throws IOException {
+        int len = header.blockCompressedLength[block];
+        if (len > range.length) {
+            throw new IOException("Too big block " + block + " (" + len + " bytes)");
+        }
+        new DataInputStream(is).readFully(range, 0, len);
+        return ByteBuffer.wrap(range, 0, len);
+    }
+
+    private void openNextFile() throws IOException {
+        fileIndex++;
+        if (fileIndex < files.length) {
+            File file = files[fileIndex];
+            Tool.info(logger, "Loading file " + file.getName() + "...");
+            header = null;
+            if (BlockKmersFormat.isBlockFormat(file)) {
+                if (mapped) {
+                    header = BlockKmersFormat.readHeader(file);
+                    blockFile = new RandomAccessFile(file, "r");
+                } else {
+                    is = new BufferedInputStream(new FileInputStream(file), 1 << 20);
+                    header = BlockKmersFormat.readHeader(new DataInputStream(is));
                 }
-                Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+                block = 0;
+            } else if (mapped) {
+                mappedDispatcher = new MappedBytesDispatcher(file, workRangeSize);
+            } else {
+                is = new FileInputStream(file);
             }
-            */
-            return read;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            fileBytesRead = 0;
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (blockFile != null) {
+            blockFile.close();
+            blockFile = null;
+        }
+        if (mappedDispatcher != null) {
+            mappedDispatcher.close();
+            mappedDispatcher = null;
+        }
+        if (is != null) {
+            is.close();
+            is = null;
         }
+        Tool.debug(logger, NumUtils.memoryAsString(fileBytesRead) + " of data read from " + files[fileIndex].getName());
     }
 }
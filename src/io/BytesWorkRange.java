@@ -0,0 +1,27 @@
+package io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Part of a file to be processed by a worker together with the index of the file in the loading list.<br></br>
+ * For files in block format (see BlockKmersFormat) the range is a single compressed block,
+ * header and block are set; for plain files header is null.
+ */
+public class BytesWorkRange {
+    public final int fileIndex;
+    public final ByteBuffer data;
+
+    public final BlockKmersFormat.Header header;
+    public final int block;
+
+    public BytesWorkRange(int fileIndex, ByteBuffer data) {
+        this(fileIndex, data, null, -1);
+    }
+
+    public BytesWorkRange(int fileIndex, ByteBuffer data, BlockKmersFormat.Header header, int block) {
+        this.fileIndex = fileIndex;
+        this.data = data;
+        this.header = header;
+        this.block = block;
+    }
+}
@@ -1,40 +1,47 @@
 package io;
 
-import java.util.concurrent.CountDownLatch;
-
 public abstract class BytesWorker implements Runnable {
 
     private BytesDispatcher dispatcher = null;
-    private CountDownLatch latch = null;
+    private byte[] range = null;     // reused between work ranges if files are read through streams
 
     boolean interrupted = false;
 
 
     void setDispatcher(BytesDispatcher dispatcher) {
         this.dispatcher = dispatcher;
-    }
-    void setLatch(CountDownLatch latch) {
-        this.latch = latch;
+        this.interrupted = false;
     }
 
 
 
-    public abstract void process(byte[] range, int len);
+    /**
+     * Processes work range data from its position to its limit. Byte order of the data is big-endian.
+     */
+    public abstract void process(BytesWorkRange range);
+
+    /**
+     * Is called after all work ranges of the dispatcher are processed, e.g. to write out buffered results.
+     */
+    public void flush() {
+    }
 
     @Override
     public void run() {
-        if (dispatcher == null || latch == null) {
+        if (dispatcher == null) {
             throw new RuntimeException("Not full initialization!");
         }
+        if (!dispatcher.mapped && (range == null || range.length != dispatcher.workRangeSize)) {
+            range = dispatcher.getNewEmptyWorkRange();
+        }
         while (!interrupted) {
-            byte[] range = dispatcher.getNewEmptyWorkRange();
-            int r = dispatcher.readWorkRange(range);
-            if (r <= 0) {
+            BytesWorkRange workRange = dispatcher.getWorkRange(range);
+            if (workRange == null) {
                 break;
             }
-            process(range, r);
+            process(workRange);
         }
-        latch.countDown();
+        flush();
     }
 
     public void interrupt() {
@@ -0,0 +1,364 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.pairs.ImmutablePair;
+import ru.ifmo.genetics.utils.pairs.Pair;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+import structures.ConcurrentBloomFilter;
+import structures.HyperLogLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Out-of-core k-mers counting for samples, whose k-mers don't fit in memory.<br></br>
+ * The first pass splits reads into super-k-mers (runs of consecutive k-mers with the same minimizer bin)
+ * and spills them to temporary bin files. Minimizers are taken over canonical m-mers, so a k-mer and its
+ * reverse complement always get to the same bin. The second pass counts bins one by one in a hash map
+ * and appends good k-mers to the output file, so memory is bounded by the largest bin, not by the whole sample.
+ */
+public class DiskKmersCounter {
+
+    static final int MAX_BINS = 512;
+    static final int BLOCK_SIZE = SuperKmersWorker.BLOCK_SIZE;      // bin files consist of self-contained blocks
+    static final int BYTES_PER_KMER = 18;           // in BigLong2ShortHashMap, with free cells
+
+
+    public static class Result {
+        public final long kmers, good;
+        public final long singletons;        // approximate number of skipped k-mers seen once, not in kmers
+        public final HyperLogLog sketch;     // of good k-mers
+
+        Result(long kmers, long good, long singletons, HyperLogLog sketch) {
+            this.kmers = kmers;
+            this.good = good;
+            this.singletons = singletons;
+            this.sketch = sketch;
+        }
+    }
+
+
+    /**
+     * Counts k-mers of reads using temporary files in tempDir and at most about memoryCap bytes for a map,
+     * k-mers with frequency greater than threshold are saved to outFile, frequency statistics - to stFile.
+     * If skipSingletons is set, every bin is counted in two stages, as in IOUtils.loadReadsWithoutSingletons.
+     */
+    public static Result countReads(File[] files, int k, int minSeqLen, int threshold, boolean skipSingletons,
+                                    long memoryCap, File tempDir, File outFile, File stFile,
+                                    IOUtils.KmersFileFormat format, int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        long expected = IOUtils.estimateReadsKmers(files, k, minSeqLen, logger);
+        int bins = binsCount(expected, memoryCap, logger);
+        Tool.info(logger, "Splitting k-mers to " + bins + " bins in " + tempDir.getPath() + "...");
+
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+        BinFiles binFiles = new BinFiles(tempDir, bins);
+        try {
+            try {
+                SpillWorker[] workers = new SpillWorker[availableProcessors];
+                for (int i = 0; i < workers.length; i++) {
+                    workers[i] = new SpillWorker(binFiles, k, minSeqLen);
+                }
+                IOUtils.run(files, workers, null, logger);
+                for (SpillWorker worker : workers) {
+                    worker.flushAll();
+                }
+            } finally {
+                binFiles.close();
+            }
+            Tool.debug(logger, NumUtils.memoryAsString(binFiles.totalBlocks() * BLOCK_SIZE) + " of super-k-mers spilled");
+
+            return countBins(binFiles, expected, k, threshold, skipSingletons, outFile, stFile, format,
+                    availableProcessors, logger);
+        } finally {
+            binFiles.delete();  // on failure too, bins take about as much as the input
+        }
+    }
+
+    static int binsCount(long expectedKmers, long memoryCap, Logger logger) {
+        long needed = expectedKmers * BYTES_PER_KMER * 2;  // margin for uneven bins
+        int bins = 1;
+        while (bins < MAX_BINS && (long) bins * memoryCap < needed) {
+            bins *= 2;
+        }
+        if ((long) bins * memoryCap < needed) {
+            Tool.warn(logger, "Expected " + NumUtils.groupDigits(expectedKmers) + " k-mers need more than " +
+                    MAX_BINS + " bins, every bin will take about " + NumUtils.memoryAsString(needed / bins) +
+                    " of memory, more than the cap of " + NumUtils.memoryAsString(memoryCap));
+        }
+        return bins;
+    }
+
+
+    private static Result countBins(BinFiles binFiles, long expected, int k, int threshold, boolean skipSingletons,
+                                    File outFile, File stFile, IOUtils.KmersFileFormat format,
+                                    int availableProcessors, Logger logger) throws IOException {
+        int bins = binFiles.files.length;
+        long[] stat = new long[1 << 16];
+        HyperLogLog sketch = new HyperLogLog();
+        long kmers = 0, good = 0, singletons = 0;
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+
+        boolean plain = (format == IOUtils.KmersFileFormat.PLAIN);
+        DataOutputStream out = plain ? new DataOutputStream(new AsyncFileOutputStream(outFile)) : null;
+        File[] sortedFiles = plain ? null : binFiles.sorted;
+        try {
+            for (int b = 0; b < bins; b++) {
+                long binExpected = binFiles.totalBlocks() == 0 ? 0 :
+                        (long) ((double) expected * binFiles.blocks[b] / binFiles.totalBlocks() * 1.2);
+                Pair<BigLong2ShortHashMap, Long> counted = countBin(binFiles, b, binExpected, k, skipSingletons,
+                        availableProcessors);
+                BigLong2ShortHashMap hm = counted.first();
+                singletons += counted.second();
+                binFiles.files[b].delete();
+
+                long binGood = 0;
+                long binMinKey = Long.MAX_VALUE, binMaxKey = Long.MIN_VALUE;
+                Iterator<MutableLongShortEntry> it = hm.entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    long key = entry.getKey();
+                    short value = entry.getValue();
+                    stat[value & 0xFFFF]++;
+                    if (value > threshold) {
+                        sketch.add(key);
+                        if (plain) {
+                            out.writeLong(key);
+                            out.writeShort(value);
+                        }
+                        binMinKey = Math.min(binMinKey, key);
+                        binMaxKey = Math.max(binMaxKey, key);
+                        binGood++;
+                    }
+                }
+                if (!plain) {
+                    sortedFiles[b] = new File(binFiles.dir, String.format("bin-%04d.sorted", b));
+                    BlockKmersWriter.writeSorted(IOUtils.goodKmers(hm, threshold), binGood,
+                            binMinKey, binMaxKey, sortedFiles[b], k, 2);
+                }
+                kmers += hm.size();
+                good += binGood;
+                minKey = Math.min(minKey, binMinKey);
+                maxKey = Math.max(maxKey, binMaxKey);
+                Tool.debug(logger, "Bin " + (b + 1) + "/" + bins + ": " + NumUtils.groupDigits(hm.size()) + " k-mers");
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        if (!plain) {
+            mergeSorted(sortedFiles, good, minKey, maxKey, k, outFile);
+        }
+
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        for (int v = 0; v < stat.length; v++) {
+            if (stat[v] > 0) {
+                stats.set((short) v, stat[v]);
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        if (skipSingletons) {
+            Tool.debug(logger, "k-mers seen once (not counted) = " + NumUtils.groupDigits(singletons));
+        }
+        return new Result(kmers, good, singletons, sketch);
+    }
+
+    /**
+     * Counts k-mers of all super-k-mers of the bin, blocks of the bin file are processed in parallel.
+     * @return the map and the approximate number of k-mers seen once, that are not in the map (if skipped)
+     */
+    private static Pair<BigLong2ShortHashMap, Long> countBin(final BinFiles binFiles, final int bin, long expected,
+                                                             final int k, boolean skipSingletons,
+                                                             int availableProcessors) throws IOException {
+        ConcurrentBloomFilter filter = null;
+        if (skipSingletons) {
+            filter = new ConcurrentBloomFilter(expected);
+            expected /= 2;  // usually most of k-mers are seen once, small maps grow if needed
+        }
+        IOUtils.MapSizePlan plan = IOUtils.planMapSize(expected, availableProcessors);
+        final BigLong2ShortHashMap hm = new BigLong2ShortHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, true);
+
+        final int threads = availableProcessors;
+        final ByteBuffer[] blocks = new ByteBuffer[threads];
+        final byte[][] sequences = new byte[threads][SuperKmersWorker.MAX_SUPER_KMER_LENGTH];
+        final ShardedIncrements[] increments = new ShardedIncrements[threads];
+        final LongConsumer[] counters = new LongConsumer[threads];
+        for (int i = 0; i < threads; i++) {
+            if (filter == null) {
+                counters[i] = new LongConsumer() {
+                    @Override
+                    public void accept(long kmer) {
+                        hm.addAndBound(kmer, (short) 1);
+                    }
+                };
+            } else {
+                final ShardedIncrements threadIncrements = new ShardedIncrements(hm, null, filter);
+                increments[i] = threadIncrements;
+                counters[i] = new LongConsumer() {
+                    @Override
+                    public void accept(long kmer) {
+                        threadIncrements.add(kmer, (short) 1);
+                    }
+                };
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(binFiles.files[bin], "r")) {
+            final FileChannel channel = raf.getChannel();
+            ParallelKmersPrinter.runThreads(threads, new ParallelKmersPrinter.ShardRunnable((int) binFiles.blocks[bin]) {
+                @Override
+                void process(int thread, int block) throws IOException {
+                    if (blocks[thread] == null) {
+                        blocks[thread] = ByteBuffer.allocate(BLOCK_SIZE);
+                    }
+                    ByteBuffer buffer = blocks[thread];
+                    buffer.clear();
+                    long position = (long) block * BLOCK_SIZE;
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of bin file " + binFiles.files[bin]);
+                        }
+                    }
+
+                    SuperKmersWorker.forEachKmer(buffer.array(), k, sequences[thread], counters[thread]);
+                }
+            });
+        }
+
+        long singletons = 0;
+        if (filter != null) {
+            long distinct = 0;
+            for (ShardedIncrements threadIncrements : increments) {
+                threadIncrements.flush();
+                distinct += threadIncrements.firstSightings;
+            }
+            singletons = Math.max(0, distinct - hm.size());
+        }
+        return new ImmutablePair<>(hm, singletons);
+    }
+
+    private static void mergeSorted(File[] sortedFiles, long good, long minKey, long maxKey, int k, File outFile)
+            throws IOException {
+        SortedKmersMerger merger = new SortedKmersMerger(sortedFiles);
+        BlockKmersWriter writer = new BlockKmersWriter(outFile, k, 2, good, minKey, maxKey);
+        try {
+            while (merger.next()) {
+                writer.add(merger.key, merger.values[merger.present[0]]);
+            }
+        } finally {
+            writer.close();
+            merger.close();
+        }
+        for (File file : sortedFiles) {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Temporary files of all bins, workers append whole blocks to them.
+     * Sorted k-mers of bins (for BLOCK output format) are kept in temporary files too.
+     */
+    static class BinFiles {
+        final File dir;
+        final File[] files;
+        final File[] sorted;
+        final RandomAccessFile[] rafs;
+        final long[] blocks;
+
+        BinFiles(File dir, int bins) throws IOException {
+            this.dir = dir;
+            files = new File[bins];
+            sorted = new File[bins];
+            rafs = new RandomAccessFile[bins];
+            blocks = new long[bins];
+            try {
+                for (int i = 0; i < bins; i++) {
+                    files[i] = new File(dir, String.format("bin-%04d.tmp", i));
+                    rafs[i] = new RandomAccessFile(files[i], "rw");
+                    rafs[i].setLength(0);
+                }
+            } catch (IOException e) {
+                close();
+                delete();
+                throw e;
+            }
+        }
+
+        void append(int bin, byte[] block) throws IOException {
+            RandomAccessFile raf = rafs[bin];
+            synchronized (raf) {
+                raf.write(block);
+                blocks[bin]++;
+            }
+        }
+
+        long totalBlocks() {
+            long s = 0;
+            for (long b : blocks) {
+                s += b;
+            }
+            return s;
+        }
+
+        void close() throws IOException {
+            for (RandomAccessFile raf : rafs) {
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+
+        /**
+         * Deletes all remaining temporary files, and the directory, if it's empty then.
+         */
+        void delete() {
+            for (File[] fs : new File[][]{files, sorted}) {
+                for (File file : fs) {
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+            }
+            dir.delete();
+        }
+    }
+
+
+    /**
+     * Writes blocks of super-k-mers to the bin files.
+     */
+    static class SpillWorker extends SuperKmersWorker {
+        final BinFiles binFiles;
+
+        SpillWorker(BinFiles binFiles, int k, int minDnaLen) {
+            super(binFiles.files.length, k, minDnaLen);
+            this.binFiles = binFiles;
+        }
+
+        @Override
+        byte[] blockFilled(int bin, byte[] block) {
+            try {
+                binFiles.append(bin, block);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't write to bin file " + binFiles.files[bin], e);
+            }
+            return block;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io;
+
+import ru.ifmo.genetics.utils.NumUtils;
+
+/**
+ * Histogram of k-mer frequencies in a map, maintained while the map is being filled.<br></br>
+ * Every loading thread updates its own histogram on each addAndBound call,
+ * histograms of all threads are merged after loading.
+ */
+public class FrequencyHistogram {
+
+    /**
+     * stat[v] - number of k-mers with frequency v, the last cell counts all greater frequencies too.
+     */
+    final long[] stat;
+    long totalFrequency = 0;
+
+    public FrequencyHistogram(int length) {
+        stat = new long[length];
+    }
+
+    /**
+     * Registers addAndBound(key, incValue) call, that returned previous value prev (0 for a new k-mer).
+     */
+    void update(short prev, short incValue) {
+        short now = NumUtils.addAndBound(prev, incValue);
+        if (prev != 0) {
+            stat[cell(prev)]--;
+        }
+        stat[cell(now)]++;
+        totalFrequency += now - prev;
+    }
+
+    private int cell(int value) {
+        return (value >= stat.length) ? stat.length - 1 : value;
+    }
+
+    void add(FrequencyHistogram other) {
+        for (int i = 0; i < stat.length; i++) {
+            stat[i] += other.stat[i];
+        }
+        totalFrequency += other.totalFrequency;
+    }
+
+
+    public int length() {
+        return stat.length;
+    }
+
+    public long get(int frequency) {
+        return stat[cell(frequency)];
+    }
+
+    /**
+     * @return sum of frequencies of all k-mers
+     */
+    public long totalFrequency() {
+        return totalFrequency;
+    }
+
+    public int[] toIntArray() {
+        int[] a = new int[stat.length];
+        for (int i = 0; i < stat.length; i++) {
+            a[i] = (int) stat[i];
+        }
+        return a;
+    }
+}
@@ -0,0 +1,318 @@
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzipped FASTA/FASTQ file on its own thread and cuts the data into chunks at record boundaries
+ * (see ReadsChunkParser.lastRecordStart). Chunks are given to workers through a bounded queue.<br></br>
+ * BGZF files (e.g. made by bgzip) consist of independent gzip blocks, groups of such blocks
+ * are inflated in parallel by several inflater threads. Other gzip files are inflated by the reading thread.
+ */
+class GzipChunkSource {
+
+    static final int QUEUE_CHUNKS = 16;
+    private static final int BGZF_HEADER_SIZE = 18;
+
+    static class Chunk {
+        byte[] data;
+        int length;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    final File file;
+    final boolean fastq;
+    final int chunkSize;
+    final boolean bgzf;
+
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+    private final BlockingQueue<Chunk> free = new LinkedBlockingQueue<Chunk>();
+    private final ExecutorService inflaters;
+    private final Thread reader;
+
+    private Chunk current;
+    private volatile IOException error = null;
+    volatile long bytesDecompressed = 0;
+
+
+    GzipChunkSource(File file, boolean fastq, int chunkSize, int inflaterThreads) throws IOException {
+        this.file = file;
+        this.fastq = fastq;
+        this.chunkSize = chunkSize;
+        bgzf = isBgzf(file);
+        inflaters = bgzf ? Executors.newFixedThreadPool(inflaterThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "inflater-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }) : null;
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(inflaterThreads);
+            }
+        }, "gzip-reader-" + threadNumber.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+
+    /**
+     * @return true, if the file starts with BGZF block header
+     */
+    static boolean isBgzf(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] header = new byte[BGZF_HEADER_SIZE];
+            in.readFully(header);
+            return bgzfBlockSize(header) > 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return size of the whole BGZF block by its header, or -1, if it's not a BGZF header
+     */
+    private static int bgzfBlockSize(byte[] h) {
+        if ((h[0] & 0xFF) != 31 || (h[1] & 0xFF) != 139 || h[2] != 8 || (h[3] & 4) == 0) {
+            return -1;
+        }
+        int xlen = (h[10] & 0xFF) | ((h[11] & 0xFF) << 8);
+        if (xlen != 6 || h[12] != 'B' || h[13] != 'C' || h[14] != 2 || h[15] != 0) {
+            return -1;
+        }
+        return ((h[16] & 0xFF) | ((h[17] & 0xFF) << 8)) + 1;
+    }
+
+
+    /**
+     * @return next chunk, or null, if the whole file has been processed
+     */
+    Chunk take() throws IOException, InterruptedException {
+        Chunk chunk = filled.take();
+        if (chunk == END) {
+            filled.put(END);    // for other workers
+            if (error != null) {
+                throw new IOException("Can't decompress " + file.getName() + ": " + error.getMessage(), error);
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    void release(Chunk chunk) {
+        chunk.length = 0;
+        free.add(chunk);
+    }
+
+    /**
+     * Stops reading and inflater threads, if they are still running.
+     */
+    void close() {
+        reader.interrupt();
+        if (inflaters != null) {
+            inflaters.shutdownNow();
+        }
+    }
+
+
+    private void read(int inflaterThreads) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20)) {
+            current = newChunk();
+            if (bgzf) {
+                readBgzf(new DataInputStream(in), 2 * inflaterThreads);
+            } else {
+                readGzip(in);
+            }
+            if (current.length > 0) {
+                filled.put(current);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            return;     // closed
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void readGzip(InputStream in) throws IOException, InterruptedException {
+        GZIPInputStream gin = new GZIPInputStream(in, 1 << 16);
+        byte[] buffer = new byte[1 << 20];
+        int n;
+        while ((n = gin.read(buffer)) > 0) {
+            append(buffer, n);
+        }
+    }
+
+    private void readBgzf(DataInputStream in, int maxGroupsInFlight)
+            throws IOException, InterruptedException {
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        boolean eof = false;
+        while (true) {
+            while (!eof && inFlight.size() < maxGroupsInFlight) {
+                final List<byte[]> group = readBlocksGroup(in);
+                if (group.isEmpty()) {
+                    eof = true;
+                } else {
+                    inFlight.add(inflaters.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return inflateGroup(group);
+                        }
+                    }));
+                }
+            }
+            if (inFlight.isEmpty()) {
+                break;
+            }
+            try {
+                byte[] data = inFlight.poll().get();
+                append(data, data.length);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Reads whole BGZF blocks with about chunkSize bytes of uncompressed data.
+     */
+    private List<byte[]> readBlocksGroup(DataInputStream in) throws IOException {
+        List<byte[]> group = new ArrayList<byte[]>();
+        long uncompressed = 0;
+        byte[] header = new byte[BGZF_HEADER_SIZE];
+        while (uncompressed < chunkSize) {
+            int first = in.read();
+            if (first < 0) {
+                break;
+            }
+            header[0] = (byte) first;
+            in.readFully(header, 1, BGZF_HEADER_SIZE - 1);
+            int blockSize = bgzfBlockSize(header);
+            if (blockSize < 0) {
+                throw new IOException("Bad BGZF block header");
+            }
+            byte[] block = new byte[blockSize - BGZF_HEADER_SIZE];  // deflated data, CRC32 and ISIZE
+            in.readFully(block);
+            group.add(block);
+            uncompressed += intLE(block, block.length - 4);
+        }
+        return group;
+    }
+
+    private static byte[] inflateGroup(List<byte[]> group) throws IOException {
+        int size = 0;
+        for (byte[] block : group) {
+            size += intLE(block, block.length - 4);
+        }
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int pos = 0;
+            for (byte[] block : group) {
+                int blockDataSize = intLE(block, block.length - 4);
+                inflater.reset();
+                inflater.setInput(block, 0, block.length - 8);
+                int n = 0;
+                while (n < blockDataSize) {
+                    int m = inflater.inflate(data, pos + n, blockDataSize - n);
+                    if (m == 0 && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    n += m;
+                }
+                crc.reset();
+                crc.update(data, pos, blockDataSize);
+                if (n != blockDataSize || (int) crc.getValue() != intLE(block, block.length - 8)) {
+                    throw new IOException("Corrupted BGZF block");
+                }
+                pos += blockDataSize;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted BGZF block: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    private static int intLE(byte[] a, int pos) {
+        return (a[pos] & 0xFF) | ((a[pos + 1] & 0xFF) << 8) | ((a[pos + 2] & 0xFF) << 16) | ((a[pos + 3] & 0xFF) << 24);
+    }
+
+
+    private Chunk newChunk() {
+        Chunk chunk = free.poll();
+        return (chunk != null) ? chunk : new Chunk(chunkSize);
+    }
+
+    /**
+     * Appends decompressed data to the current chunk, full chunks are cut at the last record start
+     * and put to the queue, the rest of data goes to the next chunk.
+     */
+    private void append(byte[] data, int length) throws InterruptedException {
+        bytesDecompressed += length;
+        int off = 0;
+        while (off < length) {
+            int n = Math.min(length - off, current.data.length - current.length);
+            System.arraycopy(data, off, current.data, current.length, n);
+            current.length += n;
+            off += n;
+
+            if (current.length == current.data.length) {
+                int cut = ReadsChunkParser.lastRecordStart(current.data, current.length, fastq);
+                if (cut < 0) {
+                    current.data = Arrays.copyOf(current.data, current.data.length * 2);   // too long record
+                    continue;
+                }
+                Chunk next = newChunk();
+                int rest = current.length - cut;
+                if (next.data.length < rest + 1) {
+                    next.data = new byte[Math.max(chunkSize, 2 * rest)];
+                }
+                System.arraycopy(current.data, cut, next.data, 0, rest);
+                next.length = rest;
+                current.length = cut;
+                filled.put(current);
+                current = next;
+            }
+        }
+    }
+}
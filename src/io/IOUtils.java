@@ -1,34 +1,93 @@
 package io;
 
+import algo.RollingKmers;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
-import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.pairs.ImmutablePair;
 import ru.ifmo.genetics.utils.pairs.Pair;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
-import structures.map.BigLong2BitLongaHashMap;
+import structures.ConcurrentBloomFilter;
+import structures.HyperLogLog;
+import structures.map.BigLong2BitLongaPackedHashMap;
 import structures.map.BigLong2BitSetHashMap;
 import structures.map.BigLong2BitShortaHashMap;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.MapSnapshot;
+import structures.map.OffHeapBigLong2BitLongaHashMap;
+import structures.map.OffHeapBigLong2BitShortaHashMap;
+import structures.map.OffHeapBigLong2LongHashMap;
+import structures.map.OffHeapBigLong2ShortHashMap;
 
 import java.io.*;
 import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 
 public class IOUtils {
 
     static final int READS_WORK_RANGE_SIZE = 1 << 15;   // 32 K reads
-    static final int KMERS_WORK_RANGE_SIZE = 16777200;   // ~16 Mb of data
+    static final int READS_CHUNK_SIZE = 1 << 22;        // 4 Mb of FASTA/FASTQ data
+    static final int KMERS_WORK_RANGE_SIZE = 16777200;   // ~16 Mb of data, divisible by 10 and 16 (record sizes)
+
+
+    /**
+     * How k-mers files are read by loadKmers/loadLongKmers/loadBit*Kmers methods, MAPPED unless given to the method.
+     */
+    public enum KmersLoadingMode {
+        /**
+         * Reading k-mers files through input stream, every work range is copied to worker's byte array.
+         */
+        STREAM,
+        /**
+         * Mapping k-mers files into memory, records are decoded straight from the mapped buffer.
+         */
+        MAPPED
+    }
+
+
+    /**
+     * Where tables of maps built by loadKmers/loadReads/loadLongKmers/loadBit*Kmers methods are kept,
+     * HEAP unless given to the method.
+     */
+    public enum MapMemoryMode {
+        /**
+         * Maps built by load methods keep their tables on the Java heap.
+         */
+        HEAP,
+        /**
+         * Maps built by load methods keep their tables in direct memory (see OffHeapBigLong2ShortHashMap etc.),
+         * so they don't take the heap and aren't scanned by GC. Direct memory is limited by -XX:MaxDirectMemorySize.
+         * Such maps should be released by free() after usage.
+         */
+        OFF_HEAP
+    }
 
+    /**
+     * Releases direct memory of the map, if it is an off-heap one.
+     */
+    public static void free(Object hm) {
+        if (hm instanceof OffHeapBigLong2ShortHashMap) {
+            ((OffHeapBigLong2ShortHashMap) hm).free();
+        } else if (hm instanceof OffHeapBigLong2LongHashMap) {
+            ((OffHeapBigLong2LongHashMap) hm).free();
+        } else if (hm instanceof OffHeapBigLong2BitLongaHashMap) {
+            ((OffHeapBigLong2BitLongaHashMap) hm).free();
+        } else if (hm instanceof OffHeapBigLong2BitShortaHashMap) {
+            ((OffHeapBigLong2BitShortaHashMap) hm).free();
+        }
+    }
 
 
     public static String withP(long cur, long all) {
@@ -42,66 +101,203 @@ public class IOUtils {
 
 
 
-    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
-                                  File outFile, File stFile) throws IOException {
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+    public enum KmersFileFormat {
+        /**
+         * Version 1: headerless stream of (long k-mer, value) records in map order.
+         */
+        PLAIN,
+        /**
+         * Version 2: sorted and block-compressed records with header, see BlockKmersFormat.
+         */
+        BLOCK
+    }
+
+
+    /**
+     * @param k k-mer size to be saved in the header of BLOCK format (0, if unknown)
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold, File outFile, File stFile,
+                                  KmersFileFormat format, int k) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, format, k, null);
+    }
+
+    /**
+     * @param k k-mer size to be saved in the header of BLOCK format (0, if unknown)
+     * @param sketch if not null, printed k-mers are added to it on the pass, that collects statistics
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold, File outFile, File stFile,
+                                  KmersFileFormat format, int k, HyperLogLog sketch) throws IOException {
+        if (format == KmersFileFormat.PLAIN) {
+            return ParallelKmersPrinter.print(hm, threshold, outFile, stFile, sketch,
+                    Runtime.getRuntime().availableProcessors());
+        }
 
         QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
         long good = 0;
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
 
         Iterator<MutableLongShortEntry> it = hm.entryIterator();
         while (it.hasNext()) {
             MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
             short value = entry.getValue();
-
             stats.add(value);
-
             if (value > threshold) {
-                stream.writeLong(key);
-                stream.writeShort(value);
+                minKey = Math.min(minKey, entry.getKey());
+                maxKey = Math.max(maxKey, entry.getKey());
                 good++;
+                if (sketch != null) {
+                    sketch.add(entry.getKey());
+                }
             }
         }
 
-        stream.close();
+        BlockKmersWriter.writeSorted(goodKmers(hm, threshold), good, minKey, maxKey, outFile, k, 2);
         stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
         return good;
     }
 
-    public static long printKmers(BigLong2LongHashMap hm, int threshold,
-                                  File outFile, File stFile) throws IOException {
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+    /**
+     * @param k k-mer size to be saved in the header of BLOCK format (0, if unknown)
+     */
+    public static long printKmers(BigLong2LongHashMap hm, int threshold, File outFile, File stFile,
+                                  KmersFileFormat format, int k) throws IOException {
+        if (format == KmersFileFormat.PLAIN) {
+            return printKmers(hm, threshold, outFile, stFile);
+        }
 
-        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<>();
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<Long>();
         long good = 0;
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
 
         Iterator<MutableLongLongEntry> it = hm.entryIterator();
         while (it.hasNext()) {
             MutableLongLongEntry entry = it.next();
-            long key = entry.getKey();
             long value = entry.getValue();
-
             stats.add(value);
-
             if (value > threshold) {
-                stream.writeLong(key);
-                stream.writeLong(value);
+                minKey = Math.min(minKey, entry.getKey());
+                maxKey = Math.max(maxKey, entry.getKey());
                 good++;
             }
         }
 
-        stream.close();
+        BlockKmersWriter.writeSorted(goodKmers(hm, threshold), good, minKey, maxKey, outFile, k, 8);
         stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
         return good;
     }
 
+    static BlockKmersWriter.RecordsCursor goodKmers(final BigLong2ShortHashMap hm, final int threshold) {
+        return new BlockKmersWriter.RecordsCursor() {
+            Iterator<MutableLongShortEntry> it;
+
+            @Override
+            public void restart() {
+                it = hm.entryIterator();
+            }
+
+            @Override
+            public boolean next() {
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        key = entry.getKey();
+                        value = entry.getValue();
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private static BlockKmersWriter.RecordsCursor goodKmers(final BigLong2LongHashMap hm, final int threshold) {
+        return new BlockKmersWriter.RecordsCursor() {
+            Iterator<MutableLongLongEntry> it;
+
+            @Override
+            public void restart() {
+                it = hm.entryIterator();
+            }
+
+            @Override
+            public boolean next() {
+                while (it.hasNext()) {
+                    MutableLongLongEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        key = entry.getKey();
+                        value = entry.getValue();
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+                                  File outFile, File stFile) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Writes k-mers with value greater than threshold in version 1 format, small maps of hm are written in parallel.
+     */
+    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+                                  File outFile, File stFile, int availableProcessors) throws IOException {
+        return ParallelKmersPrinter.print(hm, threshold, outFile, stFile, availableProcessors);
+    }
+
+    public static long printKmers(BigLong2LongHashMap hm, int threshold,
+                                  File outFile, File stFile) throws IOException {
+        return printKmers(hm, threshold, outFile, stFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Writes k-mers with value greater than threshold in version 1 format, small maps of hm are written in parallel.
+     */
+    public static long printKmers(BigLong2LongHashMap hm, int threshold,
+                                  File outFile, File stFile, int availableProcessors) throws IOException {
+        return ParallelKmersPrinter.print(hm, threshold, outFile, stFile, availableProcessors);
+    }
+
+    // ---------------------------- HyperLogLog sketches ----------------------------------
+
+    public static final String SKETCH_EXTENSION = ".kmers.hll";
+
+    /**
+     * @return file with sketch of k-mers file: X.kmers.bin -> X.kmers.hll
+     */
+    public static File sketchFileFor(File kmersFile) {
+        String name = kmersFile.getName();
+        if (name.endsWith(".kmers.bin")) {
+            name = name.substring(0, name.length() - ".kmers.bin".length());
+        }
+        return new File(kmersFile.getParentFile(), name + SKETCH_EXTENSION);
+    }
+
+    public static void printSketch(HyperLogLog sketch, File sketchFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sketchFile)));
+        try {
+            sketch.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static HyperLogLog loadSketch(File sketchFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sketchFile)));
+        try {
+            return HyperLogLog.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+
     public static long filterAndPrintKmers(BigLong2ShortHashMap hm, BigLong2ShortHashMap filter_hm,
                                            int threshold, int filter_threshold, File out) throws IOException {
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
+        DataOutputStream stream = new DataOutputStream(new AsyncFileOutputStream(out));
 
         long good = 0;
 
@@ -127,8 +323,7 @@ public class IOUtils {
                                                     BigLong2ShortHashMap uc_filter_hm,
                                                     BigLong2ShortHashMap nonibd_filter_hm,
                                                     int threshold, File out, File stFile) throws IOException {
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
+        DataOutputStream stream = new DataOutputStream(new AsyncFileOutputStream(out));
 
         QuickQuantitativeStatistics<Triple> stats = new QuickQuantitativeStatistics<Triple>();
         long good = 0;
@@ -236,12 +431,20 @@ public class IOUtils {
 
     static class Kmers2HMWorker extends KmersLoadWorker {
         Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold) {
+            this(hm, freqThreshold, null);
+        }
+
+        Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold, LongPredicate filter) {
             this.hm = hm;
             this.freqThreshold = freqThreshold;
+            this.filter = filter;
         }
 
         final BigLong2ShortHashMap hm;
         final int freqThreshold;
+        final LongPredicate filter;
+        FrequencyHistogram histogram = null;
+        private ShardedIncrements increments = null;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
@@ -250,11 +453,23 @@ public class IOUtils {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.addAndBound(kmer, freq);
-                kmersAdded++;
+                if (filter == null || filter.test(kmer)) {
+                    if (increments == null) {
+                        increments = new ShardedIncrements(hm, histogram);
+                    }
+                    increments.add(kmer, freq);
+                    kmersAdded++;
+                }
                 freqSumAdded += freq;
             }
         }
+
+        @Override
+        public void flush() {
+            if (increments != null) {
+                increments.flush();
+            }
+        }
     }
 
     static class LongKmers2HMWorker extends LongKmersLoadWorker {
@@ -289,20 +504,15 @@ public class IOUtils {
 
         final BigLong2BitSetHashMap hm;
         final int freqThreshold;
-        int bitIndex;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
-        public void setBitIndex(int index) {
-            bitIndex = index;
-        }
-
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.set(kmer, bitIndex);
+                hm.set(kmer, fileIndex);
                 kmersAdded++;
                 freqSumAdded += freq;
             }
@@ -311,27 +521,22 @@ public class IOUtils {
 
 
     static class BitLongaKmers2HMWorker extends KmersLoadWorker {
-        BitLongaKmers2HMWorker(BigLong2BitLongaHashMap hm, int freqThreshold) {
+        BitLongaKmers2HMWorker(Long2BitLongaHashMapInterface hm, int freqThreshold) {
             this.hm = hm;
             this.freqThreshold = freqThreshold;
         }
 
-        final BigLong2BitLongaHashMap hm;
+        final Long2BitLongaHashMapInterface hm;
         final int freqThreshold;
-        int bitIndex;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
-        public void setBitIndex(int index) {
-            bitIndex = index;
-        }
-
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.set(kmer, bitIndex);
+                hm.setBit(kmer, fileIndex);
                 kmersAdded++;
                 freqSumAdded += freq;
             }
@@ -346,72 +551,249 @@ public class IOUtils {
 
         final BigLong2BitShortaHashMap hm;
         final int freqThreshold;
-        int bitIndex;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
-        public void setBitIndex(int index) {
-            bitIndex = index;
-        }
-
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
             freqSum += freq;
             if (freq > freqThreshold) {
-                hm.set(kmer, bitIndex);
+                hm.setBit(kmer, fileIndex);
                 kmersAdded++;
                 freqSumAdded += freq;
             }
         }
     }
 
-    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
-            throws ExecutionFailedException {
+    // ---------------------------- capacity planning ----------------------------------
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+    static final int MAX_LOG_SMALL_CAPACITY = 22;   // 4 M cells per small map, larger maps get more shards
 
-        Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
-        for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new Kmers2HMWorker(hm, freqThreshold);
+    /**
+     * Number and capacity of small maps of BigLong2*HashMap, chosen so that expected number of k-mers
+     * fits without rehashing.
+     */
+    static class MapSizePlan {
+        final int logSmallMapNumber, logSmallCapacity;
+
+        MapSizePlan(int logSmallMapNumber, int logSmallCapacity) {
+            this.logSmallMapNumber = logSmallMapNumber;
+            this.logSmallCapacity = logSmallCapacity;
         }
+    }
 
-        run(files, workers, hm, logger);
+    static MapSizePlan planMapSize(long expectedSize, int availableProcessors) {
+        int logMaps = (int) (Math.log(availableProcessors) / Math.log(2)) + 4;
+        if (expectedSize <= 0) {
+            return new MapSizePlan(logMaps, 12);
+        }
+        while (logMaps < 24 && (expectedSize >> logMaps) > (1L << MAX_LOG_SMALL_CAPACITY) * 3 / 4) {
+            logMaps++;
+        }
+        // k-mers are spread over small maps by hash, so leave a margin for uneven distribution
+        double perMap = (double) expectedSize / (1L << logMaps);
+        double cells = (perMap + 4 * Math.sqrt(perMap) + 64) / LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+        int logCapacity = 12;
+        while (logCapacity < 30 && (1L << logCapacity) < cells) {
+            logCapacity++;
+        }
+        return new MapSizePlan(logMaps, logCapacity);
+    }
 
-        // calculating statistics...
-        long kmers = 0, kmersAdded = 0;
-        long freqSum = 0, freqSumAdded = 0;
-        for (Kmers2HMWorker worker : workers) {
-            kmers += worker.kmers;
-            kmersAdded += worker.kmersAdded;
-            freqSum += worker.freqSum;
-            freqSumAdded += worker.freqSumAdded;
+    /**
+     * Estimates the number of k-mers to be loaded from binary files without reading them.
+     * If all files have sketches, the size of their union is estimated by the merged sketch.
+     * Otherwise it is the largest records count among files (the size of their union can't be less):
+     * version 2 files store records count in the header, for version 1 it is file length / recordSize.
+     */
+    static long expectedKmers(File[] files, int recordSize) {
+        if (files.length > 1) {
+            try {
+                HyperLogLog union = null;
+                for (File file : files) {
+                    File sketchFile = sketchFileFor(file);
+                    if (!sketchFile.exists()) {
+                        union = null;
+                        break;
+                    }
+                    HyperLogLog sketch = loadSketch(sketchFile);
+                    if (union == null) {
+                        union = sketch;
+                    } else {
+                        union.merge(sketch);
+                    }
+                }
+                if (union != null) {
+                    return union.cardinality();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // falling back to records count
+            }
         }
 
-        Tool.debug(logger,
-                "Added/All kmers count = " + NumUtils.groupDigits(kmersAdded) + "/" + NumUtils.groupDigits(kmers)
-                        + " (" + String.format("%.1f", kmersAdded * 100.0 / kmers) + "%)");
-        Tool.debug(logger,
-                "Added/All kmers frequency sum = " + NumUtils.groupDigits(freqSumAdded) + "/" + NumUtils.groupDigits(freqSum)
-                        + " (" + String.format("%.1f", freqSumAdded * 100.0 / freqSum) + "%)");
-        Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()));
+        long max = 0;
+        for (File file : files) {
+            long records;
+            try {
+                records = BlockKmersFormat.isBlockFormat(file)
+                        ? BlockKmersFormat.readHeader(file).recordsCount
+                        : file.length() / recordSize;
+            } catch (IOException e) {
+                records = 0;    // it will be reported by the loader
+            }
+            max = Math.max(max, records);
+        }
+        return max;
+    }
 
-        return hm;
+    static BigLong2ShortHashMap newShortMap(MapSizePlan plan, MapMemoryMode mode, boolean debugInfo) {
+        return (mode == MapMemoryMode.OFF_HEAP)
+                ? new OffHeapBigLong2ShortHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, debugInfo)
+                : new BigLong2ShortHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, debugInfo);
+    }
+
+    static MapSizePlan planKmersMap(File[] files, int recordSize, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        checkNotSnapshots(files);   // before the map for a wrong number of k-mers is allocated
+        long expected = expectedKmers(files, recordSize);
+        MapSizePlan plan = planMapSize(expected, availableProcessors);
+        Tool.debug(logger, "Expected k-mers = " + NumUtils.groupDigits(expected) + ", using " +
+                (1 << plan.logSmallMapNumber) + " small maps of capacity " + NumUtils.groupDigits(1L << plan.logSmallCapacity));
+        return plan;
+    }
+
+
+    /**
+     * Snapshots (see MapSnapshot) are opened only as the single input file of loadKmers, loadBitShortaKmers
+     * or loadBitLongaKmers, other loaders would misread them as k-mers or reads.
+     */
+    static void checkNotSnapshots(File[] files) throws ExecutionFailedException {
+        for (File file : files) {
+            if (MapSnapshot.isSnapshot(file)) {
+                throw new ExecutionFailedException("File " + file + " is a k-mers map snapshot, " +
+                        "it can be used only as the single input file of k-mers");
+            }
+        }
+    }
+
+    /**
+     * Checks that the snapshot of k-mers presence map was made with the given threshold,
+     * as presence bits can't be recalculated for another one.
+     */
+    private static void checkBitSnapshot(File file, int freqThreshold) throws ExecutionFailedException, IOException {
+        MapSnapshot.Header header = MapSnapshot.readHeader(file);
+        if (freqThreshold != header.freqThreshold) {
+            throw new ExecutionFailedException("Snapshot " + file + " was made with frequency threshold " +
+                    header.freqThreshold + ", can't load k-mers presence with threshold " + freqThreshold + " from it");
+        }
+    }
+
+
+    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmers(files, freqThreshold, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
+
+    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, MapMemoryMode mode,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmers(files, freqThreshold, KmersLoadingMode.MAPPED, mode, availableProcessors, logger);
+    }
+
+    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, KmersLoadingMode loading,
+                                                 MapMemoryMode mode, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, null, null, loading, mode, availableProcessors, logger).first();
+    }
+
+    /**
+     * Loads only k-mers accepted by filter (e.g. <code>hm::contains</code>), so the resulting map
+     * is no larger than the filter. Filter must be safe for concurrent reads.
+     */
+    public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, LongPredicate filter,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, filter, availableProcessors, logger).first();
     }
 
     public static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, null, availableProcessors, logger);
+    }
+
+    /**
+     * Loads only k-mers accepted by filter, see loadKmers.
+     *
+     * @return loaded k-mers and the frequency sum of all k-mers above the threshold, accepted by filter or not
+     */
+    public static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, LongPredicate filter,
+                                                               int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, filter, KmersLoadingMode.MAPPED, availableProcessors, logger);
+    }
+
+    public static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, LongPredicate filter,
+                                                               KmersLoadingMode loading,
+                                                               int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmersFreq(files, freqThreshold, filter, null, loading, MapMemoryMode.HEAP,
+                availableProcessors, logger);
+    }
+
+    /**
+     * Loads k-mers and builds the histogram of their resulting frequencies on the fly,
+     * so no additional pass over the map is needed.
+     *
+     * @param histogramLength the last cell of histogram counts all frequencies >= histogramLength - 1
+     */
+    public static Pair<BigLong2ShortHashMap, FrequencyHistogram> loadKmersWithHistogram(File[] files, int freqThreshold,
+                                                                                       int histogramLength,
+                                                                                       int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadKmersWithHistogram(files, freqThreshold, histogramLength, MapMemoryMode.HEAP,
+                availableProcessors, logger);
+    }
+
+    public static Pair<BigLong2ShortHashMap, FrequencyHistogram> loadKmersWithHistogram(File[] files, int freqThreshold,
+                                                                                       int histogramLength,
+                                                                                       MapMemoryMode mode,
+                                                                                       int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        FrequencyHistogram histogram = new FrequencyHistogram(histogramLength);
+        BigLong2ShortHashMap hm = loadKmersFreq(files, freqThreshold, null, histogram, KmersLoadingMode.MAPPED, mode,
+                availableProcessors, logger).first();
+        return new ImmutablePair<>(hm, histogram);
+    }
+
+    private static Pair<BigLong2ShortHashMap, Long> loadKmersFreq(File[] files, int freqThreshold, LongPredicate filter,
+                                                                FrequencyHistogram histogram, KmersLoadingMode loading,
+                                                                MapMemoryMode mode, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+
+        if (files.length == 1 && MapSnapshot.isSnapshot(files[0])) {
+            return loadKmersSnapshot(files[0], freqThreshold, filter, histogram, mode, availableProcessors, logger);
+        }
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        MapSizePlan plan = (filter == null)
+                ? planKmersMap(files, KmersLoadWorker.KMER_RECORD_SIZE, availableProcessors, logger)
+                : planMapSize(0, availableProcessors);
+        BigLong2ShortHashMap hm = newShortMap(plan, mode, false);
 
         Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new Kmers2HMWorker(hm, freqThreshold);
+            workers[i] = new Kmers2HMWorker(hm, freqThreshold, filter);
+            if (histogram != null) {
+                workers[i].histogram = new FrequencyHistogram(histogram.length());
+            }
         }
 
-        run(files, workers, hm, logger);
+        run(files, workers, hm, loading, logger);
+        if (histogram != null) {
+            for (Kmers2HMWorker worker : workers) {
+                histogram.add(worker.histogram);
+            }
+        }
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -434,19 +816,84 @@ public class IOUtils {
         return new ImmutablePair<>(hm, freqSumAdded);
     }
 
+    /**
+     * Opens the snapshot of k-mers map (see MapSnapshot) instead of loading k-mers file.
+     * If the snapshot was made with the same threshold and no filter is given, it's used as it is (memory-mapped),
+     * otherwise passing k-mers are copied to a new map. Snapshot with a greater threshold can't be used.
+     */
+    private static Pair<BigLong2ShortHashMap, Long> loadKmersSnapshot(File file, int freqThreshold, LongPredicate filter,
+                                                                    FrequencyHistogram histogram, MapMemoryMode mode,
+                                                                    int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        OffHeapBigLong2ShortHashMap snapshot;
+        try {
+            MapSnapshot.Header header = MapSnapshot.readHeader(file);
+            if (freqThreshold < header.freqThreshold) {
+                throw new ExecutionFailedException("Snapshot " + file + " was made with frequency threshold " +
+                        header.freqThreshold + ", can't load k-mers with threshold " + freqThreshold + " from it");
+            }
+            snapshot = MapSnapshot.openShort(file);
+            Tool.debug(logger, "Opened snapshot " + file + " of " + NumUtils.groupDigits(snapshot.size()) + " k-mers");
+            if (freqThreshold == header.freqThreshold && filter == null) {
+                if (histogram != null) {
+                    Iterator<MutableLongShortEntry> it = snapshot.entryIterator();
+                    while (it.hasNext()) {
+                        histogram.update((short) 0, it.next().getValue());
+                    }
+                }
+                return new ImmutablePair<BigLong2ShortHashMap, Long>(snapshot, header.freqSum);
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't open k-mers map snapshot " + file, e);
+        }
+
+        // copying passing k-mers, the frequency sum is restored from the map (so it's bounded for huge frequencies)
+        BigLong2ShortHashMap hm = newShortMap(planMapSize(filter == null ? snapshot.size() : 0, availableProcessors),
+                mode, false);
+        long freqSumAdded = 0;
+        try {
+            Iterator<MutableLongShortEntry> it = snapshot.entryIterator();
+            while (it.hasNext()) {
+                MutableLongShortEntry entry = it.next();
+                short value = entry.getValue();
+                if (value > freqThreshold) {
+                    freqSumAdded += value;
+                    if (filter == null || filter.test(entry.getKey())) {
+                        hm.put(entry.getKey(), value);
+                        if (histogram != null) {
+                            histogram.update((short) 0, value);
+                        }
+                    }
+                }
+            }
+        } finally {
+            snapshot.free();
+        }
+        Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()));
+
+        return new ImmutablePair<>(hm, freqSumAdded);
+    }
+
 
     public static BigLong2BitSetHashMap loadBitSetKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitSetKmers(files, freqThreshold, KmersLoadingMode.MAPPED, availableProcessors, logger);
+    }
+
+    public static BigLong2BitSetHashMap loadBitSetKmers(File[] files, int freqThreshold, KmersLoadingMode loading,
+                                                        int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
 
+        MapSizePlan plan = planKmersMap(files, KmersLoadWorker.KMER_RECORD_SIZE, availableProcessors, logger);
         BigLong2BitSetHashMap hm = new BigLong2BitSetHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+                plan.logSmallMapNumber, plan.logSmallCapacity, false, files.length);
 
         BitSetKmers2HMWorker[] workers = new BitSetKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitSetKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitSet(files, workers, null, logger);
+        run(files, workers, null, loading, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -470,18 +917,48 @@ public class IOUtils {
     }
 
 
-    public static BigLong2BitLongaHashMap loadBitLongaKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
+    /**
+     * Loads presence of k-mers in files to the map with bits of all k-mers packed into one array per small map,
+     * the i-th bit of k-mer's value is set, if it has frequency more than freqThreshold in the i-th file.
+     */
+    public static Long2BitLongaHashMapInterface loadBitLongaKmers(File[] files, int freqThreshold,
+                                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitLongaKmers(files, freqThreshold, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
 
-        BigLong2BitLongaHashMap hm = new BigLong2BitLongaHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+    public static Long2BitLongaHashMapInterface loadBitLongaKmers(File[] files, int freqThreshold, MapMemoryMode mode,
+                                                                  int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadBitLongaKmers(files, freqThreshold, KmersLoadingMode.MAPPED, mode, availableProcessors, logger);
+    }
+
+    public static Long2BitLongaHashMapInterface loadBitLongaKmers(File[] files, int freqThreshold,
+                                                                  KmersLoadingMode loading, MapMemoryMode mode,
+                                                                  int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (files.length == 1 && MapSnapshot.isSnapshot(files[0])) {
+            try {
+                checkBitSnapshot(files[0], freqThreshold);
+                OffHeapBigLong2BitLongaHashMap snapshot = MapSnapshot.openBitLonga(files[0]);
+                Tool.debug(logger, "Opened snapshot " + files[0] + " of " + NumUtils.groupDigits(snapshot.size()) + " k-mers");
+                return snapshot;
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't open k-mers map snapshot " + files[0], e);
+            }
+        }
+
+        MapSizePlan plan = planKmersMap(files, KmersLoadWorker.KMER_RECORD_SIZE, availableProcessors, logger);
+        BigLong2BitLongaPackedHashMap hm = (mode == MapMemoryMode.OFF_HEAP)
+                ? new OffHeapBigLong2BitLongaHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, false, files.length)
+                : new BigLong2BitLongaPackedHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, false, files.length);
 
         BitLongaKmers2HMWorker[] workers = new BitLongaKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitLongaKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitLonga(files, workers, null, logger);
+        run(files, workers, null, loading, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -506,16 +983,41 @@ public class IOUtils {
 
     public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadBitShortaKmers(files, freqThreshold, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
 
-        BigLong2BitShortaHashMap hm = new BigLong2BitShortaHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, false, files.length);
+    public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold, MapMemoryMode mode,
+                                                              int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadBitShortaKmers(files, freqThreshold, KmersLoadingMode.MAPPED, mode, availableProcessors, logger);
+    }
+
+    public static BigLong2BitShortaHashMap loadBitShortaKmers(File[] files, int freqThreshold,
+                                                              KmersLoadingMode loading, MapMemoryMode mode,
+                                                              int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (files.length == 1 && MapSnapshot.isSnapshot(files[0])) {
+            try {
+                checkBitSnapshot(files[0], freqThreshold);
+                OffHeapBigLong2BitShortaHashMap snapshot = MapSnapshot.openBitShorta(files[0]);
+                Tool.debug(logger, "Opened snapshot " + files[0] + " of " + NumUtils.groupDigits(snapshot.size()) + " k-mers");
+                return snapshot;
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't open k-mers map snapshot " + files[0], e);
+            }
+        }
+
+        MapSizePlan plan = planKmersMap(files, KmersLoadWorker.KMER_RECORD_SIZE, availableProcessors, logger);
+        BigLong2BitShortaHashMap hm = (mode == MapMemoryMode.OFF_HEAP)
+                ? new OffHeapBigLong2BitShortaHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, false, files.length)
+                : new BigLong2BitShortaHashMap(plan.logSmallMapNumber, plan.logSmallCapacity, false, files.length);
 
         BitShortaKmers2HMWorker[] workers = new BitShortaKmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new BitShortaKmers2HMWorker(hm, freqThreshold);
         }
 
-        runBitShorta(files, workers, null, logger);
+        run(files, workers, null, loading, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -541,8 +1043,23 @@ public class IOUtils {
 
     public static BigLong2LongHashMap loadLongKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
+        return loadLongKmers(files, freqThreshold, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
 
-        BigLong2LongHashMap hm = new BigLong2LongHashMap((int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+    public static BigLong2LongHashMap loadLongKmers(File[] files, int freqThreshold, MapMemoryMode mode,
+                                                    int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return loadLongKmers(files, freqThreshold, KmersLoadingMode.MAPPED, mode, availableProcessors, logger);
+    }
+
+    public static BigLong2LongHashMap loadLongKmers(File[] files, int freqThreshold, KmersLoadingMode loading,
+                                                    MapMemoryMode mode, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+
+        MapSizePlan plan = planKmersMap(files, LongKmersLoadWorker.KMER_RECORD_SIZE, availableProcessors, logger);
+        BigLong2LongHashMap hm = (mode == MapMemoryMode.OFF_HEAP)
+                ? new OffHeapBigLong2LongHashMap(plan.logSmallMapNumber, plan.logSmallCapacity)
+                : new BigLong2LongHashMap(plan.logSmallMapNumber, plan.logSmallCapacity);
 
 
         LongKmers2HMWorker[] workers = new LongKmers2HMWorker[availableProcessors];
@@ -550,7 +1067,7 @@ public class IOUtils {
             workers[i] = new LongKmers2HMWorker(hm, freqThreshold);
         }
 
-        run(files, workers, null, logger);
+        run(files, workers, null, loading, logger);
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -597,190 +1114,198 @@ public class IOUtils {
     }
 
 
+    /**
+     * Loads all files with given workers on the threads of LoadingEngine.
+     * Work ranges of all files are dispatched by single dispatcher, so reading of the next file
+     * overlaps with processing of the previous one. Every range carries the index of its file.
+     */
     public static void run(File[] files, BytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException {
-        try {
-            for (File file : files) {
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    new Thread(workers[i]).start();
-                }
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
+        run(files, workers, hmForMonitoring, KmersLoadingMode.MAPPED, logger);
     }
 
-
-    public static void runBitSet(File[] files, BitSetKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+    public static void run(File[] files, BytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring,
+                           KmersLoadingMode loading, Logger logger)
             throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
-                }
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
+        checkNotSnapshots(files);
+        BytesDispatcher dispatcher = new BytesDispatcher(files, KMERS_WORK_RANGE_SIZE,
+                loading == KmersLoadingMode.MAPPED, hmForMonitoring, logger);
+        for (BytesWorker worker : workers) {
+            worker.setDispatcher(dispatcher);
         }
-    }
-
-
-    public static void runBitLonga(File[] files, BitLongaKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
-            throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
-                }
 
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
-    }
-
-    public static void runBitShorta(File[] files, BitShortaKmers2HMWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
-            throws ExecutionFailedException {
-        try {
-            int bitIndex=-1;
-            for (File file : files) {
-                bitIndex++;
-                Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    workers[i].setBitIndex(bitIndex);
-                    new Thread(workers[i]).start();
-                }
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
-                    }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
-                }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
-            }
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Can't load k-mers file", e);
-        }
+        LoadingEngine.getInstance(workers.length).run(workers, logger);
+        Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
     }
 
 
     // ---------------------------- for loading reads ----------------------------------
 
-    static class ReadsLoadWorker extends ReadsWorker {
-        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen) {
+    static class ReadsLoadWorker extends ReadsWorker implements LongConsumer {
+        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen, ConcurrentBloomFilter singletonsFilter) {
             this.hm = hm;
             this.k = k;
             this.minDnaLen = minDnaLen;
+            this.singletonsFilter = singletonsFilter;
         }
 
         final BigLong2ShortHashMap hm;
         final int k;
         final int minDnaLen;
+        final ConcurrentBloomFilter singletonsFilter;
+        FrequencyHistogram histogram = null;
+        private ShardedIncrements increments = null;
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
 
         @Override
-        public void process(List<Dna> reads) {
-            for (Dna dna : reads) {
-                totalSeq++;
-                totalLen += dna.length();
-
-                if (dna.length() >= minDnaLen) {
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        hm.addAndBound(kmer.toLong(), (short) 1);
-                    }
-                    goodSeq++;
-                    goodLen += dna.length();
+        public void process(byte[] seq, int from, int to) {
+            totalSeq++;
+            totalLen += to - from;
+
+            if (to - from >= minDnaLen) {
+                RollingKmers.forEachKmer(seq, from, to, k, this);
+                goodSeq++;
+                goodLen += to - from;
+            }
+        }
+
+        @Override
+        public void accept(long kmer) {
+            if (increments == null) {
+                increments = new ShardedIncrements(hm, histogram, singletonsFilter);
+            }
+            increments.add(kmer, (short) 1);
+        }
+
+        @Override
+        public void flush() {
+            if (increments != null) {
+                increments.flush();
+            }
+        }
+    }
+
+    /**
+     * Bases read from the beginnings of all files to estimate the number of their distinct k-mers.
+     */
+    static final long ESTIMATE_SAMPLE_BASES = 64L << 20;
+    static final long ESTIMATE_MIN_FILE_SAMPLE_BASES = 1L << 20;
+
+    /**
+     * Estimates the number of distinct k-mers in reads by HyperLogLog sketches of a bounded prefix of every file,
+     * so the cost doesn't depend on the input size.<br></br>
+     * The estimate is extrapolated to the whole input by the rate new k-mers appeared in the second half
+     * of the prefixes. Genomic k-mers are mostly seen by then, so it's close to the rate of erroneous ones,
+     * which stays about the same further (plain extrapolation by size would greatly overestimate
+     * high coverage data). The size of the whole file is known by the reader's progress.
+     */
+    static long estimateReadsKmers(File[] files, int k, int minSeqLen, Logger logger) throws IOException {
+        long fileSampleBases = Math.max(ESTIMATE_MIN_FILE_SAMPLE_BASES, ESTIMATE_SAMPLE_BASES / files.length);
+        final HyperLogLog firstHalf = new HyperLogLog();
+        final HyperLogLog secondHalf = new HyperLogLog();
+        LongConsumer toFirstHalf = firstHalf::add;
+        LongConsumer toSecondHalf = secondHalf::add;
+
+        long sampledBases = 0;
+        double totalBases = 0;
+        for (File file : files) {
+            ProgressableIterator<Dna> it = ReadersUtils.readDnaLazy(file).iterator();
+            long bases = 0;
+            while (bases < fileSampleBases && it.hasNext()) {
+                Dna dna = it.next();
+                if (dna.length() >= minSeqLen) {
+                    RollingKmers.forEachKmer(dna, k, (bases < fileSampleBases / 2) ? toFirstHalf : toSecondHalf);
                 }
+                bases += dna.length();
             }
+            double progress = it.hasNext() ? Math.min(1.0, it.progress()) : 1.0;
+            sampledBases += bases;
+            totalBases += (progress > 0) ? bases / progress : bases;
         }
+
+        long firstHalfKmers = firstHalf.cardinality();
+        firstHalf.merge(secondHalf);
+        long sampledKmers = firstHalf.cardinality();
+        long estimate = sampledKmers;
+        if (totalBases > sampledBases && sampledBases > 0) {
+            double rate = Math.max(0, sampledKmers - firstHalfKmers) / (sampledBases / 2.0);
+            estimate += (long) (rate * (totalBases - sampledBases));
+        }
+        Tool.debug(logger, "Estimated number of distinct k-mers = " + NumUtils.groupDigits(estimate) +
+                " (" + NumUtils.groupDigits(sampledKmers) + " in the first " + NumUtils.groupDigits(sampledBases) +
+                " of ~" + NumUtils.groupDigits((long) totalBases) + " bases)");
+        return estimate;
     }
 
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        return loadReads(files, k, minSeqLen, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
+
+    public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen, MapMemoryMode mode,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        return loadReads(files, k, minSeqLen, null, false, mode, availableProcessors, logger).first();
+    }
+
+    /**
+     * Loads k-mers from reads in two stages: the first sighting of a k-mer is recorded in Bloom filter only,
+     * and the k-mer gets to the map on the second one, with its first sighting added back.
+     * So k-mers seen once (mostly sequencing errors) don't take memory, frequencies of others are exact
+     * (except for rare false positives of the filter, that are counted one more).
+     * @return the map and the approximate number of k-mers seen once, that are not in the map
+     */
+    public static Pair<BigLong2ShortHashMap, Long> loadReadsWithoutSingletons(File[] files, int k, int minSeqLen,
+                                                                          int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        return loadReads(files, k, minSeqLen, null, true, MapMemoryMode.HEAP, availableProcessors, logger);
+    }
+
+    /**
+     * Loads k-mers from reads and builds the histogram of their frequencies on the fly,
+     * see loadKmersWithHistogram.
+     */
+    public static Pair<BigLong2ShortHashMap, FrequencyHistogram> loadReadsWithHistogram(File[] files, int k, int minSeqLen,
+                                                                                       int histogramLength,
+                                                                                       int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        FrequencyHistogram histogram = new FrequencyHistogram(histogramLength);
+        BigLong2ShortHashMap hm = loadReads(files, k, minSeqLen, histogram, false, MapMemoryMode.HEAP,
+                availableProcessors, logger).first();
+        return new ImmutablePair<>(hm, histogram);
+    }
+
+    private static Pair<BigLong2ShortHashMap, Long> loadReads(File[] files, int k, int minSeqLen,
+                                                              FrequencyHistogram histogram, boolean skipSingletons,
+                                                              MapMemoryMode mode, int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        checkNotSnapshots(files);
+        long expected = estimateReadsKmers(files, k, minSeqLen, logger);
+        ConcurrentBloomFilter filter = null;
+        if (skipSingletons) {
+            filter = new ConcurrentBloomFilter(expected);
+            Tool.debug(logger, "Singletons filter takes " + NumUtils.memoryAsString(filter.sizeInBytes()));
+            expected /= 2;  // usually most of k-mers are seen once, small maps grow if needed
+        }
+        MapSizePlan plan = planMapSize(expected, availableProcessors);
+        BigLong2ShortHashMap hm = newShortMap(plan, mode, true);
 
         ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
+            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen, filter);
+            if (histogram != null) {
+                workers[i].histogram = new FrequencyHistogram(histogram.length());
+            }
         }
 
         run(files, workers, hm, logger);
+        if (histogram != null) {
+            for (ReadsLoadWorker worker : workers) {
+                histogram.add(worker.histogram);
+            }
+        }
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
@@ -799,11 +1324,20 @@ public class IOUtils {
                         + " (" + String.format("%.1f", goodLen * 100.0 / totalLen) + "%)");
         Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()));
 
-        return hm;
+        long singletons = 0;
+        if (skipSingletons) {
+            long distinct = 0;
+            for (ReadsLoadWorker worker : workers) {
+                distinct += (worker.increments != null) ? worker.increments.firstSightings : 0;
+            }
+            singletons = Math.max(0, distinct - hm.size());
+            Tool.debug(logger, "k-mers seen once (not in HM) = " + NumUtils.groupDigits(singletons));
+        }
+        return new ImmutablePair<>(hm, singletons);
     }
 
 
-    static class ReadsPresenceWorker extends ReadsWorker {
+    static class ReadsPresenceWorker extends ReadsWorker implements LongConsumer {
         ReadsPresenceWorker(BigLong2LongHashMap hm, int k) {
             this.hm = hm;
             this.k = k;
@@ -813,13 +1347,14 @@ public class IOUtils {
         final int k;
 
         @Override
-        public void process(List<Dna> reads) {
-            for (Dna dna : reads) {
-                for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                    if (hm.contains(kmer.toLong())) {
-                        hm.addAndBound(kmer.toLong(), 1);
-                    }
-                }
+        public void process(byte[] seq, int from, int to) {
+            RollingKmers.forEachKmer(seq, from, to, k, this);
+        }
+
+        @Override
+        public void accept(long kmer) {
+            if (hm.contains(kmer)) {
+                hm.addAndBound(kmer, 1);
             }
         }
     }
@@ -833,35 +1368,80 @@ public class IOUtils {
         run(files, workers, null, logger);
     }
 
+    static class ReadsIndexedPresenceWorker extends ReadsWorker implements LongConsumer {
+        ReadsIndexedPresenceWorker(Long2IntMap index, AtomicIntegerArray counts, int k) {
+            this.index = index;
+            this.counts = counts;
+            this.k = k;
+        }
+
+        final Long2IntMap index;
+        final AtomicIntegerArray counts;
+        final int k;
+
+        @Override
+        public void process(byte[] seq, int from, int to) {
+            RollingKmers.forEachKmer(seq, from, to, k, this);
+        }
+
+        @Override
+        public void accept(long kmer) {
+            int slot = index.get(kmer);
+            if (slot >= 0 && counts.get(slot) < Integer.MAX_VALUE) {
+                counts.incrementAndGet(slot);
+            }
+        }
+    }
+
+    /**
+     * Counts occurrences of indexed k-mers in reads by their slots, so one read-only index
+     * can be shared by several samples processed at once, each with its own counts array.
+     * @param index map from k-mer to its slot in counts, returning -1 for other k-mers
+     */
+    public static void calculatePresenceForReads(File[] files, int k, Long2IntMap index, AtomicIntegerArray counts,
+                                                 int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        ReadsWorker[] workers = new ReadsWorker[availableProcessors];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new ReadsIndexedPresenceWorker(index, counts, k);
+        }
+        run(files, workers, null, logger);
+    }
+
 
 
     public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException, IOException {
+        checkNotSnapshots(files);
         for (File file : files) {
             Tool.info(logger, "Loading file " + file.getName() + "...");
 
-            NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
-
-            ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
-            CountDownLatch latch = new CountDownLatch(workers.length);
-
-            for (int i = 0; i < workers.length; ++i) {
-                workers[i].setDispatcher(dispatcher);
-                workers[i].setLatch(latch);
-                new Thread(workers[i]).start();
+            ReadsDispatcher dispatcher = newReadsDispatcher(file, workers.length, hmForMonitoring);
+            for (ReadsWorker worker : workers) {
+                worker.setDispatcher(dispatcher);
             }
 
             try {
-                latch.await();
-            } catch (InterruptedException e) {
-                Tool.warn(logger, "Main thread interrupted");
-                for (ReadsWorker worker : workers) {
-                    worker.interrupt();
-                }
-                throw new ExecutionFailedException("Thread was interrupted", e);
+                LoadingEngine.getInstance(workers.length).run(workers, logger);
+            } finally {
+                dispatcher.close();
             }
             Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
         }
     }
 
+    /**
+     * FASTA/FASTQ files (plain or gzipped) are parsed by workers themselves chunk by chunk,
+     * other files are read through ReadersUtils reader.
+     */
+    static ReadsDispatcher newReadsDispatcher(File file, int workers, BigLong2ShortHashMap hmForMonitoring)
+            throws IOException {
+        if (ReadsDispatcher.canReadByChunks(file)) {
+            // inflating is several times faster than counting k-mers of the same data
+            int inflaterThreads = Math.max(1, workers / 4);
+            return new ReadsDispatcher(file, READS_CHUNK_SIZE, inflaterThreads, hmForMonitoring);
+        }
+        return new ReadsDispatcher(ReadersUtils.readDnaLazy(file), READS_WORK_RANGE_SIZE, hmForMonitoring);
+    }
+
 }
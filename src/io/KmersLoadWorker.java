@@ -1,35 +1,50 @@
 package io;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class KmersLoadWorker extends BytesWorker {
 
     final static int KMER_RECORD_SIZE = 10;
 
+    /**
+     * Index of the file the currently processed k-mers are loaded from.
+     */
+    int fileIndex;
+
+    private BlockKmersFormat.BlockDecoder decoder = null;
 
 
     public abstract void processKmer(long kmer, short freq);
 
     @Override
-    public void process(byte[] range, int len) {
-        if (len % KMER_RECORD_SIZE != 0) {
+    public void process(BytesWorkRange workRange) {
+        fileIndex = workRange.fileIndex;
+        if (workRange.header != null) {
+            processBlock(workRange);
+            return;
+        }
+        ByteBuffer range = workRange.data;
+        int from = range.position(), to = range.limit();
+        if ((to - from) % KMER_RECORD_SIZE != 0) {
             throw new RuntimeException("BAD division by work range");
         }
-        try {
-            DataInputStream is = new DataInputStream(new ByteArrayInputStream(range, 0, len));
-            int c = len / KMER_RECORD_SIZE;
-            for (int i = 0; i < c; i++) {
-                long kmer = is.readLong();
-                short freq = is.readShort();
-                processKmer(kmer, freq);
-            }
-            if (is.available() > 0) {
-                throw new RuntimeException("Bad KMER_RECORD_SIZE!");
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Can't load kmers from file", e);
+        for (int p = from; p < to; p += KMER_RECORD_SIZE) {
+            processKmer(range.getLong(p), range.getShort(p + 8));
+        }
+    }
+
+    private void processBlock(BytesWorkRange workRange) {
+        if (workRange.header.valueWidth != 2) {
+            throw new RuntimeException("K-mers file contains " + workRange.header.valueWidth +
+                    "-byte values, but 2-byte values are expected");
+        }
+        if (decoder == null) {
+            decoder = new BlockKmersFormat.BlockDecoder();
+        }
+        int c = decoder.decode(workRange.header, workRange.block, workRange.data);
+        long[] keys = decoder.keys, values = decoder.values;
+        for (int i = 0; i < c; i++) {
+            processKmer(keys[i], (short) values[i]);
         }
     }
 }
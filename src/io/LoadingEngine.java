@@ -0,0 +1,119 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed pool of daemon loader threads shared by all loading methods of IOUtils.<br></br>
+ * Threads are created once and are reused for every loaded file (the pool only grows,
+ * if more workers are requested than threads exist).
+ */
+public class LoadingEngine {
+
+    private static LoadingEngine instance = null;
+
+    public static synchronized LoadingEngine getInstance(int threads) {
+        if (instance == null) {
+            instance = new LoadingEngine(threads);
+        } else {
+            instance.ensureThreads(threads);
+        }
+        return instance;
+    }
+
+
+    private final ThreadPoolExecutor pool;
+
+    private LoadingEngine(int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "loader-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    private synchronized void ensureThreads(int threads) {
+        if (pool.getMaximumPoolSize() < threads) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        }
+    }
+
+
+    /**
+     * Runs all workers on the pool threads and waits until they finish.
+     */
+    public void run(BytesWorker[] workers, Logger logger) throws ExecutionFailedException {
+        List<Future<?>> futures = submit(workers);
+        try {
+            waitFor(futures, logger);
+        } catch (ExecutionFailedException e) {
+            for (BytesWorker worker : workers) {
+                worker.interrupt();
+            }
+            cancel(futures);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs all workers on the pool threads and waits until they finish.
+     */
+    public void run(ReadsWorker[] workers, Logger logger) throws ExecutionFailedException {
+        List<Future<?>> futures = submit(workers);
+        try {
+            waitFor(futures, logger);
+        } catch (ExecutionFailedException e) {
+            for (ReadsWorker worker : workers) {
+                worker.interrupt();
+            }
+            cancel(futures);
+            throw e;
+        }
+    }
+
+
+    private List<Future<?>> submit(Runnable[] tasks) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.length);
+        for (Runnable task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        return futures;
+    }
+
+    private static void waitFor(List<Future<?>> futures, Logger logger) throws ExecutionFailedException {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Tool.warn(logger, "Main thread interrupted");
+                throw new ExecutionFailedException("Thread was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new ExecutionFailedException("Loading worker failed", e.getCause());
+            }
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures) {
+        for (Future<?> f : futures) {
+            f.cancel(true);
+        }
+    }
+}
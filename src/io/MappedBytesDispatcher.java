@@ -0,0 +1,69 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps single file into memory and hands out read-only slices of the mapping
+ * instead of copying data into byte arrays. Used by BytesDispatcher.<br></br>
+ * The file is mapped by windows of WINDOW_RANGES work ranges (a single mapping can't exceed 2 Gb),
+ * every work range is aligned by the work range size, so it is aligned by the record size as well.
+ */
+public class MappedBytesDispatcher {
+    static final int WINDOW_RANGES = 64;    // ~1 Gb of data for 16 Mb work ranges
+
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final long fileSize;
+    public final int workRangeSize;
+    final long windowSize;
+
+    MappedByteBuffer window = null;
+    long windowStart = 0, windowEnd = 0;
+    long bytesRead = 0;
+
+    public MappedBytesDispatcher(File file, int workRangeSize) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.fileSize = channel.size();
+        this.workRangeSize = workRangeSize;
+        this.windowSize = (long) workRangeSize * WINDOW_RANGES;
+    }
+
+
+    /**
+     * @return next slice of the file (with position = 0 and big-endian byte order), or null, if the file has ended
+     */
+    public synchronized ByteBuffer getWorkRange() {
+        if (bytesRead >= fileSize) {
+            return null;
+        }
+        try {
+            if (window == null || bytesRead >= windowEnd) {
+                windowStart = bytesRead;
+                windowEnd = Math.min(fileSize, windowStart + windowSize);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Can't map k-mers file", e);
+        }
+
+        int from = (int) (bytesRead - windowStart);
+        int len = (int) Math.min(workRangeSize, windowEnd - bytesRead);
+        ByteBuffer range = window.duplicate();
+        range.position(from);
+        range.limit(from + len);
+        bytesRead += len;
+        return range.slice();
+    }
+
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        raf.close();
+    }
+}
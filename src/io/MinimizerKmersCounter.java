@@ -0,0 +1,172 @@
+package io;
+
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongConsumer;
+
+/**
+ * In-memory k-mers counting with k-mers grouped by minimizers.<br></br>
+ * Loading workers split reads into super-k-mers (see SuperKmersWorker) with a bin for every counting thread,
+ * and pass blocks of super-k-mers to the thread, that owns the bin. All occurrences of a k-mer have the same
+ * minimizer, so every counting thread owns its k-mers outright and counts them in its own unsynchronized map.<br></br>
+ * The maps are returned as is, they have no common k-mers and their union is the same as the result
+ * of IOUtils.loadReads.
+ */
+public class MinimizerKmersCounter {
+
+    static final int QUEUE_BLOCKS = 64;     // per counting thread
+
+    /**
+     * Open hash maps can't hold more, see HashCommon.arraySize.
+     */
+    static final int MAX_OWNER_EXPECTED = 1 << 29;
+
+    private static final byte[] END = new byte[0];
+
+
+    /**
+     * @return maps with k-mers of every minimizer bin
+     */
+    public static Long2ShortOpenHashMap[] countReads(File[] files, int k, int minSeqLen,
+                                                     int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        long expected = IOUtils.estimateReadsKmers(files, k, minSeqLen, logger);
+
+        BlockingQueue<byte[]> freeBlocks = new LinkedBlockingQueue<byte[]>();
+        final Owner[] owners = new Owner[availableProcessors];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = new Owner(i, expected / owners.length, k, freeBlocks);
+            owners[i].start();
+        }
+        RoutingWorker[] workers = new RoutingWorker[availableProcessors];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RoutingWorker(owners, freeBlocks, k, minSeqLen);
+        }
+
+        try {
+            IOUtils.run(files, workers, null, logger);
+        } finally {
+            for (Owner owner : owners) {
+                owner.finish();
+            }
+        }
+        for (Owner owner : owners) {
+            if (owner.error != null) {
+                throw new ExecutionFailedException("K-mers counting failed", owner.error);
+            }
+        }
+
+        Long2ShortOpenHashMap[] maps = new Long2ShortOpenHashMap[owners.length];
+        long size = 0;
+        for (int i = 0; i < owners.length; i++) {
+            maps[i] = owners[i].hm;
+            size += maps[i].size();
+        }
+        Tool.debug(logger, "k-mers maps total size = " + NumUtils.groupDigits(size));
+        return maps;
+    }
+
+
+    /**
+     * Counting thread, that owns k-mers of one minimizer bin.
+     */
+    static class Owner extends Thread implements LongConsumer {
+        final int k;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_BLOCKS);
+        final BlockingQueue<byte[]> freeBlocks;
+        final byte[] seq = new byte[SuperKmersWorker.MAX_SUPER_KMER_LENGTH];
+
+        final Long2ShortOpenHashMap hm;
+        volatile Throwable error = null;
+
+        Owner(int index, long expected, int k, BlockingQueue<byte[]> freeBlocks) {
+            super("kmers-owner-" + index);
+            setDaemon(true);
+            this.k = k;
+            this.freeBlocks = freeBlocks;
+            hm = new Long2ShortOpenHashMap((int) Math.min(expected, MAX_OWNER_EXPECTED));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] block = queue.take();
+                    if (block == END) {
+                        break;
+                    }
+                    if (error == null) {
+                        try {
+                            SuperKmersWorker.forEachKmer(block, k, seq, this);
+                        } catch (Throwable e) {
+                            error = e;  // blocks are still taken, so loading workers don't hang
+                        }
+                    }
+                    freeBlocks.add(block);
+                }
+            } catch (InterruptedException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void accept(long kmer) {
+            if (hm.addTo(kmer, (short) 1) == Short.MAX_VALUE) {
+                hm.put(kmer, Short.MAX_VALUE);      // bounded, as in BigLong2ShortHashMap.addAndBound
+            }
+        }
+
+        void put(byte[] block) {
+            try {
+                queue.put(block);
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Loading worker was interrupted", e);
+            }
+        }
+
+        void finish() throws ExecutionFailedException {
+            try {
+                queue.put(END);
+                join();
+            } catch (InterruptedException e) {
+                interrupt();
+                throw new ExecutionFailedException("Thread was interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Loading worker, that passes blocks of super-k-mers to their owners.
+     */
+    static class RoutingWorker extends SuperKmersWorker {
+        final Owner[] owners;
+        final BlockingQueue<byte[]> freeBlocks;
+
+        RoutingWorker(Owner[] owners, BlockingQueue<byte[]> freeBlocks, int k, int minDnaLen) {
+            super(owners.length, k, minDnaLen);
+            this.owners = owners;
+            this.freeBlocks = freeBlocks;
+        }
+
+        @Override
+        byte[] blockFilled(int bin, byte[] block) {
+            owners[bin].put(block);
+            byte[] next = freeBlocks.poll();
+            return (next != null) ? next : new byte[BLOCK_SIZE];
+        }
+
+        @Override
+        public void flush() {
+            flushAll();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package io;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import structures.HyperLogLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes k-mers of BigLong2*HashMap in version 1 format by several threads.<br></br>
+ * Every small map is a shard: the first pass counts good k-mers of every shard and collects per-thread
+ * statistics, the second one writes shards to precomputed offsets of the single output file
+ * by positional FileChannel writes. The resulting file is identical to the one written by one thread.
+ * HyperLogLog sketch of written k-mers can be built in the first pass too, by per-thread sketches.
+ */
+class ParallelKmersPrinter {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+
+    /**
+     * Work on a single shard, counting or writing.
+     */
+    static abstract class ShardTask {
+        final int threshold;
+        final long[] good;      // good k-mers in every shard, filled by the first pass
+        long[] offsets = null;  // shard offsets in the file, set before the second pass
+
+        ShardTask(int shards, int threshold) {
+            this.threshold = threshold;
+            good = new long[shards];
+        }
+
+        abstract Object newThreadStats();
+        abstract void count(int shard, Object threadStats);
+        abstract void write(int shard, ByteBuffer buffer, FileChannel channel) throws IOException;
+    }
+
+
+    static long print(BigLong2ShortHashMap hm, int threshold, File outFile, File stFile,
+                      int availableProcessors) throws IOException {
+        return print(hm, threshold, outFile, stFile, null, availableProcessors);
+    }
+
+    /**
+     * Per-thread statistics of a short map: frequencies of all k-mers and the sketch of good ones.
+     */
+    private static class ShortThreadStats {
+        final long[] freq = new long[1 << 16];
+        final HyperLogLog sketch;
+
+        ShortThreadStats(boolean withSketch) {
+            sketch = withSketch ? new HyperLogLog() : null;
+        }
+    }
+
+    /**
+     * @param sketch if not null, good k-mers are added to it in the counting pass
+     */
+    static long print(final BigLong2ShortHashMap hm, int threshold, File outFile, File stFile,
+                      final HyperLogLog sketch, int availableProcessors) throws IOException {
+        ShardTask task = new ShardTask(hm.maps.length, threshold) {
+            @Override
+            Object newThreadStats() {
+                return new ShortThreadStats(sketch != null);
+            }
+
+            @Override
+            void count(int shard, Object threadStats) {
+                ShortThreadStats stats = (ShortThreadStats) threadStats;
+                long c = 0;
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    short value = entry.getValue();
+                    stats.freq[value & 0xFFFF]++;
+                    if (value > threshold) {
+                        c++;
+                        if (stats.sketch != null) {
+                            stats.sketch.add(entry.getKey());
+                        }
+                    }
+                }
+                good[shard] = c;
+            }
+
+            @Override
+            void write(int shard, ByteBuffer buffer, FileChannel channel) throws IOException {
+                long position = offsets[shard];
+                Iterator<MutableLongShortEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        if (buffer.remaining() < KmersLoadWorker.KMER_RECORD_SIZE) {
+                            position = flush(buffer, channel, position);
+                        }
+                        buffer.putLong(entry.getKey());
+                        buffer.putShort(entry.getValue());
+                    }
+                }
+                flush(buffer, channel, position);
+            }
+        };
+
+        Object[] threadStats = run(task, KmersLoadWorker.KMER_RECORD_SIZE, outFile, availableProcessors);
+
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        for (int v = 0; v < (1 << 16); v++) {
+            long c = 0;
+            for (Object s : threadStats) {
+                c += ((ShortThreadStats) s).freq[v];
+            }
+            if (c > 0) {
+                stats.set((short) v, c);
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        if (sketch != null) {
+            for (Object s : threadStats) {
+                sketch.merge(((ShortThreadStats) s).sketch);
+            }
+        }
+        return sum(task.good);
+    }
+
+    static long print(final BigLong2LongHashMap hm, int threshold, File outFile, File stFile,
+                      int availableProcessors) throws IOException {
+        ShardTask task = new ShardTask(hm.maps.length, threshold) {
+            @Override
+            Object newThreadStats() {
+                return new Long2LongOpenHashMap();
+            }
+
+            @Override
+            void count(int shard, Object threadStats) {
+                Long2LongOpenHashMap stats = (Long2LongOpenHashMap) threadStats;
+                long c = 0;
+                Iterator<MutableLongLongEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    long value = it.next().getValue();
+                    stats.addTo(value, 1);
+                    if (value > threshold) {
+                        c++;
+                    }
+                }
+                good[shard] = c;
+            }
+
+            @Override
+            void write(int shard, ByteBuffer buffer, FileChannel channel) throws IOException {
+                long position = offsets[shard];
+                Iterator<MutableLongLongEntry> it = hm.maps[shard].entryIterator();
+                while (it.hasNext()) {
+                    MutableLongLongEntry entry = it.next();
+                    if (entry.getValue() > threshold) {
+                        if (buffer.remaining() < LongKmersLoadWorker.KMER_RECORD_SIZE) {
+                            position = flush(buffer, channel, position);
+                        }
+                        buffer.putLong(entry.getKey());
+                        buffer.putLong(entry.getValue());
+                    }
+                }
+                flush(buffer, channel, position);
+            }
+        };
+
+        Object[] threadStats = run(task, LongKmersLoadWorker.KMER_RECORD_SIZE, outFile, availableProcessors);
+
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<Long>();
+        for (Object s : threadStats) {
+            for (Long2LongMap.Entry e : ((Long2LongOpenHashMap) s).long2LongEntrySet()) {
+                stats.set(e.getLongKey(), stats.get(e.getLongKey()) + e.getLongValue());
+            }
+        }
+        stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        return sum(task.good);
+    }
+
+
+    /**
+     * Runs both passes and returns per-thread statistics objects.
+     */
+    private static Object[] run(final ShardTask task, int recordSize, File outFile, int availableProcessors)
+            throws IOException {
+        final int shards = task.good.length;
+        int threads = Math.max(1, Math.min(availableProcessors, shards));
+        final Object[] threadStats = new Object[threads];
+        for (int i = 0; i < threads; i++) {
+            threadStats[i] = task.newThreadStats();
+        }
+
+        // counting...
+        runThreads(threads, new ShardRunnable(shards) {
+            @Override
+            void process(int thread, int shard) {
+                task.count(shard, threadStats[thread]);
+            }
+        });
+
+        task.offsets = new long[shards];
+        long size = 0;
+        for (int i = 0; i < shards; i++) {
+            task.offsets[i] = size;
+            size += task.good[i] * recordSize;
+        }
+
+        // writing...
+        RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+        try {
+            raf.setLength(size);
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer[] buffers = new ByteBuffer[threads];
+            for (int i = 0; i < threads; i++) {
+                buffers[i] = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            runThreads(threads, new ShardRunnable(shards) {
+                @Override
+                void process(int thread, int shard) throws IOException {
+                    task.write(shard, buffers[thread], channel);
+                }
+            });
+        } finally {
+            raf.close();
+        }
+        return threadStats;
+    }
+
+
+    /**
+     * Shards are taken by threads one by one, so small and large shards are balanced.
+     */
+    static abstract class ShardRunnable {
+        final int shards;
+        final AtomicInteger nextShard = new AtomicInteger(0);
+
+        ShardRunnable(int shards) {
+            this.shards = shards;
+        }
+
+        abstract void process(int thread, int shard) throws IOException;
+
+        void run(int thread) throws IOException {
+            int shard;
+            while ((shard = nextShard.getAndIncrement()) < shards) {
+                process(thread, shard);
+            }
+        }
+    }
+
+    static void runThreads(int threads, final ShardRunnable runnable) throws IOException {
+        final Throwable[] errors = new Throwable[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run(thread);
+                    } catch (Throwable e) {
+                        errors[thread] = e;
+                    }
+                }
+            }, "kmers-printer-" + i);
+            workers[i].start();
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Thread was interrupted", e);
+        }
+
+        for (Throwable e : errors) {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e != null) {
+                throw new IOException("K-mers printing failed", e);
+            }
+        }
+    }
+
+    static long flush(ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    private static long sum(long[] a) {
+        long s = 0;
+        for (long x : a) {
+            s += x;
+        }
+        return s;
+    }
+}
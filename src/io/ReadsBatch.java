@@ -0,0 +1,64 @@
+package io;
+
+import ru.ifmo.genetics.dna.LightDna;
+
+import java.util.Arrays;
+
+/**
+ * Batch of reads packed into one byte array: ASCII nucleotides of the i-th read are data()[start(i), end(i)).<br></br>
+ * Batches are recycled by ReadsDispatcher, so neither the batch nor its array can be kept after processing.
+ */
+public class ReadsBatch {
+
+    private static final byte[] LETTERS = {'A', 'G', 'C', 'T'};     // by 2-bit codes of Dna
+    static final int INITIAL_DATA_SIZE = 1 << 20;
+
+    private byte[] data = new byte[INITIAL_DATA_SIZE];
+    private int[] offsets;
+    private int size = 0;
+
+    ReadsBatch(int capacity) {
+        offsets = new int[capacity + 1];
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int start(int i) {
+        return offsets[i];
+    }
+
+    public int end(int i) {
+        return offsets[i + 1];
+    }
+
+    public int length(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+
+    void clear() {
+        size = 0;
+    }
+
+    void add(LightDna dna) {
+        int from = offsets[size];
+        int length = dna.length();
+        if (from + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(2 * data.length, from + length));
+        }
+        if (size + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        for (int i = 0; i < length; i++) {
+            data[from + i] = LETTERS[dna.nucAt(i)];
+        }
+        offsets[++size] = from + length;
+    }
+}
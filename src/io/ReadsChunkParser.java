@@ -0,0 +1,305 @@
+package io;
+
+import ru.ifmo.genetics.io.formats.QualityFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Parses reads of a plain FASTA or FASTQ file chunk by chunk, in the worker's own buffer.<br></br>
+ * A chunk [start, end) of the file owns all records, that begin in it. The parser finds the first such
+ * record by itself, and reads past the chunk end to finish the last one.
+ * A record of FASTQ file begins at '@' line, that is followed by '+' line two lines later;
+ * a record of FASTA file begins at the last of successive '>' (or ';') lines.<br></br>
+ * Reads are passed to the worker as slices of the buffer (multiline FASTA sequences are joined in place).
+ * Decompressed data comes in chunks, that are already cut at record boundaries (see lastRecordStart),
+ * such chunks are parsed as they are.
+ * As in ReadersUtils.readDnaLazy, reads with N are skipped, as well as FASTQ reads with zero quality.
+ */
+class ReadsChunkParser {
+
+    private static final byte OK = 0, SKIP = 1, INVALID = 2;
+
+    /**
+     * OK for A, C, G, T, SKIP for all other characters.
+     */
+    private static final byte[] NUCLEOTIDES = new byte[256];
+
+    static {
+        Arrays.fill(NUCLEOTIDES, SKIP);
+        for (char c : "ACGTacgt".toCharArray()) {
+            NUCLEOTIDES[c] = OK;
+        }
+    }
+
+
+    final FileChannel channel;    // null, if chunks are given by data
+    final boolean fastq;
+    final byte[] qualities;     // for FASTQ: OK, SKIP for zero phred, or INVALID
+
+    byte[] buf;
+    long bufStart;  // file position of buf[0]
+    int len;
+
+    long reads = 0, skipped = 0;
+
+    ReadsChunkParser(FileChannel channel, boolean fastq, QualityFormat qualityFormat, int chunkSize) {
+        this.channel = channel;
+        this.fastq = fastq;
+        buf = (channel != null) ? new byte[chunkSize + (chunkSize >> 2)] : null;
+        if (fastq) {
+            qualities = new byte[256];
+            for (int c = 0; c < 256; c++) {
+                try {
+                    qualities[c] = (qualityFormat.getPhred((char) c) == 0) ? SKIP : OK;
+                } catch (RuntimeException e) {
+                    qualities[c] = INVALID;
+                }
+            }
+        } else {
+            qualities = null;
+        }
+    }
+
+
+    /**
+     * Passes all reads of records, that begin in [start, end), to the worker.
+     */
+    void parse(long start, long end, ReadsWorker worker) throws IOException {
+        bufStart = Math.max(0, start - 1);
+        len = 0;
+        int i = 0;
+        if (start > 0) {
+            i = lineEnd(0) + 1;   // the first line, that begins not before start
+        }
+        if (fastq) {
+            parseFastq(i, start == 0, end, worker);
+        } else {
+            parseFasta(i, start == 0, end, worker);
+        }
+    }
+
+    /**
+     * Passes all reads of the data, that begins at a record start and ends at a record end, to the worker.
+     * The data is modified in place.
+     */
+    void parse(byte[] data, int length, ReadsWorker worker) throws IOException {
+        buf = data;
+        bufStart = 0;
+        len = length;
+        if (fastq) {
+            parseFastq(0, true, length, worker);
+        } else {
+            parseFasta(0, true, length, worker);
+        }
+    }
+
+    /**
+     * Finds the last position in data[0, length), where a record begins and the previous one ends.
+     * Only full lines are considered, so the data can be cut there before the rest of the record is known.
+     * @return found position, or -1, if there is no such position except 0
+     */
+    static int lastRecordStart(byte[] data, int length, boolean fastq) {
+        int lineEnd = length;   // '\n' index after the line at p, or length, if the line isn't finished
+        int nextLineEnd = -1;   // the same for the next line, -1 if there is no next line
+        for (int p = length - 1; p > 0; p--) {
+            if (data[p - 1] != '\n') {
+                continue;
+            }
+            if (fastq) {
+                // '@' line, sequence line and a full line starting with '+'
+                if (data[p] == '@' && nextLineEnd >= 0 && nextLineEnd + 1 < length
+                        && data[nextLineEnd + 1] == '+') {
+                    return p;
+                }
+            } else {
+                // the first of successive comment lines
+                if (isComment(data[p]) && !isComment(data[previousLineStart(data, p)])) {
+                    return p;
+                }
+            }
+            nextLineEnd = lineEnd;
+            lineEnd = p - 1;
+        }
+        return -1;
+    }
+
+    private static int previousLineStart(byte[] data, int p) {
+        int i = p - 1;
+        while (i > 0 && data[i - 1] != '\n') {
+            i--;
+        }
+        return i;
+    }
+
+    private static boolean isComment(byte b) {
+        return b == '>' || b == ';';
+    }
+
+
+    private void parseFastq(int i, boolean fileStart, long end, ReadsWorker worker) throws IOException {
+        if (!fileStart) {
+            while (available(i) && !isFastqRecordStart(i)) {
+                i = lineEnd(i) + 1;
+            }
+        }
+        while (available(i) && bufStart + i < end) {
+            if (buf[i] == '\n' || buf[i] == '\r') {     // empty line
+                i = lineEnd(i) + 1;
+                continue;
+            }
+            if (buf[i] != '@') {
+                throw new IOException("Bad FASTQ record at position " + (bufStart + i) + ", waiting \"@ID\" string");
+            }
+            int seq = lineEnd(i) + 1;
+            int seqEnd = lineEnd(seq);
+            int plus = seqEnd + 1;
+            if (!available(plus) || buf[plus] != '+') {
+                throw new IOException("Bad FASTQ record at position " + (bufStart + i) + ", waiting \"+ID\" string");
+            }
+            int qual = lineEnd(plus) + 1;
+            int qualEnd = lineEnd(qual);
+            seqEnd = trimCR(seq, seqEnd);
+            if (trimCR(qual, qualEnd) - qual != seqEnd - seq) {
+                throw new IOException("Bad FASTQ record at position " + (bufStart + i) +
+                        ": length of chars and quality is not the same");
+            }
+
+            reads++;
+            if (isGood(seq, seqEnd, qual)) {
+                worker.process(buf, seq, seqEnd);
+            } else {
+                skipped++;
+            }
+            i = qualEnd + 1;
+        }
+    }
+
+    private boolean isFastqRecordStart(int i) throws IOException {
+        if (buf[i] != '@') {
+            return false;
+        }
+        int plus = lineEnd(lineEnd(i) + 1) + 1;
+        return available(plus) && buf[plus] == '+';
+    }
+
+    private boolean isGood(int seq, int seqEnd, int qual) throws IOException {
+        boolean good = true;
+        for (int j = seq; j < seqEnd; j++) {
+            byte q = qualities[buf[qual + j - seq] & 0xFF];
+            if (q == INVALID) {
+                throw new IOException("Invalid quality code char: \"" + (char) buf[qual + j - seq] + "\"");
+            }
+            if (q != OK || NUCLEOTIDES[buf[j] & 0xFF] != OK) {
+                good = false;
+            }
+        }
+        return good;
+    }
+
+    private void parseFasta(int i, boolean fileStart, long end, ReadsWorker worker) throws IOException {
+        if (fileStart && available(0) && !isComment(0)) {
+            i = parseFastaSequence(0, worker);  // sequence without header at the beginning of the file
+        }
+        while (available(i)) {
+            if (!isComment(i)) {
+                i = lineEnd(i) + 1;     // only possible while looking for the first record of the chunk
+                continue;
+            }
+            int next = lineEnd(i) + 1;
+            if (available(next) && isComment(next)) {
+                i = next;
+                continue;
+            }
+            if (bufStart + i >= end) {
+                break;
+            }
+            i = parseFastaSequence(next, worker);
+        }
+    }
+
+    /**
+     * Joins sequence lines starting from index i in place, and passes the read to the worker.
+     * @return index of the next header line
+     */
+    private int parseFastaSequence(int i, ReadsWorker worker) throws IOException {
+        int seq = i, seqEnd = i;
+        boolean good = true;
+        while (available(i) && !isComment(i)) {
+            int lineEnd = lineEnd(i);
+            int n = trimCR(i, lineEnd) - i;
+            System.arraycopy(buf, i, buf, seqEnd, n);
+            for (int j = seqEnd; j < seqEnd + n; j++) {
+                if (NUCLEOTIDES[buf[j] & 0xFF] != OK) {
+                    good = false;
+                }
+            }
+            seqEnd += n;
+            i = lineEnd + 1;
+        }
+        if (seqEnd > seq) {
+            reads++;
+            if (good) {
+                worker.process(buf, seq, seqEnd);
+            } else {
+                skipped++;
+            }
+        }
+        return i;
+    }
+
+    private boolean isComment(int i) {
+        return isComment(buf[i]);
+    }
+
+    private int trimCR(int lineStart, int lineEnd) {
+        return (lineEnd > lineStart && buf[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+    }
+
+
+    /**
+     * @return index of '\n', that ends the line containing buf[i], or the end of data
+     */
+    private int lineEnd(int i) throws IOException {
+        while (true) {
+            while (i < len) {
+                if (buf[i] == '\n') {
+                    return i;
+                }
+                i++;
+            }
+            if (!load()) {
+                return len;
+            }
+        }
+    }
+
+    /**
+     * @return true, if buf[i] is in the file
+     */
+    private boolean available(int i) throws IOException {
+        while (i >= len) {
+            if (!load()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean load() throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        if (len == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);   // record is longer than the rest of the buffer
+        }
+        int n = channel.read(ByteBuffer.wrap(buf, len, buf.length - len), bufStart + len);
+        if (n <= 0) {
+            return false;
+        }
+        len += n;
+        return true;
+    }
+}
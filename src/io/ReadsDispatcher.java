@@ -3,6 +3,8 @@ package io;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.DnaQ;
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.io.formats.QualityFormat;
 import ru.ifmo.genetics.io.sources.Source;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
@@ -11,30 +13,192 @@ import ru.ifmo.genetics.utils.iterators.ProgressableIterator;
 import ru.ifmo.genetics.utils.tool.Tool;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Hands out reads to workers, either as batches of reads from a reads source (see ReadsBatch), or,
+ * for plain FASTA/FASTQ files, as file chunks, that workers parse by themselves (see ReadsChunkParser).
+ * In the latter case only the chunk offset is shared between workers.
+ * Gzipped FASTA/FASTQ files are decompressed on separate threads, and workers take decompressed chunks
+ * from a queue (see GzipChunkSource).<br></br>
+ * Processed batches are returned to the dispatcher and reused, so batches don't produce garbage.
+ */
 public class ReadsDispatcher {
     final Logger logger = Logger.getLogger("reads-dispatcher");
 
     final ProgressableIterator<Dna> iterator;
     public final int workRangeSize;
     long reads = 0;
+    private final ConcurrentLinkedQueue<ReadsBatch> freeBatches = new ConcurrentLinkedQueue<ReadsBatch>();
 
     final BigLong2ShortHashMap hm; // for debug output
 
+    // for reading by chunks
+    final File file;
+    final RandomAccessFile raf;     // for plain files
+    final GzipChunkSource gzip;     // for gzipped files
+    final AtomicLong chunksTaken = new AtomicLong(0);
+    final boolean fastq;
+    final QualityFormat qualityFormat;
+    public final int chunkSize;
+    long nextChunk = 0;
+    long skipped = 0;
+
     public ReadsDispatcher(Source<Dna> reader, int workRangeSize, BigLong2ShortHashMap hmForMonitoring) {
         this.iterator = reader.iterator();
         this.workRangeSize = workRangeSize;
 //        Tool.debug(logger, "Using " + workRangeSize + " reads as workRangeSize");
         this.hm = hmForMonitoring;
+        file = null;
+        raf = null;
+        gzip = null;
+        fastq = false;
+        qualityFormat = null;
+        chunkSize = 0;
+    }
+
+    /**
+     * Creates dispatcher, that hands out chunks of FASTA/FASTQ file.
+     * @param inflaterThreads number of threads to decompress BGZF file
+     */
+    public ReadsDispatcher(File file, int chunkSize, int inflaterThreads,
+                           BigLong2ShortHashMap hmForMonitoring) throws IOException {
+        String format = ReadersUtils.detectFileFormat(file);
+        if (!canReadByChunks(file)) {
+            throw new IllegalArgumentException("Can't read " + format + " file " + file.getName() + " by chunks");
+        }
+        iterator = null;
+        workRangeSize = 0;
+        hm = hmForMonitoring;
+        this.file = file;
+        this.chunkSize = chunkSize;
+        fastq = format.startsWith("fastq");
+        qualityFormat = fastq ? ReadersUtils.determineQualityFormat(file) : null;
+        if (format.endsWith(".gz")) {
+            raf = null;
+            gzip = new GzipChunkSource(file, fastq, chunkSize, inflaterThreads);
+            Tool.debug(logger, "Decompressing " + file.getName() + (gzip.bgzf ?
+                    " by " + inflaterThreads + " threads (BGZF)" : " on a separate thread"));
+        } else {
+            raf = new RandomAccessFile(file, "r");
+            gzip = null;
+        }
     }
 
+    /**
+     * @return true, if the file is in FASTA or FASTQ format, plain or gzipped
+     */
+    public static boolean canReadByChunks(File file) throws IOException {
+        String format = ReadersUtils.detectFileFormat(file);
+        return format.equals("fasta") || format.equals("fastq")
+                || format.equals("fasta.gz") || format.equals("fastq.gz");
+    }
+
+    public boolean isChunked() {
+        return raf != null || gzip != null;
+    }
+
+    ReadsChunkParser newParser() {
+        return new ReadsChunkParser((raf != null) ? raf.getChannel() : null, fastq, qualityFormat, chunkSize);
+    }
+
+    /**
+     * @return file offset of the next chunk, or -1, if the whole file has been handed out
+     */
+    public synchronized long getChunk() throws IOException {
+        long start = nextChunk;
+        if (start >= raf.length()) {
+            return -1;
+        }
+        nextChunk += chunkSize;
+        if (start > 0 && start % (256L * chunkSize) == 0) {
+            printProgress(start);
+        }
+        return start;
+    }
+
+    /**
+     * @return next chunk of decompressed data, or null, if the whole file has been processed
+     */
+    GzipChunkSource.Chunk takeChunk() throws IOException, InterruptedException {
+        GzipChunkSource.Chunk chunk = gzip.take();
+        if (chunk != null && chunksTaken.incrementAndGet() % 256 == 0) {
+            printProgress(gzip.bytesDecompressed);
+        }
+        return chunk;
+    }
+
+    void releaseChunk(GzipChunkSource.Chunk chunk) {
+        gzip.release(chunk);
+    }
+
+    private void printProgress(long bytes) {
+        Tool.debug(logger, "Processed " + NumUtils.memoryAsString(bytes) + " of " + file.getName() + ":");
+        if (hm != null) {
+            Tool.debug(logger, "Total hm size = " + NumUtils.groupDigits(hm.size()) + ", " +
+                    "size in hm.maps = {" + NumUtils.groupDigits(hm.maps[0].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[1].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[2].size()) + ", "
+                    + NumUtils.groupDigits(hm.maps[3].size()) + ", ...}");
+        }
+        Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
+    }
+
+    synchronized void addParsed(long parsedReads, long skippedReads) {
+        reads += parsedReads - skippedReads;
+        skipped += skippedReads;
+    }
+
+    /**
+     * Closes the file and stops decompression, if the file was read by chunks.
+     */
+    public void close() throws IOException {
+        if (gzip != null) {
+            gzip.close();
+        }
+        if (raf != null) {
+            raf.close();
+        }
+        if (isChunked()) {
+            if (skipped != 0) {
+                Tool.debug(logger, "Skipped " + NumUtils.groupDigits(skipped) + " (" +
+                        String.format("%.1f", skipped * 100.0 / (reads + skipped)) + "%) " +
+                        "out of " + NumUtils.groupDigits(reads + skipped) + " reads (because of N nucleotide), " +
+                        "file " + file.getName());
+            }
+        }
+    }
+
+
+    /**
+     * @return next batch of reads, or null, if all reads have been handed out
+     */
+    public ReadsBatch getWorkRange() {
+        ReadsBatch batch = freeBatches.poll();
+        if (batch == null) {
+            batch = new ReadsBatch(workRangeSize);
+        }
+        batch.clear();
+        fill(batch);
+        if (batch.size() == 0) {
+            freeBatches.add(batch);
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Returns processed batch to be reused.
+     */
+    public void releaseWorkRange(ReadsBatch batch) {
+        freeBatches.add(batch);
+    }
 
-    public synchronized List<Dna> getWorkRange() {
-        List<Dna> list = new ArrayList<Dna>(workRangeSize);
-        while ((list.size() < workRangeSize) && iterator.hasNext()) {
-            list.add(iterator.next());
+    private synchronized void fill(ReadsBatch batch) {
+        while ((batch.size() < workRangeSize) && iterator.hasNext()) {
+            batch.add(iterator.next());
             ++reads;
 
             if (reads % 2500000 == 0) {
@@ -49,6 +213,5 @@ public class ReadsDispatcher {
                 Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
             }
         }
-        return list.isEmpty() ? null : list;
     }
 }
@@ -1,43 +1,89 @@
 package io;
 
-import ru.ifmo.genetics.dna.Dna;
-
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.io.IOException;
 
 public abstract class ReadsWorker implements Runnable {
 
     private ReadsDispatcher dispatcher = null;
-    private CountDownLatch latch = null;
 
     boolean interrupted = false;
 
 
     void setDispatcher(ReadsDispatcher dispatcher) {
         this.dispatcher = dispatcher;
+        this.interrupted = false;
     }
-    void setLatch(CountDownLatch latch) {
-        this.latch = latch;
-    }
 
 
 
-    public abstract void process(List<Dna> reads);
+    /**
+     * Processes one read, given as ASCII nucleotides seq[from, to) (only A, C, G, T in any case).
+     */
+    public abstract void process(byte[] seq, int from, int to);
+
+    /**
+     * Processes batch of reads from a reads source, default implementation processes reads one by one.
+     */
+    public void process(ReadsBatch batch) {
+        byte[] data = batch.data();
+        for (int i = 0; i < batch.size(); i++) {
+            process(data, batch.start(i), batch.end(i));
+        }
+    }
+
+    /**
+     * Is called after all reads of the dispatcher are processed, e.g. to write out buffered results.
+     */
+    public void flush() {
+    }
 
 
     @Override
     public void run() {
-        if (dispatcher == null || latch == null) {
+        if (dispatcher == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            List<Dna> list = dispatcher.getWorkRange();
-            if (list == null) {
-                break;
+        if (dispatcher.isChunked()) {
+            runByChunks();
+        } else {
+            while (!interrupted) {
+                ReadsBatch batch = dispatcher.getWorkRange();
+                if (batch == null) {
+                    break;
+                }
+                process(batch);
+                dispatcher.releaseWorkRange(batch);
+            }
+        }
+        flush();
+    }
+
+    private void runByChunks() {
+        ReadsChunkParser parser = dispatcher.newParser();
+        try {
+            while (!interrupted) {
+                if (dispatcher.gzip != null) {
+                    GzipChunkSource.Chunk chunk = dispatcher.takeChunk();
+                    if (chunk == null) {
+                        break;
+                    }
+                    parser.parse(chunk.data, chunk.length, this);
+                    dispatcher.releaseChunk(chunk);
+                } else {
+                    long start = dispatcher.getChunk();
+                    if (start < 0) {
+                        break;
+                    }
+                    parser.parse(start, start + dispatcher.chunkSize, this);
+                }
             }
-            process(list);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't read reads file", e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Reads worker was interrupted", e);
+        } finally {
+            dispatcher.addParsed(parser.reads, parser.skipped);
         }
-        latch.countDown();
     }
 
     public void interrupt() {
@@ -0,0 +1,138 @@
+package io;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.ConcurrentBloomFilter;
+
+/**
+ * Per-thread buffer of increments to BigLong2ShortHashMap.<br></br>
+ * Increments are partitioned by the small map of hm, the key belongs to (murmurHash3((int) key) & mask,
+ * as in hm itself), neighbouring small maps share a partition if there are too many of them.
+ * Every partition is a small hash table, where increments of the same key are summed up.
+ * When a partition fills, all its keys are added to hm at once, so the thread updates a few small maps
+ * in a row and takes a lock once per distinct key instead of once per increment.<br></br>
+ * Resulting values are the same as with direct addAndBound calls, as the sum is bounded anyway.
+ * Call flush() before using hm.<br></br>
+ * If a singletons filter is given, the first sighting of a key is only recorded in the filter,
+ * and the key gets to hm on the second one, with one more increment for the first sighting.
+ * So keys seen once don't occupy hm, values of other keys are exact (except filter false positives,
+ * that get one extra).
+ */
+class ShardedIncrements {
+
+    static final int MAX_LOG_PARTITIONS = 10;
+    static final int LOG_TOTAL_ENTRIES = 15;
+
+    final BigLong2ShortHashMap hm;
+    final FrequencyHistogram histogram;
+    final ConcurrentBloomFilter singletonsFilter;
+    long firstSightings = 0;
+
+    private final int shardMask, partitionShift;
+    private final int slotMask, maxEntries;
+    private final long[][] keys;
+    private final int[][] incs;     // 0 for a free slot
+    private final int[][] used;     // filled slots in order of filling
+    private final int[] sizes;
+
+
+    /**
+     * @param histogram histogram to update on flush, or null
+     */
+    ShardedIncrements(BigLong2ShortHashMap hm, FrequencyHistogram histogram) {
+        this(hm, histogram, null);
+    }
+
+    /**
+     * @param histogram histogram to update on flush, or null
+     * @param singletonsFilter filter of already seen keys, or null
+     */
+    ShardedIncrements(BigLong2ShortHashMap hm, FrequencyHistogram histogram, ConcurrentBloomFilter singletonsFilter) {
+        this.hm = hm;
+        this.histogram = histogram;
+        this.singletonsFilter = singletonsFilter;
+
+        int logShards = Integer.numberOfTrailingZeros(hm.maps.length);
+        int logPartitions = Math.min(logShards, MAX_LOG_PARTITIONS);
+        shardMask = hm.maps.length - 1;
+        partitionShift = logShards - logPartitions;
+
+        maxEntries = 1 << (LOG_TOTAL_ENTRIES - logPartitions);
+        slotMask = 2 * maxEntries - 1;
+        int partitions = 1 << logPartitions;
+        keys = new long[partitions][2 * maxEntries];
+        incs = new int[partitions][2 * maxEntries];
+        used = new int[partitions][maxEntries];
+        sizes = new int[partitions];
+    }
+
+
+    void add(long key, short inc) {
+        if (inc <= 0) {
+            apply(key, inc);
+            return;
+        }
+        int p = (HashCommon.murmurHash3((int) key) & shardMask) >>> partitionShift;
+        long[] k = keys[p];
+        int[] v = incs[p];
+        int slot = (int) HashCommon.murmurHash3(key) & slotMask;
+        while (v[slot] != 0 && k[slot] != key) {
+            slot = (slot + 1) & slotMask;
+        }
+        if (v[slot] == 0) {
+            k[slot] = key;
+            used[p][sizes[p]++] = slot;
+        }
+        v[slot] = Math.min(v[slot] + inc, Short.MAX_VALUE);
+
+        if (sizes[p] == maxEntries) {
+            flush(p);
+        }
+    }
+
+    private void flush(int p) {
+        long[] k = keys[p];
+        int[] v = incs[p];
+        int[] slots = used[p];
+        for (int i = 0; i < sizes[p]; i++) {
+            int slot = slots[i];
+            apply(k[slot], (short) v[slot]);
+            v[slot] = 0;
+        }
+        sizes[p] = 0;
+    }
+
+    private void apply(long key, short inc) {
+        if (singletonsFilter == null || inc <= 0) {
+            addToMap(key, inc);
+            return;
+        }
+        if (singletonsFilter.add(key)) {
+            firstSightings++;
+            inc--;      // kept by the filter
+            if (inc == 0) {
+                return;
+            }
+        }
+        if (addToMap(key, inc) == 0) {
+            addToMap(key, (short) 1);   // the key has just got to hm, returning its first sighting
+        }
+    }
+
+    private short addToMap(long key, short inc) {
+        short prev = hm.addAndBound(key, inc);
+        if (histogram != null) {
+            histogram.update(prev, inc);
+        }
+        return prev;
+    }
+
+    /**
+     * Adds all buffered increments to hm.
+     */
+    void flush() {
+        for (int p = 0; p < sizes.length; p++) {
+            flush(p);
+        }
+    }
+}
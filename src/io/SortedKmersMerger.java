@@ -0,0 +1,125 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * K-way merge of k-mers files sorted by key (version 2 format, see BlockKmersFormat).<br></br>
+ * Emits every k-mer present in any of the files once, in increasing order, together with
+ * its values in every file. Memory used depends only on the number of files.
+ */
+public class SortedKmersMerger {
+
+    final SortedKmersReader[] readers;
+
+    /**
+     * Binary min-heap of indices of non-exhausted readers, ordered by their current keys.
+     */
+    final int[] heap;
+    int heapSize = 0;
+
+    /**
+     * Current k-mer, valid after next() returned true.
+     */
+    public long key;
+
+    /**
+     * Values of current k-mer in every file, 0 if the file doesn't contain it.
+     */
+    public final long[] values;
+
+    /**
+     * Indices of files containing current k-mer, first presentCount elements are valid.
+     */
+    public final int[] present;
+    public int presentCount = 0;
+
+
+    public SortedKmersMerger(File[] files) throws IOException {
+        readers = new SortedKmersReader[files.length];
+        heap = new int[files.length];
+        values = new long[files.length];
+        present = new int[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                readers[i] = new SortedKmersReader(files[i]);
+                if (readers[i].next()) {
+                    heap[heapSize++] = i;
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    public int filesCount() {
+        return readers.length;
+    }
+
+    public boolean next() throws IOException {
+        for (int i = 0; i < presentCount; i++) {
+            values[present[i]] = 0;
+        }
+        presentCount = 0;
+        if (heapSize == 0) {
+            return false;
+        }
+
+        key = readers[heap[0]].key;
+        while (heapSize > 0 && readers[heap[0]].key == key) {
+            int f = heap[0];
+            SortedKmersReader reader = readers[f];
+            values[f] = reader.value;
+            present[presentCount++] = f;
+            if (reader.next()) {
+                if (reader.key <= key) {
+                    throw new IOException("K-mers file " + reader.file + " is not sorted");
+                }
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+        }
+        return true;
+    }
+
+    private void siftDown(int i) {
+        int f = heap[i];
+        long fKey = readers[f].key;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= heapSize) {
+                break;
+            }
+            if (c + 1 < heapSize && readers[heap[c + 1]].key < readers[heap[c]].key) {
+                c++;
+            }
+            if (readers[heap[c]].key >= fKey) {
+                break;
+            }
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = f;
+    }
+
+    public void close() throws IOException {
+        IOException exception = null;
+        for (SortedKmersReader reader : readers) {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sequential reader of k-mers file in version 2 format (see BlockKmersFormat), i.e. sorted by key.<br></br>
+ * Blocks are inflated by small portions, so memory used doesn't depend on the block size.
+ */
+public class SortedKmersReader {
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    public final File file;
+    public final BlockKmersFormat.Header header;
+
+    /**
+     * Current record, valid after next() returned true.
+     * Short values (value width 2) are sign-extended the same way loaders do.
+     */
+    public long key, value;
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater();
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] raw = new byte[BUFFER_SIZE];
+    private int rawPos = 0, rawLimit = 0;
+
+    private long position;
+    private int block = -1;
+    private int blockRecordsLeft = 0;
+    private int compressedLeft = 0;
+
+
+    public SortedKmersReader(File file) throws IOException {
+        this.file = file;
+        in = new BufferedInputStream(new FileInputStream(file), 1 << 20);
+        try {
+            header = BlockKmersFormat.readHeader(new DataInputStream(in));
+        } catch (IOException e) {
+            in.close();
+            throw new IOException("Can't read sorted k-mers from " + file + ": " + e.getMessage(), e);
+        }
+        position = header.size();
+    }
+
+    /**
+     * @return true if all files are in version 2 format, so they can be read by this class
+     */
+    public static boolean areSorted(File[] files) throws IOException {
+        for (File file : files) {
+            if (!BlockKmersFormat.isBlockFormat(file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    public boolean next() throws IOException {
+        while (blockRecordsLeft == 0) {
+            if (block + 1 == header.blocksCount()) {
+                return false;
+            }
+            startBlock(block + 1);
+        }
+        key += readVarLong();
+        value = readVarLong();
+        if (header.valueWidth == 2) {
+            value = (short) value;
+        }
+        blockRecordsLeft--;
+        return true;
+    }
+
+    private void startBlock(int b) throws IOException {
+        long offset = header.blockOffset[b];
+        if (offset < position) {
+            throw new IOException("Corrupted k-mers file " + file + ": blocks are not in order");
+        }
+        while (position < offset) {
+            long skipped = in.skip(offset - position);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of k-mers file " + file);
+            }
+            position += skipped;
+        }
+
+        block = b;
+        blockRecordsLeft = header.blockRecords[b];
+        compressedLeft = header.blockCompressedLength[b];
+        key = header.blockFirstKey[b];
+        inflater.reset();
+        rawPos = rawLimit = 0;
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (rawPos == rawLimit) {
+                fill();
+            }
+            b = raw[rawPos++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+
+    private void fill() throws IOException {
+        try {
+            while (true) {
+                int n = inflater.inflate(raw, 0, raw.length);
+                if (n > 0) {
+                    rawPos = 0;
+                    rawLimit = n;
+                    return;
+                }
+                if (inflater.finished() || compressedLeft == 0) {
+                    throw new IOException("Corrupted k-mers file " + file + ": block " + block + " is too short");
+                }
+                int len = in.read(input, 0, Math.min(input.length, compressedLeft));
+                if (len < 0) {
+                    throw new IOException("Unexpected end of k-mers file " + file);
+                }
+                position += len;
+                compressedLeft -= len;
+                inflater.setInput(input, 0, len);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted k-mers file " + file + ": block " + block, e);
+        }
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
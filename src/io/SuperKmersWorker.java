@@ -0,0 +1,153 @@
+package io;
+
+import algo.RollingKmers;
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Splits reads into super-k-mers (runs of consecutive k-mers with the same minimizer bin).
+ * Minimizers are taken over canonical m-mers, so a k-mer and its reverse complement always get to the same bin.<br></br>
+ * Super-k-mers are packed to blocks of their bins in 2-bit form: length (short) and nucleotides, four per byte.
+ * Zero length ends the block data. Full blocks are passed to blockFilled, see forEachKmer for reading them.
+ */
+abstract class SuperKmersWorker extends ReadsWorker {
+
+    static final int MINIMIZER_LENGTH = 11;
+    static final int BLOCK_SIZE = 1 << 14;
+    static final int MAX_SUPER_KMER_LENGTH = 4096;
+
+    private static final byte[] LETTERS = {'A', 'G', 'C', 'T'};     // by 2-bit codes
+
+    final int k, m, minDnaLen;
+    final long mMask;
+    final byte[][] blocks;
+    final int[] blockLengths;
+
+    long[] hashes = new long[1024];     // of canonical m-mers of the read
+    int[] window = new int[1024];       // indices of m-mers with increasing hashes
+
+    SuperKmersWorker(int bins, int k, int minDnaLen) {
+        this.k = k;
+        this.m = Math.min(k, MINIMIZER_LENGTH);
+        this.minDnaLen = minDnaLen;
+        mMask = (1L << (2 * m)) - 1;
+        blocks = new byte[bins][BLOCK_SIZE];
+        blockLengths = new int[bins];
+    }
+
+
+    /**
+     * Passes the block of the bin with the end mark to its destination.
+     * @return empty block to fill next (can be the same one)
+     */
+    abstract byte[] blockFilled(int bin, byte[] block);
+
+    @Override
+    public void process(byte[] seq, int from, int to) {
+        int length = to - from;
+        if (length < minDnaLen || length < k) {
+            return;
+        }
+        int mmers = length - m + 1;
+        if (hashes.length < mmers) {
+            hashes = new long[length];
+            window = new int[length];
+        }
+        long fw = 0, rc = 0;
+        int rcShift = 2 * (m - 1);
+        for (int i = 0; i < length; i++) {
+            long code = RollingKmers.code(seq[from + i]);
+            fw = ((fw << 2) | code) & mMask;
+            rc = (rc >>> 2) | ((3 - code) << rcShift);
+            if (i >= m - 1) {
+                hashes[i - m + 1] = HashCommon.murmurHash3(Math.min(fw, rc));
+            }
+        }
+
+        int w = k - m + 1;      // m-mers in a k-mer
+        int head = 0, tail = 0;
+        int superStart = 0, superBin = -1;
+        for (int i = 0; i < mmers; i++) {
+            while (tail > head && hashes[window[tail - 1]] >= hashes[i]) {
+                tail--;
+            }
+            window[tail++] = i;
+            int kmer = i - w + 1;
+            if (kmer < 0) {
+                continue;
+            }
+            if (window[head] < kmer) {
+                head++;
+            }
+            int bin = (int) ((hashes[window[head]] >>> 1) % blocks.length);
+            if (kmer == 0) {
+                superBin = bin;
+            } else if (bin != superBin || kmer - superStart + k > MAX_SUPER_KMER_LENGTH) {
+                add(seq, from + superStart, kmer - superStart + k - 1, superBin);
+                superStart = kmer;
+                superBin = bin;
+            }
+        }
+        add(seq, from + superStart, length - superStart, superBin);
+    }
+
+    private void add(byte[] seq, int from, int length, int bin) {
+        int size = 2 + (length + 3) / 4;
+        if (blockLengths[bin] + size > BLOCK_SIZE - 2) {
+            flush(bin);
+        }
+        byte[] block = blocks[bin];
+        int pos = blockLengths[bin];
+        block[pos++] = (byte) (length >>> 8);
+        block[pos++] = (byte) length;
+        for (int i = 0; i < length; i += 4) {
+            int packed = 0;
+            for (int j = i; j < i + 4 && j < length; j++) {
+                packed |= RollingKmers.code(seq[from + j]) << (2 * (j - i));
+            }
+            block[pos++] = (byte) packed;
+        }
+        blockLengths[bin] = pos;
+    }
+
+    private void flush(int bin) {
+        if (blockLengths[bin] == 0) {
+            return;
+        }
+        byte[] block = blocks[bin];
+        block[blockLengths[bin]] = 0;
+        block[blockLengths[bin] + 1] = 0;
+        blocks[bin] = blockFilled(bin, block);
+        blockLengths[bin] = 0;
+    }
+
+    void flushAll() {
+        for (int bin = 0; bin < blocks.length; bin++) {
+            flush(bin);
+        }
+    }
+
+
+    /**
+     * Passes all k-mers of the block's super-k-mers to consumer.
+     * @param seq buffer for unpacked super-k-mers of MAX_SUPER_KMER_LENGTH size
+     */
+    static void forEachKmer(byte[] block, int k, byte[] seq, LongConsumer consumer) {
+        int pos = 0;
+        while (pos + 2 <= block.length) {
+            int length = ((block[pos] & 0xFF) << 8) | (block[pos + 1] & 0xFF);
+            pos += 2;
+            if (length == 0) {
+                break;  // end of block data
+            }
+            for (int i = 0; i < length; i += 4) {
+                int packed = block[pos++];
+                for (int j = i; j < i + 4 && j < length; j++) {
+                    seq[j] = LETTERS[(packed >>> (2 * (j - i))) & 3];
+                }
+            }
+            RollingKmers.forEachKmer(seq, 0, length, k, consumer);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Blocked Bloom filter for k-mers, that can be filled by many threads at once.<br></br>
+ * All bits of a key lie in the same 64-bit word, so a key is added by a single CAS,
+ * and exactly one of the threads adding the same key concurrently sees it as new.
+ * False positive rate is about 0.5% with 16 bits per key.
+ */
+public class ConcurrentBloomFilter {
+
+    public static final int DEFAULT_BITS_PER_KEY = 16;
+    static final int BITS_PER_HASH = 6;
+    static final int HASHES = 4;
+    static final int MAX_LOG_WORDS = 30;
+
+    final AtomicLongArray words;
+    final int wordMask;
+
+
+    public ConcurrentBloomFilter(long expectedKeys) {
+        this(expectedKeys, DEFAULT_BITS_PER_KEY);
+    }
+
+    public ConcurrentBloomFilter(long expectedKeys, int bitsPerKey) {
+        int logWords = 0;
+        while (logWords < MAX_LOG_WORDS && (64L << logWords) < expectedKeys * bitsPerKey) {
+            logWords++;
+        }
+        words = new AtomicLongArray(1 << logWords);
+        wordMask = (1 << logWords) - 1;
+    }
+
+
+    /**
+     * @return true, if the key wasn't in the filter before this call
+     */
+    public boolean add(long key) {
+        long hash = HashCommon.murmurHash3(key);
+        int index = (int) (hash >>> (HASHES * BITS_PER_HASH)) & wordMask;
+        long mask = bits(hash);
+        while (true) {
+            long old = words.get(index);
+            if ((old & mask) == mask) {
+                return false;
+            }
+            if (words.compareAndSet(index, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean mightContain(long key) {
+        long hash = HashCommon.murmurHash3(key);
+        int index = (int) (hash >>> (HASHES * BITS_PER_HASH)) & wordMask;
+        long mask = bits(hash);
+        return (words.get(index) & mask) == mask;
+    }
+
+    private static long bits(long hash) {
+        long mask = 0;
+        for (int i = 0; i < HASHES; i++) {
+            mask |= 1L << ((hash >>> (i * BITS_PER_HASH)) & 63);
+        }
+        return mask;
+    }
+
+    /**
+     * @return size of the filter in bytes
+     */
+    public long sizeInBytes() {
+        return 8L * words.length();
+    }
+}
@@ -1,5 +1,6 @@
 package structures;
 
+import io.AsyncFileOutputStream;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -78,7 +79,7 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
 
     public static void saveComponents(Collection<ConnectedComponent> components, String fp) throws IOException {
-        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fp)));
+        DataOutputStream outputStream = new DataOutputStream(new AsyncFileOutputStream(new File(fp)));
         outputStream.writeInt(components.size());
 
         for (ConnectedComponent component : components) {
@@ -0,0 +1,100 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog sketch for estimating the number of distinct k-mers.<br></br>
+ * Sketches with the same precision can be merged, the merged sketch estimates the size of the union.
+ * Not thread-safe, every thread should fill its own sketch.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_LOG_REGISTERS = 14;    // 16 K registers, ~0.8% standard error
+
+    final int logRegisters;
+    final byte[] registers;
+
+
+    public HyperLogLog() {
+        this(DEFAULT_LOG_REGISTERS);
+    }
+
+    public HyperLogLog(int logRegisters) {
+        if (logRegisters < 4 || logRegisters > 24) {
+            throw new IllegalArgumentException("logRegisters must be in [4, 24], got " + logRegisters);
+        }
+        this.logRegisters = logRegisters;
+        registers = new byte[1 << logRegisters];
+    }
+
+
+    public void add(long key) {
+        long hash = HashCommon.murmurHash3(key);
+        int index = (int) (hash >>> (64 - logRegisters));
+        // rank of the first one-bit in the remaining bits, the lowest bit is set to bound the rank
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << logRegisters) | (1L << (logRegisters - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Merges other sketch into this one.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.logRegisters != logRegisters) {
+            throw new IllegalArgumentException("Can't merge sketches with different precision: " +
+                    logRegisters + " and " + other.logRegisters);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return estimated number of distinct added keys
+     */
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = (m >= 128) ? 0.7213 / (1 + 1.079 / m) : (m == 64 ? 0.709 : (m == 32 ? 0.697 : 0.673));
+        double estimate = alpha * m * (double) m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);   // linear counting for small cardinalities
+        }
+        return Math.round(estimate);
+    }
+
+    public int logRegisters() {
+        return logRegisters;
+    }
+
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(logRegisters);
+        out.write(registers);
+    }
+
+    public static HyperLogLog read(DataInput in) throws IOException {
+        int logRegisters = in.readInt();
+        if (logRegisters < 4 || logRegisters > 24) {
+            throw new IOException("Bad HyperLogLog sketch: logRegisters = " + logRegisters);
+        }
+        HyperLogLog hll = new HyperLogLog(logRegisters);
+        in.readFully(hll.registers);
+        return hll;
+    }
+}
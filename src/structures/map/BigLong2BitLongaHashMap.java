@@ -69,6 +69,12 @@ public class BigLong2BitLongaHashMap implements Long2BitLongaHashMapInterface {
         return maps[n].set(key, bitIndex);
     }
 
+    @Override
+    public void setBit(long key, int bitIndex) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        maps[n].setBit(key, bitIndex);
+    }
+
     @Override
     public boolean get(long key, int bitIndex) {
         int n = HashCommon.murmurHash3((int) key) & mask;
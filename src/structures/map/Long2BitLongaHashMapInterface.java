@@ -11,6 +11,11 @@ public interface Long2BitLongaHashMapInterface extends Writable, Iterable<Mutabl
      */
     public long[] set(long key, int bitIndex);
 
+    /**
+     * Sets the bit like set(key, bitIndex), but doesn't return the previous value.
+     */
+    public void setBit(long key, int bitIndex);
+
     /**
      * @return the value of the bit with the specified @bitIndex
      */
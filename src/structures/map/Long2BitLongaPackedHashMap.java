@@ -0,0 +1,574 @@
+package structures.map;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Variant of Long2BitLongaHashMap with values of all cells packed into one long array:
+ * the value of the cell pos takes words [pos * wordsPerKey, (pos + 1) * wordsPerKey).<br></br>
+ * There is no separate array object per key, so a cell takes 8 * wordsPerKey bytes for the value
+ * instead of the same plus array header and reference.<br></br>
+ * Values returned by get, getWithEmpty, valueAt and entry iterator are copies, the map isn't changed through them.<br></br>
+ * <br></br>
+ * setBit is lock-free: a free cell is claimed by CAS of the key, and the bit is set by atomic OR.
+ * The lock is taken only to enlarge the map (and for the FREE key). While enlarging, the old data is frozen
+ * and is being copied, so the writer, that finds its data frozen after setting the bit,
+ * sets the bit again in the new data (setting a bit is idempotent).
+ */
+public class Long2BitLongaPackedHashMap implements Long2BitLongaHashMapInterface {
+
+    private final static int BITS_PER_WORD = 6; // size(long)=64=2^6
+
+    public static final long FREE = LongHashSet.FREE;
+    public static final float DEFAULT_MAX_LOAD_FACTOR = LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+
+
+
+    protected static class MapData {
+        protected final AtomicLongArray keys;
+        protected final AtomicLongArray values;
+        protected final int capacity, capacityMask, maxFill;
+        protected final int wordsPerKey, sizeBitSet;
+
+        protected final AtomicInteger size = new AtomicInteger();
+        protected volatile boolean containsFreeKey = false;
+        protected volatile AtomicLongArray valueForFreeKey;
+        protected volatile boolean frozen = false;     // is being copied to the enlarged data
+
+        public MapData(int capacity, float maxLoadFactor, int sizeBitSet) {
+            if (Integer.bitCount(capacity) != 1) {  // i.e. not power of 2
+                throw new RuntimeException("Bad capacity " + capacity + ".");
+            }
+            wordsPerKey = (sizeBitSet>>BITS_PER_WORD) + 1;
+            if ((long) capacity * wordsPerKey > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Can't create single array for " + capacity + " values of " +
+                        wordsPerKey + " words!");
+            }
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicLongArray(capacity * wordsPerKey);
+            valueForFreeKey = new AtomicLongArray(wordsPerKey);
+            this.capacity = capacity;
+            capacityMask = capacity - 1;
+            maxFill = (int) Math.ceil(capacity * maxLoadFactor);
+            this.sizeBitSet = sizeBitSet;
+        }
+    }
+
+    protected volatile MapData data;
+    protected final ReentrantLock writeLock = new ReentrantLock();
+    protected float maxLoadFactor;
+
+    // constructors
+    public Long2BitLongaPackedHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR, 0);  // 1 M elements
+    }
+    public Long2BitLongaPackedHashMap(int capacity) {
+        this(
+                NumUtils.getPowerOf2(capacity),
+                DEFAULT_MAX_LOAD_FACTOR,
+                0
+        );
+    }
+    public Long2BitLongaPackedHashMap(int logCapacity, float maxLoadFactor, int sizeBitSet) {
+        if (logCapacity > 30) {
+            throw new IllegalArgumentException("log capacity > 30!");
+        }
+
+        this.maxLoadFactor = maxLoadFactor;
+        int capacity = 1 << logCapacity;
+        data = new MapData(capacity, maxLoadFactor, sizeBitSet);
+    }
+
+
+    /**
+     * NOT WORKING for FREE key, check it manually!
+     * @return position of the key or of the free cell to put it, or -1, if the key isn't found in the full table
+     */
+    protected static int getPositionInt(MapData curData, long key) {
+        int pos = (int) (HashCommon.murmurHash3(key) & curData.capacityMask);
+        for (int i = 0; i < curData.capacity; i++) {
+            long cur = curData.keys.get(pos);
+            if (cur == FREE || cur == key) {
+                return pos;
+            }
+            pos = (pos + 1) & curData.capacityMask;
+        }
+        return -1;
+    }
+
+    private static void or(AtomicLongArray array, int i, long bits) {
+        long prev = array.get(i);
+        while ((prev & bits) != bits && !array.compareAndSet(i, prev, prev | bits)) {
+            prev = array.get(i);
+        }
+    }
+
+
+    @Override
+    public void setBit(long key, int bitIndex) {
+        int word = bitIndex>>BITS_PER_WORD;
+        long bit = 1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+        if (key == FREE) {
+            writeLock.lock();
+            try {
+                MapData curData = data;
+                or(curData.valueForFreeKey, word, bit);
+                if (!curData.containsFreeKey) {
+                    curData.containsFreeKey = true;
+                    curData.size.incrementAndGet();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+
+        while (true) {
+            MapData curData = data;
+            if (curData.frozen) {
+                waitForEnlarging();
+                continue;
+            }
+            int pos = getPositionInt(curData, key);
+            if (pos == -1) {
+                enlargeAndRehash(curData);
+                continue;
+            }
+            boolean added = false;
+            if (curData.keys.get(pos) == FREE) {
+                if (!curData.keys.compareAndSet(pos, FREE, key)) {
+                    continue;   // the cell is taken by another thread, looking again
+                }
+                added = true;
+            }
+            or(curData.values, pos * curData.wordsPerKey + word, bit);
+            if (curData.frozen) {
+                waitForEnlarging();
+                continue;       // the bit can miss the copy
+            }
+            if (added && curData.size.incrementAndGet() >= curData.maxFill) {
+                enlargeAndRehash(curData);
+            }
+            return;
+        }
+    }
+
+    @Override
+    public long[] set(long key, int bitIndex) {
+        writeLock.lock();   // for consistent previous value
+        try {
+            long[] prev = get(key);
+            setBit(key, bitIndex);
+            return prev;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void waitForEnlarging() {
+        writeLock.lock();   // enlarging thread holds the lock until new data is set
+        writeLock.unlock();
+    }
+
+    private void enlargeAndRehash(MapData curData) {
+        writeLock.lock();
+        try {
+            if (curData != data) {
+                return;     // already enlarged
+            }
+            if (curData.capacity > Integer.MAX_VALUE / 2) {
+                throw new RuntimeException("Can't enlarge map (can't create single array of 2^31 elements)!");
+            }
+            curData.frozen = true;
+            try {
+                int newCapacity = 2 * curData.capacity;
+                MapData newData = new MapData(newCapacity, maxLoadFactor, curData.sizeBitSet);
+
+                // copying elements
+                int words = curData.wordsPerKey;
+                int size = 0;
+                for (int oldPos = 0; oldPos < curData.capacity; oldPos++) {
+                    long key = curData.keys.get(oldPos);
+                    if (key != FREE) {
+                        int pos = getPositionInt(newData, key);
+                        newData.keys.set(pos, key);
+                        for (int j = 0; j < words; j++) {
+                            newData.values.set(pos * words + j, curData.values.get(oldPos * words + j));
+                        }
+                        size++;
+                    }
+                }
+                newData.containsFreeKey = curData.containsFreeKey;
+                newData.valueForFreeKey = curData.valueForFreeKey;
+                newData.size.set(size + (curData.containsFreeKey ? 1 : 0));
+
+                data = newData;
+            } catch (RuntimeException | Error e) {
+                curData.frozen = false;
+                throw e;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return index of the first word of the key's value in values array, or -1, if not found
+     */
+    private static int valueStart(MapData curData, long key) {
+        int pos = getPositionInt(curData, key);
+        return (pos != -1 && curData.keys.get(pos) == key) ? pos * curData.wordsPerKey : -1;
+    }
+
+    private static long[] copy(AtomicLongArray array, int from, int length) {
+        long[] value = new long[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = array.get(from + i);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean get(long key, int bitIndex) {
+        MapData curData = data;
+        long word;
+        if (key == FREE) {
+            if (!curData.containsFreeKey) {
+                return false;
+            }
+            word = curData.valueForFreeKey.get(bitIndex>>BITS_PER_WORD);
+        } else {
+            int from = valueStart(curData, key);
+            if (from == -1) {
+                return false;
+            }
+            word = curData.values.get(from + (bitIndex>>BITS_PER_WORD));
+        }
+        return ((word>>(bitIndex&((1L<<BITS_PER_WORD) - 1)))&1) == 1;
+    }
+
+    @Override
+    public long[] get(long key) {
+        MapData curData = data;
+        if (key == FREE) {
+            if (!curData.containsFreeKey) {
+                return null;
+            }
+            return copy(curData.valueForFreeKey, 0, curData.wordsPerKey);
+        }
+        int from = valueStart(curData, key);
+        if (from == -1) {
+            return null;
+        }
+        return copy(curData.values, from, curData.wordsPerKey);
+    }
+
+    @Override
+    public long[] getWithEmpty(long key) {
+        long[] value = get(key);
+        if (value == null)
+            return new long[1];
+        return value;
+    }
+
+    @Override
+    public int getCardinality(long key) {
+        return getCardinality(key, 0, data.wordsPerKey << BITS_PER_WORD);
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        MapData curData = data;
+        AtomicLongArray value;
+        int start;
+        if (key == FREE) {
+            if (!curData.containsFreeKey) {
+                return 0;
+            }
+            value = curData.valueForFreeKey;
+            start = 0;
+        } else {
+            value = curData.values;
+            start = valueStart(curData, key);
+            if (start == -1) {
+                return 0;
+            }
+        }
+        if (from >= to) {
+            return 0;
+        }
+
+        int wordFrom = start + (from>>BITS_PER_WORD);
+        int wordTo = start + ((to - 1)>>BITS_PER_WORD);     // inclusive
+        long maskFrom = -1L << (from&((1L<<BITS_PER_WORD) - 1));
+        long maskTo = -1L >>> (63 - ((to - 1)&((1L<<BITS_PER_WORD) - 1)));
+        if (wordFrom == wordTo) {
+            return Long.bitCount(value.get(wordFrom) & maskFrom & maskTo);
+        }
+        int count = Long.bitCount(value.get(wordFrom) & maskFrom);
+        for (int i = wordFrom + 1; i < wordTo; i++) {
+            count += Long.bitCount(value.get(i));
+        }
+        count += Long.bitCount(value.get(wordTo) & maskTo);
+        return count;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        MapData curData = data;
+        if (key == FREE) {
+            return curData.containsFreeKey;
+        }
+        int pos = getPositionInt(curData, key);
+        return pos != -1 && curData.keys.get(pos) == key;
+    }
+
+    @Override
+    public long size() { return data.size.get(); }
+
+    @Override
+    public long capacity() { return data.capacity; }
+
+
+    /**
+     * USE ONLY then no other thread is working with this map!!!
+     */
+    @Override
+    public void reset() {
+        writeLock.lock();
+        try {
+            MapData curData = data;
+            data = new MapData(curData.capacity, maxLoadFactor, curData.sizeBitSet);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * USE ONLY then no other thread is working with this map!!!
+     */
+    @Override
+    public void resetValues() {
+        writeLock.lock();
+        try {
+            MapData curData = data;
+            for (int i = 0; i < curData.values.length(); i++) {
+                curData.values.set(i, 0);
+            }
+            curData.valueForFreeKey = new AtomicLongArray(curData.wordsPerKey);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public void prepare() {}
+    @Override
+    public long maxPosition() { return data.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        MapData curData = data;
+        if (key == FREE) {
+            return curData.capacity;
+        }
+        int pos = getPositionInt(curData, key);
+        if (pos != -1 && curData.keys.get(pos) == key) {
+            return pos;
+        }
+        return -1;  // not true, if data link is updated
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        MapData curData = data;
+        if (pos == curData.capacity) {
+            return FREE;    // ambiguous answer
+        }
+        return curData.keys.get((int) pos);
+    }
+
+    @Override
+    public long[] valueAt(long pos) {
+        MapData curData = data;
+        if (pos == curData.capacity) {
+            if (!curData.containsFreeKey) {
+                return null;
+            }
+            return copy(curData.valueForFreeKey, 0, curData.wordsPerKey);
+        }
+
+        if (curData.keys.get((int) pos) == FREE) {
+            return null;
+        }
+        return copy(curData.values, (int) pos * curData.wordsPerKey, curData.wordsPerKey);
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        MapData curData = data;
+        if (pos == curData.capacity) {
+            return curData.containsFreeKey;
+        }
+        return curData.keys.get((int) pos) != FREE;
+    }
+
+
+    /**
+     * Writes the map in the format of Long2BitLongaHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        MapData curData = data;
+
+        out.writeInt(curData.sizeBitSet);
+        out.writeInt(curData.capacity);
+        out.writeInt(curData.size.get());
+        out.writeFloat(maxLoadFactor);
+
+        int words = curData.wordsPerKey;
+        for (int i = 0; i < curData.capacity; i++) {
+            out.writeLong(curData.keys.get(i));
+            out.writeInt(words);
+            for (int j = 0; j < words; j++) {
+                out.writeLong(curData.values.get(i * words + j));
+            }
+        }
+        out.writeBoolean(curData.containsFreeKey);
+        out.writeInt(curData.valueForFreeKey.length());
+        for (int j = 0; j < curData.valueForFreeKey.length(); j++) {
+            out.writeLong(curData.valueForFreeKey.get(j));
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int sizeBitSet = in.readInt();
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+
+        MapData newData = new MapData(capacity, maxLoadFactor, sizeBitSet);
+
+        int words = newData.wordsPerKey;
+        for (int i = 0; i < capacity; i++) {
+            newData.keys.set(i, in.readLong());
+            int len = in.readInt();
+            for (int j = 0; j < len; j++) {
+                long word = in.readLong();
+                if (j < words) {
+                    newData.values.set(i * words + j, word);
+                }
+            }
+        }
+        newData.containsFreeKey = in.readBoolean();
+        int len = in.readInt();
+        AtomicLongArray bytes = new AtomicLongArray(Math.max(len, words));
+        for (int j = 0; j < len; j++) {
+            bytes.set(j, in.readLong());
+        }
+        newData.valueForFreeKey = bytes;
+        newData.size.set(size);
+
+        data = newData;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongBitLongaEntry> it = entryIterator();
+        return new Iterator<MutableLong>() {
+            private final MutableLong value = new MutableLong();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                value.setValue(it.next().getKey());
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MutableLongBitLongaEntry> entryIterator() {
+        return new MyIterator(data);
+    }
+
+    /**
+     * Entry value is the same buffer for all entries, it is overwritten by next().
+     */
+    protected class MyIterator implements Iterator<MutableLongBitLongaEntry> {
+        private final MapData curData;
+        private int index = 0;
+        private final long[] value;
+        private final MutableLongBitLongaEntry entry = new MutableLongBitLongaEntry();
+
+        MyIterator(MapData curData) {
+            this.curData = curData;
+            value = new long[curData.wordsPerKey];
+            entry.setValue(value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((index < curData.capacity) && (curData.keys.get(index) == FREE)) {
+                index++;
+            }
+            if (index < curData.capacity) {
+                return true;
+            }
+            if (index == curData.capacity && curData.containsFreeKey) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongBitLongaEntry next() {
+            if (hasNext()){
+                AtomicLongArray array = curData.values;
+                int from = index * value.length;
+                if (index < curData.capacity) {
+                    entry.setKey(curData.keys.get(index));
+                } else {
+                    entry.setKey(FREE);
+                    array = curData.valueForFreeKey;
+                    from = 0;
+                }
+                for (int j = 0; j < value.length; j++) {
+                    value[j] = array.get(from + j);
+                }
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -11,23 +11,140 @@ import java.util.BitSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+/**
+ * Values are stored as words of bits without BitSet objects.<br></br>
+ * The first word (bits 0..63) of every cell is kept inline in values array, so maps with up to 64 bits per value
+ * take 8 bytes per cell for values. Other words of the value are allocated in overflow pool of the map
+ * on the first set of such a bit, extraWords per cell. Bits beyond the size of the value are supported,
+ * extraWords is enlarged then.<br></br>
+ * BitSets returned by get, getWithEmpty, valueAt and entry iterator are copies, the map isn't changed through them.
+ */
 public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMapInterface {
 
+    private final static int BITS_PER_WORD = 6; // size(long)=64=2^6
+    private final static int MIN_OVERFLOW_SIZE = 1 << 10;
+
     protected class MapData extends SetData {
-        protected final BitSet[] values;
+        protected final long[] values;          // the first word of every value
+        protected volatile int[] overflowStart; // start of other words of the value in overflow + 1 (0 if none), null if no overflow
+        protected volatile long[] overflow;
+        protected volatile int extraWords;      // words per cell in overflow
+        protected int overflowSize = 0;
         protected volatile BitSet valueForFreeKey;
         protected volatile int sizeBitSet;
 
         public MapData(int capacity, float maxLoadFactor, int sizeBitSet) {
             super(capacity, maxLoadFactor);
-            values = new BitSet[capacity];
-            for (int i=0; i<capacity; i++) {
-                values[i] = new BitSet();
-            }
-            //valueForFreeKey = new BitSet(sizeBitSet);
+            values = new long[capacity];
+            extraWords = Math.max(0, (sizeBitSet - 1)>>BITS_PER_WORD);
             valueForFreeKey = new BitSet();
             this.sizeBitSet = sizeBitSet;
         }
+
+        protected int words() {
+            return extraWords + 1;
+        }
+
+        /**
+         * @return the w-th word of the value of the cell pos
+         */
+        protected long word(int pos, int w) {
+            if (w == 0) {
+                return values[pos];
+            }
+            int[] starts = overflowStart;
+            long[] words = overflow;
+            if (starts == null || starts[pos] == 0) {
+                return 0;
+            }
+            int i = starts[pos] - 1 + w - 1;
+            return (w <= extraWords && i < words.length) ? words[i] : 0;
+        }
+
+        /**
+         * Call under writeLock.
+         */
+        protected void setBit(int pos, int bitIndex) {
+            int w = bitIndex>>BITS_PER_WORD;
+            long bit = 1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+            if (w == 0) {
+                values[pos] |= bit;
+                return;
+            }
+            if (w > extraWords) {
+                enlargeExtraWords(w);
+            }
+            if (overflowStart == null) {
+                overflowStart = new int[capacity];
+            }
+            if (overflowStart[pos] == 0) {
+                overflowStart[pos] = allocateOverflow() + 1;
+            }
+            overflow[overflowStart[pos] - 1 + w - 1] |= bit;
+        }
+
+        /**
+         * Copies the value of the cell oldPos of data from to the cell pos. Call under writeLock.
+         */
+        protected void copyValue(MapData from, int oldPos, int pos) {
+            values[pos] = from.values[oldPos];
+            if (from.overflowStart != null && from.overflowStart[oldPos] != 0) {
+                if (from.extraWords > extraWords) {
+                    enlargeExtraWords(from.extraWords);
+                }
+                if (overflowStart == null) {
+                    overflowStart = new int[capacity];
+                }
+                int start = allocateOverflow();
+                System.arraycopy(from.overflow, from.overflowStart[oldPos] - 1, overflow, start, from.extraWords);
+                overflowStart[pos] = start + 1;
+            }
+        }
+
+        private int allocateOverflow() {
+            if (overflow == null || overflowSize + extraWords > overflow.length) {
+                int newLength = Math.max(MIN_OVERFLOW_SIZE * extraWords,
+                        (overflow == null) ? 0 : overflow.length + overflow.length / 2);
+                overflow = (overflow == null) ? new long[newLength] : Arrays.copyOf(overflow, newLength);
+            }
+            int start = overflowSize;
+            overflowSize += extraWords;
+            return start;
+        }
+
+        private void enlargeExtraWords(int newExtraWords) {
+            if (overflow != null) {
+                int cells = overflowSize / extraWords;
+                long[] newOverflow = new long[Math.max(MIN_OVERFLOW_SIZE, cells + cells / 2) * newExtraWords];
+                for (int pos = 0; pos < capacity; pos++) {
+                    int start = overflowStart[pos] - 1;
+                    if (start != -1) {
+                        int newStart = (start / extraWords) * newExtraWords;
+                        System.arraycopy(overflow, start, newOverflow, newStart, extraWords);
+                        overflowStart[pos] = newStart + 1;
+                    }
+                }
+                overflowSize = cells * newExtraWords;
+                overflow = newOverflow;
+            }
+            extraWords = newExtraWords;
+        }
+
+        protected BitSet toBitSet(int pos) {
+            long[] words = new long[words()];
+            for (int w = 0; w < words.length; w++) {
+                words[w] = word(pos, w);
+            }
+            return BitSet.valueOf(words);
+        }
+
+        protected void resetValues() {
+            Arrays.fill(values, 0);
+            overflowStart = null;
+            overflow = null;
+            overflowSize = 0;
+            valueForFreeKey = new BitSet();
+        }
     }
 
     protected volatile Long2BitSetHashMap.MapData data;
@@ -66,7 +183,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             writeLock.lock();
             try {
                 MapData curData = data;
-                BitSet prev = curData.valueForFreeKey;
+                BitSet prev = curData.containsFreeKey ? (BitSet) curData.valueForFreeKey.clone() : null;
                 curData.valueForFreeKey.set(bitIndex);
                 if (!curData.containsFreeKey) {
                     curData.containsFreeKey = true;
@@ -84,8 +201,8 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             writeLock.lock();
             try {
                 if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
-                    BitSet prev = curData.values[pos];
-                    curData.values[pos].set(bitIndex);
+                    BitSet prev = (curData.keys[pos] == FREE) ? null : curData.toBitSet(pos);
+                    curData.setBit(pos, bitIndex);
                     if (curData.keys[pos] == FREE) {
                         curData.keys[pos] = key;
                         curData.size++;
@@ -115,7 +232,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             if (key != FREE) {
                 int pos = getPositionInt(newData, key);
                 newData.keys[pos] = key;
-                newData.values[pos] = curData.values[oldPos];
+                newData.copyValue(curData, oldPos, pos);
             }
         }
         newData.containsFreeKey = curData.containsFreeKey;
@@ -128,7 +245,16 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
 
     @Override
     public boolean get(long key, int bitIndex) {
-        return getWithEmpty(key).get(bitIndex);
+        Long2BitSetHashMap.MapData curData = data;
+        if (key == FREE) {
+            return curData.containsFreeKey && curData.valueForFreeKey.get(bitIndex);
+        }
+        int pos = getPositionInt(curData, key);
+        if (curData.keys[pos] != key) {
+            return false;
+        }
+        long word = curData.word(pos, bitIndex>>BITS_PER_WORD);
+        return ((word>>(bitIndex&((1L<<BITS_PER_WORD) - 1)))&1) == 1;
     }
 
     @Override
@@ -138,11 +264,11 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             if (!curData.containsFreeKey) {
                 return null;
             }
-            return curData.valueForFreeKey;
+            return (BitSet) curData.valueForFreeKey.clone();
         }
         int pos = getPositionInt(curData, key);
         if (curData.keys[pos] == key) {
-            return curData.values[pos];
+            return curData.toBitSet(pos);
         } else {
             // assuming keys[pos] == FREE
             return null;
@@ -175,10 +301,8 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         Long2BitSetHashMap.MapData curData = data;
         try {
             Arrays.fill(curData.keys, FREE);
-            Arrays.fill(curData.values, null);
+            curData.resetValues();
             curData.containsFreeKey = false;
-            //curData.valueForFreeKey = new BitSet(curData.sizeBitSet);
-            curData.valueForFreeKey = new BitSet();
             curData.size = 0;
         } finally {
             writeLock.unlock();
@@ -190,9 +314,7 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         writeLock.lock();
         Long2BitSetHashMap.MapData curData = data;
         try {
-            Arrays.fill(curData.values, null);
-            //curData.valueForFreeKey = new BitSet(curData.sizeBitSet);
-            curData.valueForFreeKey = new BitSet();
+            curData.resetValues();
         } finally {
             writeLock.unlock();
         }
@@ -211,13 +333,13 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             if (!curData.containsFreeKey) {
                 return null;
             }
-            return curData.valueForFreeKey;
+            return (BitSet) curData.valueForFreeKey.clone();
         }
 
         if (curData.keys[(int) pos] == FREE) {
             return null;
         }
-        return curData.values[(int) pos];
+        return curData.toBitSet((int) pos);
     }
 
 
@@ -232,12 +354,14 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
 
         for (int i = 0; i < curData.capacity; i++) {
             out.writeLong(curData.keys[i]);
-            out.writeInt(curData.values[i].length());
-            out.write(curData.values[i].toByteArray());
+            byte[] bytes = curData.toBitSet(i).toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
         }
         out.writeBoolean(curData.containsFreeKey);
-        out.writeInt(curData.valueForFreeKey.length());
-        out.write(curData.valueForFreeKey.toByteArray());
+        byte[] bytes = curData.valueForFreeKey.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
     @Override
@@ -255,7 +379,10 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
             int len = in.readInt();
             byte[] bytes = new byte[len];
             in.readFully(bytes);
-            newData.values[i] = BitSet.valueOf(bytes);
+            BitSet value = BitSet.valueOf(bytes);
+            for (int bit = value.nextSetBit(0); bit >= 0; bit = value.nextSetBit(bit + 1)) {
+                newData.setBit(i, bit);
+            }
         }
         newData.containsFreeKey = in.readBoolean();
         int len = in.readInt();
@@ -273,13 +400,18 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         return new Long2BitSetHashMap.MyIterator(data);
     }
 
+    /**
+     * Entry value is the same BitSet for all entries, it is overwritten by next().
+     */
     protected class MyIterator implements Iterator<MutableLongBitSetEntry> {
         private final Long2BitSetHashMap.MapData curData;
         private int index = 0;
+        private final BitSet value = new BitSet();
         private final MutableLongBitSetEntry entry = new MutableLongBitSetEntry();
 
         MyIterator(Long2BitSetHashMap.MapData curData) {
             this.curData = curData;
+            entry.setValue(value);
         }
 
         @Override
@@ -299,13 +431,19 @@ public class Long2BitSetHashMap extends LongHashSet implements Long2BitSetHashMa
         @Override
         public MutableLongBitSetEntry next() {
             if (hasNext()){
+                value.clear();
                 if (index < curData.capacity) {
                     entry.setKey(curData.keys[index]);
-                    entry.setValue(curData.values[index]);
+                    for (int w = 0; w < curData.words(); w++) {
+                        long word = curData.word(index, w);
+                        for (; word != 0; word &= word - 1) {
+                            value.set((w<<BITS_PER_WORD) + Long.numberOfTrailingZeros(word));
+                        }
+                    }
                 }
                 if (index == curData.capacity) {
                     entry.setKey(FREE);
-                    entry.setValue(curData.valueForFreeKey);
+                    value.or(curData.valueForFreeKey);
                 }
                 index++;
                 return entry;
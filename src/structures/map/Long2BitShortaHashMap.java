@@ -106,6 +106,38 @@ public class Long2BitShortaHashMap extends LongHashSet implements Long2BitShorta
         }
     }
 
+    @Override
+    public void setBit(long key, int bitIndex) {
+        if (key == FREE) {
+            set(key, bitIndex);
+            return;
+        }
+
+        while (true) {
+            MapData curData = data;
+            int pos = getPositionInt(curData, key);
+            writeLock.lock();
+            try {
+                if (curData == data && (curData.keys[pos] == FREE || curData.keys[pos] == key)) {  // i.e. nothing has changed
+                    if (curData.values[pos] == null) {
+                        curData.values[pos] = new short[(data.sizeBitSet>>BITS_PER_WORD) + 1];
+                    }
+                    curData.values[pos][bitIndex>>BITS_PER_WORD]|=1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+                    if (curData.keys[pos] == FREE) {
+                        curData.keys[pos] = key;
+                        curData.size++;
+                        if (curData.size >= curData.maxFill) {
+                            enlargeAndRehash();
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
     private void enlargeAndRehash() {
         MapData curData = data;
         if (curData.capacity > Integer.MAX_VALUE / 2) {
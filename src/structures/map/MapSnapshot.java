@@ -0,0 +1,404 @@
+package structures.map;
+
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of a loaded k-mers map: raw open addressing tables of all its small maps as they are in memory,
+ * so the map is reopened by mapping the file, without reading records and rehashing.<br></br>
+ * <br></br>
+ *
+ * Format (in the byte order of the machine, that wrote it, which is kept in the header):
+ * header of HEADER_SIZE bytes (magic, version, type, byte order, number of small maps, sizeBitSet,
+ * max load factor, frequency threshold and frequency sum of loaded k-mers), then every small map:
+ * capacity, size and FREE key presence (MAP_HEADER_SIZE bytes), keys (8 bytes per cell) and values
+ * (valueBytes per cell, plus one cell for FREE key), padded to 8 bytes, see OffHeapTable.<br></br>
+ * <br></br>
+ *
+ * Reopened maps are off-heap maps over the mapping. If the file is writable it's mapped privately
+ * (copy-on-write), so the map can be changed without changing the file, otherwise it's read-only.
+ * Pages are loaded by OS on first access, so opening takes time of reading headers only.
+ */
+public class MapSnapshot {
+    static final long MAGIC = 0x4d46534e41505348L;     // "MFSNAPSH"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int MAP_HEADER_SIZE = 16;
+    static final long WINDOW_SIZE = 1L << 30;   // small maps are mapped by windows of ~1 Gb
+
+    public enum Type {
+        SHORT, BIT_SHORTA, BIT_LONGA
+    }
+
+    public static class Header {
+        public final Type type;
+        public final int maps, sizeBitSet;
+        public final float maxLoadFactor;
+        final ByteOrder order;
+
+        /**
+         * Frequency threshold the k-mers were loaded with, and the frequency sum of loaded k-mers (-1, if unknown).
+         */
+        public final long freqThreshold, freqSum;
+
+        Header(Type type, ByteOrder order, int maps, int sizeBitSet, float maxLoadFactor,
+               long freqThreshold, long freqSum) {
+            this.type = type;
+            this.order = order;
+            this.maps = maps;
+            this.sizeBitSet = sizeBitSet;
+            this.maxLoadFactor = maxLoadFactor;
+            this.freqThreshold = freqThreshold;
+            this.freqSum = freqSum;
+        }
+
+        int valueBytes() {
+            switch (type) {
+                case SHORT:
+                    return 2;
+                case BIT_SHORTA:
+                    return 2 * ((sizeBitSet >> 4) + 1);
+                default:
+                    return 8 * ((sizeBitSet >> 6) + 1);
+            }
+        }
+    }
+
+
+    // ----------------------------  writing  ----------------------------
+
+    /**
+     * Writes the snapshot of the map. USE ONLY then no other threads are changing the map!
+     */
+    public static void write(BigLong2ShortHashMap hm, File file, long freqThreshold, long freqSum)
+            throws IOException {
+        Header header = new Header(Type.SHORT, ByteOrder.nativeOrder(), hm.maps.length, 0,
+                LongHashSet.DEFAULT_MAX_LOAD_FACTOR, freqThreshold, freqSum);
+        try (Output out = new Output(file, header)) {
+            for (Long2ShortHashMap map : hm.maps) {
+                int capacity = (int) map.capacity();
+                out.mapHeader(capacity, map.size(), map.containsAt(capacity));
+                for (int pos = 0; pos < capacity; pos++) {
+                    out.putLong(map.keyAt(pos));
+                }
+                for (int pos = 0; pos <= capacity; pos++) {
+                    out.putShort(map.containsAt(pos) ? map.valueAt(pos) : 0);
+                }
+                out.align();
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot of the map. USE ONLY then no other threads are changing the map!
+     */
+    public static void write(BigLong2BitShortaHashMap hm, File file, long freqThreshold, long freqSum)
+            throws IOException {
+        int sizeBitSet = hm.maps[0].data.sizeBitSet;
+        if (hm.maps[0] instanceof OffHeapLong2BitShortaHashMap) {
+            sizeBitSet = ((OffHeapLong2BitShortaHashMap) hm.maps[0]).sizeBitSet;
+        }
+        Header header = new Header(Type.BIT_SHORTA, ByteOrder.nativeOrder(), hm.maps.length, sizeBitSet,
+                LongHashSet.DEFAULT_MAX_LOAD_FACTOR, freqThreshold, freqSum);
+        int words = header.valueBytes() / 2;
+        try (Output out = new Output(file, header)) {
+            for (Long2BitShortaHashMap map : hm.maps) {
+                int capacity = (int) map.capacity();
+                out.mapHeader(capacity, map.size(), map.containsAt(capacity));
+                for (int pos = 0; pos < capacity; pos++) {
+                    out.putLong(map.keyAt(pos));
+                }
+                for (int pos = 0; pos <= capacity; pos++) {
+                    short[] value = map.containsAt(pos) ? map.valueAt(pos) : null;
+                    for (int j = 0; j < words; j++) {
+                        out.putShort((value != null && j < value.length) ? value[j] : 0);
+                    }
+                }
+                out.align();
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot of the map. USE ONLY then no other threads are changing the map!
+     */
+    public static void write(BigLong2BitLongaPackedHashMap hm, File file, long freqThreshold, long freqSum)
+            throws IOException {
+        int sizeBitSet = hm.maps[0].data.sizeBitSet;
+        if (hm.maps[0] instanceof OffHeapLong2BitLongaHashMap) {
+            sizeBitSet = ((OffHeapLong2BitLongaHashMap) hm.maps[0]).sizeBitSet;
+        }
+        Header header = new Header(Type.BIT_LONGA, ByteOrder.nativeOrder(), hm.maps.length, sizeBitSet,
+                LongHashSet.DEFAULT_MAX_LOAD_FACTOR, freqThreshold, freqSum);
+        int words = header.valueBytes() / 8;
+        try (Output out = new Output(file, header)) {
+            for (Long2BitLongaPackedHashMap map : hm.maps) {
+                int capacity = (int) map.capacity();
+                out.mapHeader(capacity, map.size(), map.containsAt(capacity));
+                for (int pos = 0; pos < capacity; pos++) {
+                    out.putLong(map.keyAt(pos));
+                }
+                for (int pos = 0; pos <= capacity; pos++) {
+                    long[] value = map.containsAt(pos) ? map.valueAt(pos) : null;
+                    for (int j = 0; j < words; j++) {
+                        out.putLong((value != null && j < value.length) ? value[j] : 0);
+                    }
+                }
+                out.align();
+            }
+        }
+    }
+
+    /**
+     * Buffered writer of snapshot data in the native byte order.
+     */
+    private static class Output implements AutoCloseable {
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+        private long written = 0;
+
+        Output(File file, Header header) throws IOException {
+            stream = new FileOutputStream(file);
+            channel = stream.getChannel();
+            putLong(MAGIC);
+            putInt(VERSION);
+            putInt(header.type.ordinal());
+            putInt(header.order == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+            putInt(header.maps);
+            putInt(header.sizeBitSet);
+            putInt(Float.floatToIntBits(header.maxLoadFactor));
+            putLong(header.freqThreshold);
+            putLong(header.freqSum);
+            while (written + buffer.position() < HEADER_SIZE) {
+                putInt(0);
+            }
+        }
+
+        void mapHeader(int capacity, long size, boolean containsFreeKey) throws IOException {
+            putInt(capacity);
+            putInt((int) size);
+            putInt(containsFreeKey ? 1 : 0);
+            putInt(0);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+        }
+
+        void putShort(short v) throws IOException {
+            ensure(2);
+            buffer.putShort(v);
+        }
+
+        void align() throws IOException {
+            while (((written + buffer.position()) & 7) != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                OffHeapTable.free(buffer);
+                stream.close();
+            }
+        }
+    }
+
+
+    // ----------------------------  reading  ----------------------------
+
+    public static boolean isSnapshot(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long magic = raf.readLong();
+            return magic == MAGIC || magic == Long.reverseBytes(MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static Header readHeader(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            raf.getChannel().read(buffer, 0);
+            return readHeader(buffer, file);
+        }
+    }
+
+    private static Header readHeader(ByteBuffer buffer, File file) throws IOException {
+        long magic = buffer.order(ByteOrder.BIG_ENDIAN).getLong(0);
+        if (magic != MAGIC) {
+            if (magic != Long.reverseBytes(MAGIC)) {
+                throw new IOException("File " + file + " isn't a k-mers map snapshot");
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int version = buffer.getInt(8);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " of file " + file);
+        }
+        int type = buffer.getInt(12);
+        if (type < 0 || type >= Type.values().length) {
+            throw new IOException("Unknown map type " + type + " in snapshot " + file);
+        }
+        return new Header(Type.values()[type], buffer.order(), buffer.getInt(20), buffer.getInt(24),
+                Float.intBitsToFloat(buffer.getInt(28)), buffer.getLong(32), buffer.getLong(40));
+    }
+
+
+    public static OffHeapBigLong2ShortHashMap openShort(File file) throws IOException {
+        Mapping mapping = new Mapping(file, Type.SHORT);
+        Long2ShortHashMap[] maps = new Long2ShortHashMap[mapping.tables.length];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = new OffHeapLong2ShortHashMap(mapping.tables[i], mapping.header.maxLoadFactor);
+        }
+        return new OffHeapBigLong2ShortHashMap(maps, mapping.buffers);
+    }
+
+    public static OffHeapBigLong2BitShortaHashMap openBitShorta(File file) throws IOException {
+        Mapping mapping = new Mapping(file, Type.BIT_SHORTA);
+        Long2BitShortaHashMap[] maps = new Long2BitShortaHashMap[mapping.tables.length];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = new OffHeapLong2BitShortaHashMap(mapping.tables[i], mapping.header.maxLoadFactor,
+                    mapping.header.sizeBitSet);
+        }
+        return new OffHeapBigLong2BitShortaHashMap(maps, mapping.buffers);
+    }
+
+    public static OffHeapBigLong2BitLongaHashMap openBitLonga(File file) throws IOException {
+        Mapping mapping = new Mapping(file, Type.BIT_LONGA);
+        Long2BitLongaPackedHashMap[] maps = new Long2BitLongaPackedHashMap[mapping.tables.length];
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = new OffHeapLong2BitLongaHashMap(mapping.tables[i], mapping.header.maxLoadFactor,
+                    mapping.header.sizeBitSet);
+        }
+        return new OffHeapBigLong2BitLongaHashMap(maps, mapping.buffers);
+    }
+
+    /**
+     * Tables of all small maps over the mapped file.
+     */
+    private static class Mapping {
+        final Header header;
+        final OffHeapTable[] tables;
+        final ByteBuffer[] buffers;     // to unmap them by free()
+
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private final List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+
+        Mapping(File file, Type type) throws IOException {
+            boolean writable = file.canWrite();
+            try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+                channel = raf.getChannel();
+                mode = writable ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+                long fileSize = channel.size();
+                if (fileSize < HEADER_SIZE) {
+                    throw new IOException("File " + file + " isn't a k-mers map snapshot");
+                }
+
+                header = readHeader(map(0, HEADER_SIZE), file);
+                if (header.type != type) {
+                    throw new IOException("Snapshot " + file + " contains " + header.type + " map, not " + type);
+                }
+                int valueBytes = header.valueBytes();
+
+                tables = new OffHeapTable[header.maps];
+                ByteBuffer window = null;
+                long windowStart = 0, windowEnd = 0;
+                long offset = HEADER_SIZE;
+                for (int i = 0; i < tables.length; i++) {
+                    if (offset + MAP_HEADER_SIZE > fileSize) {
+                        throw new IOException("Snapshot " + file + " is truncated");
+                    }
+                    if (offset + MAP_HEADER_SIZE > windowEnd) {
+                        windowStart = offset;
+                        windowEnd = Math.min(fileSize, offset + WINDOW_SIZE);
+                        window = map(windowStart, windowEnd - windowStart).order(header.order);
+                    }
+                    int at = (int) (offset - windowStart);
+                    int capacity = window.getInt(at);
+                    int size = window.getInt(at + 4);
+                    boolean containsFreeKey = window.getInt(at + 8) != 0;
+
+                    long keysStart = offset + MAP_HEADER_SIZE;
+                    long keysBytes = 8L * capacity;
+                    long valuesBytes = (capacity + 1L) * valueBytes;
+                    long end = keysStart + keysBytes + ((valuesBytes + 7) & ~7L);
+                    if (end > fileSize) {
+                        throw new IOException("Snapshot " + file + " is truncated");
+                    }
+
+                    ByteBuffer keys, values;
+                    if (end - offset > Integer.MAX_VALUE) {     // too large for a window, mapping separately
+                        keys = slice(map(keysStart, keysBytes), 0, keysBytes);
+                        values = slice(map(keysStart + keysBytes, valuesBytes), 0, valuesBytes);
+                    } else {
+                        if (end > windowEnd) {
+                            windowStart = offset;
+                            windowEnd = Math.min(fileSize, Math.max(end, offset + WINDOW_SIZE));
+                            window = map(windowStart, windowEnd - windowStart).order(header.order);
+                        }
+                        keys = slice(window, keysStart - windowStart, keysBytes);
+                        values = slice(window, keysStart + keysBytes - windowStart, valuesBytes);
+                    }
+                    tables[i] = new OffHeapTable(keys, values, capacity, header.maxLoadFactor, valueBytes,
+                            size, containsFreeKey);
+                    offset = end;
+                }
+                buffers = mapped.toArray(new ByteBuffer[mapped.size()]);
+            }
+        }
+
+        private ByteBuffer map(long position, long size) throws IOException {
+            ByteBuffer buffer = channel.map(mode, position, size);
+            mapped.add(buffer);
+            return buffer;
+        }
+
+        private ByteBuffer slice(ByteBuffer window, long from, long length) {
+            ByteBuffer buffer = window.duplicate();
+            buffer.position((int) from);
+            buffer.limit((int) (from + length));
+            return buffer.slice().order(header.order);
+        }
+    }
+}
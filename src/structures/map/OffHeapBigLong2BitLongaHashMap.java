@@ -0,0 +1,105 @@
+package structures.map;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BigLong2BitLongaPackedHashMap with small maps in direct memory, see OffHeapLong2BitLongaHashMap.<br></br>
+ * Only construction differs, so the map can be passed everywhere BigLong2BitLongaPackedHashMap is expected.
+ * Call free() to release direct memory, when the map isn't needed anymore.
+ */
+public class OffHeapBigLong2BitLongaHashMap extends BigLong2BitLongaPackedHashMap {
+    private static final Logger logger = Logger.getLogger("OffHeapBigLong2BitLongaHashMap");
+
+    private ByteBuffer[] mappings = null;    // of the snapshot file, see MapSnapshot
+
+
+    public OffHeapBigLong2BitLongaHashMap(int logSmallMapNumber, int logSmallCapacity) {
+        this(logSmallMapNumber, logSmallCapacity, false);
+    }
+
+    public OffHeapBigLong2BitLongaHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo) {
+        this(logSmallMapNumber, logSmallCapacity, debugInfo, 0);
+    }
+
+    public OffHeapBigLong2BitLongaHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo,
+                                          int sizeBitSet) {
+        super(0, 0);
+        if (logSmallMapNumber > 30) {
+            throw new IllegalArgumentException("logSmallMapNumber > 30!");
+        }
+
+        int smallMapNumber = 1 << logSmallMapNumber;
+        mask = smallMapNumber - 1;
+
+        maps = new Long2BitLongaPackedHashMap[smallMapNumber];
+        for (int i = 0; i < smallMapNumber; i++) {
+            maps[i] = new OffHeapLong2BitLongaHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR, sizeBitSet);
+        }
+        if (debugInfo) {
+            Tool.debug(logger, "Created " + NumUtils.groupDigits(smallMapNumber) + " small off-heap maps, " +
+                    "direct memory used = " + NumUtils.memoryAsString(offHeapBytes()));
+        }
+    }
+
+
+    /**
+     * Map over small maps opened from the snapshot file, see MapSnapshot.
+     */
+    OffHeapBigLong2BitLongaHashMap(Long2BitLongaPackedHashMap[] maps, ByteBuffer[] mappings) {
+        super(0, 0);
+        this.maps = maps;
+        mask = maps.length - 1;
+        this.mappings = mappings;
+    }
+
+
+    /**
+     * @return bytes of direct memory taken by all small maps
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Long2BitLongaPackedHashMap map : maps) {
+            bytes += ((OffHeapLong2BitLongaHashMap) map).offHeapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases direct memory of all small maps (and unmaps the snapshot file) at once, the map becomes empty.
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    public void free() {
+        for (Long2BitLongaPackedHashMap map : maps) {
+            ((OffHeapLong2BitLongaHashMap) map).free();
+        }
+        if (mappings != null) {
+            for (ByteBuffer mapping : mappings) {
+                OffHeapTable.free(mapping);
+            }
+            mappings = null;
+        }
+    }
+
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (Integer.bitCount(len) != 1) {
+            throw new RuntimeException("Length is not a power of two!");
+        }
+        maps = new Long2BitLongaPackedHashMap[len];
+        mask = maps.length - 1;
+
+        for (int i = 0; i < len; i++) {
+            maps[i] = new OffHeapLong2BitLongaHashMap(2);
+            maps[i].readFields(in);
+        }
+    }
+}
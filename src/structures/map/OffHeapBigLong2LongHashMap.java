@@ -0,0 +1,82 @@
+package structures.map;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * BigLong2LongHashMap with small maps in direct memory, see OffHeapLong2LongHashMap.<br></br>
+ * Only construction differs, so the map can be passed everywhere BigLong2LongHashMap is expected.
+ * Call free() to release direct memory, when the map isn't needed anymore.
+ */
+public class OffHeapBigLong2LongHashMap extends BigLong2LongHashMap {
+    private static final Logger logger = Logger.getLogger("OffHeapBigLong2LongHashMap");
+
+
+    public OffHeapBigLong2LongHashMap(int logSmallMapNumber, int logSmallCapacity) {
+        this(logSmallMapNumber, logSmallCapacity, false);
+    }
+
+    public OffHeapBigLong2LongHashMap(int logSmallMapNumber, int logSmallCapacity, boolean debugInfo) {
+        super(0, 0);
+        if (logSmallMapNumber > 30) {
+            throw new IllegalArgumentException("logSmallMapNumber > 30!");
+        }
+
+        int smallMapNumber = 1 << logSmallMapNumber;
+        mask = smallMapNumber - 1;
+
+        maps = new Long2LongHashMap[smallMapNumber];
+        for (int i = 0; i < smallMapNumber; i++) {
+            maps[i] = new OffHeapLong2LongHashMap(logSmallCapacity, LongHashSet.DEFAULT_MAX_LOAD_FACTOR);
+        }
+        if (debugInfo) {
+            Tool.debug(logger, "Created " + NumUtils.groupDigits(smallMapNumber) + " small off-heap maps, " +
+                    "direct memory used = " + NumUtils.memoryAsString(offHeapBytes()));
+        }
+    }
+
+
+    /**
+     * @return bytes of direct memory taken by all small maps
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Long2LongHashMap map : maps) {
+            bytes += ((OffHeapLong2LongHashMap) map).offHeapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases direct memory of all small maps at once, the map becomes empty.
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    public void free() {
+        for (Long2LongHashMap map : maps) {
+            ((OffHeapLong2LongHashMap) map).free();
+        }
+    }
+
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (Integer.bitCount(len) != 1) {
+            throw new RuntimeException("Length is not a power of two!");
+        }
+        maps = new Long2LongHashMap[len];
+        mask = maps.length - 1;
+
+        for (int i = 0; i < len; i++) {
+            maps[i] = new OffHeapLong2LongHashMap(2);
+            maps[i].readFields(in);
+        }
+    }
+}
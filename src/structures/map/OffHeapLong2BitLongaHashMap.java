@@ -0,0 +1,409 @@
+package structures.map;
+
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long2BitLongaPackedHashMap with keys and values in direct memory, see OffHeapTable:
+ * the value of the cell pos takes words [pos * wordsPerKey, (pos + 1) * wordsPerKey) of values buffer.<br></br>
+ * All methods are overridden, the inherited on-heap data is left with a single cell,
+ * so the map can be used as a small map of BigLong2BitLongaPackedHashMap.<br></br>
+ * There is no CAS for buffers in Java 8, so unlike Long2BitLongaPackedHashMap all writes take the lock
+ * (as in Long2BitLongaHashMap), reads are lock-free.
+ * Values returned by get, getWithEmpty, valueAt and entry iterator are copies.<br></br>
+ * Memory of the tables left after enlarging is released by GC, call free() to release the current one.
+ */
+public class OffHeapLong2BitLongaHashMap extends Long2BitLongaPackedHashMap {
+
+    private final static int BITS_PER_WORD = 6; // size(long)=64=2^6
+
+    protected volatile OffHeapTable table;
+    protected int sizeBitSet, wordsPerKey;
+
+
+    public OffHeapLong2BitLongaHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR, 0);  // 1 M elements
+    }
+    public OffHeapLong2BitLongaHashMap(int capacity) {
+        this(
+                NumUtils.getPowerOf2(capacity),
+                DEFAULT_MAX_LOAD_FACTOR,
+                0
+        );
+    }
+    public OffHeapLong2BitLongaHashMap(int logCapacity, float maxLoadFactor, int sizeBitSet) {
+        super(0, maxLoadFactor, 0);
+        this.sizeBitSet = sizeBitSet;
+        wordsPerKey = (sizeBitSet>>BITS_PER_WORD) + 1;
+        table = new OffHeapTable(1 << logCapacity, maxLoadFactor, 8 * wordsPerKey);
+    }
+
+    /**
+     * Map over the given table, see MapSnapshot.
+     */
+    OffHeapLong2BitLongaHashMap(OffHeapTable table, float maxLoadFactor, int sizeBitSet) {
+        super(0, maxLoadFactor, 0);
+        this.sizeBitSet = sizeBitSet;
+        wordsPerKey = (sizeBitSet>>BITS_PER_WORD) + 1;
+        this.table = table;
+    }
+
+
+    /**
+     * @return index of the first byte of the word of the cell pos (capacity for FREE key)
+     */
+    private int wordIndex(int pos, int word) {
+        return (pos * wordsPerKey + word) << 3;
+    }
+
+    /**
+     * @return position of the key (capacity for FREE key), or -1, if not found
+     */
+    private static int position(OffHeapTable curTable, long key) {
+        if (key == FREE) {
+            return curTable.containsFreeKey ? curTable.capacity : -1;
+        }
+        int pos = curTable.getPositionInt(key);
+        return curTable.keyAt(pos) == key ? pos : -1;
+    }
+
+    private long[] copy(OffHeapTable curTable, int pos) {
+        long[] value = new long[wordsPerKey];
+        for (int j = 0; j < wordsPerKey; j++) {
+            value[j] = curTable.values.getLong(wordIndex(pos, j));
+        }
+        return value;
+    }
+
+
+    @Override
+    public void setBit(long key, int bitIndex) {
+        int word = bitIndex>>BITS_PER_WORD;
+        long bit = 1L<<(bitIndex&((1L<<BITS_PER_WORD) - 1));
+
+        writeLock.lock();
+        try {
+            OffHeapTable curTable = table;
+            int pos;
+            if (key == FREE) {
+                pos = curTable.capacity;
+                if (!curTable.containsFreeKey) {
+                    curTable.containsFreeKey = true;
+                    curTable.size++;
+                }
+            } else {
+                pos = curTable.getPositionInt(key);
+                if (curTable.keyAt(pos) == FREE) {
+                    curTable.setKey(pos, key);
+                    curTable.size++;
+                }
+            }
+            int index = wordIndex(pos, word);
+            curTable.values.putLong(index, curTable.values.getLong(index) | bit);
+            if (curTable.size >= curTable.maxFill) {
+                enlargeAndRehash();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long[] set(long key, int bitIndex) {
+        writeLock.lock();   // for consistent previous value
+        try {
+            long[] prev = get(key);
+            setBit(key, bitIndex);
+            return prev;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void enlargeAndRehash() {
+        OffHeapTable curTable = table;
+        if (curTable.capacity >= OffHeapTable.MAX_CAPACITY) {
+            throw new RuntimeException("Can't enlarge off-heap map (can't create single buffer of 2^31 bytes)!");
+        }
+        OffHeapTable newTable = new OffHeapTable(2 * curTable.capacity, maxLoadFactor, curTable.valueBytes);
+
+        // copying elements
+        for (int oldPos = 0; oldPos < curTable.capacity; oldPos++) {
+            long key = curTable.keyAt(oldPos);
+            if (key != FREE) {
+                int pos = newTable.getPositionInt(key);
+                newTable.setKey(pos, key);
+                for (int j = 0; j < wordsPerKey; j++) {
+                    newTable.values.putLong(wordIndex(pos, j), curTable.values.getLong(wordIndex(oldPos, j)));
+                }
+            }
+        }
+        for (int j = 0; j < wordsPerKey; j++) {
+            newTable.values.putLong(wordIndex(newTable.capacity, j),
+                    curTable.values.getLong(wordIndex(curTable.capacity, j)));
+        }
+        newTable.containsFreeKey = curTable.containsFreeKey;
+        newTable.size = curTable.size;
+
+        table = newTable;   // the old one can still be read by other threads, so it is left to GC
+    }
+
+
+    @Override
+    public boolean get(long key, int bitIndex) {
+        OffHeapTable curTable = table;
+        int pos = position(curTable, key);
+        if (pos == -1) {
+            return false;
+        }
+        long word = curTable.values.getLong(wordIndex(pos, bitIndex>>BITS_PER_WORD));
+        return ((word>>(bitIndex&((1L<<BITS_PER_WORD) - 1)))&1) == 1;
+    }
+
+    @Override
+    public long[] get(long key) {
+        OffHeapTable curTable = table;
+        int pos = position(curTable, key);
+        return pos == -1 ? null : copy(curTable, pos);
+    }
+
+    @Override
+    public int getCardinality(long key) {
+        return getCardinality(key, 0, wordsPerKey << BITS_PER_WORD);
+    }
+
+    @Override
+    public int getCardinality(long key, int from, int to) {
+        OffHeapTable curTable = table;
+        int pos = position(curTable, key);
+        if (pos == -1 || from >= to) {
+            return 0;
+        }
+
+        int wordFrom = from>>BITS_PER_WORD;
+        int wordTo = (to - 1)>>BITS_PER_WORD;     // inclusive
+        long maskFrom = -1L << (from&((1L<<BITS_PER_WORD) - 1));
+        long maskTo = -1L >>> (63 - ((to - 1)&((1L<<BITS_PER_WORD) - 1)));
+        if (wordFrom == wordTo) {
+            return Long.bitCount(curTable.values.getLong(wordIndex(pos, wordFrom)) & maskFrom & maskTo);
+        }
+        int count = Long.bitCount(curTable.values.getLong(wordIndex(pos, wordFrom)) & maskFrom);
+        for (int i = wordFrom + 1; i < wordTo; i++) {
+            count += Long.bitCount(curTable.values.getLong(wordIndex(pos, i)));
+        }
+        count += Long.bitCount(curTable.values.getLong(wordIndex(pos, wordTo)) & maskTo);
+        return count;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return position(table, key) != -1;
+    }
+
+    @Override
+    public long size() { return table.size; }
+
+    @Override
+    public long capacity() { return table.capacity; }
+
+    /**
+     * @return bytes of direct memory taken by the current table
+     */
+    public long offHeapBytes() { return table.bytes(); }
+
+
+    /**
+     * USE ONLY then no other thread is working with this map!!!
+     */
+    @Override
+    public void reset() {
+        writeLock.lock();
+        try {
+            table.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * USE ONLY then no other thread is working with this map!!!
+     */
+    @Override
+    public void resetValues() {
+        writeLock.lock();
+        try {
+            table.clearValues();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Releases direct memory of the map at once, the map becomes empty with the minimal capacity.
+     * USE ONLY then no other thread is working with this map!!!
+     */
+    public void free() {
+        writeLock.lock();
+        try {
+            OffHeapTable curTable = table;
+            table = new OffHeapTable(1, maxLoadFactor, curTable.valueBytes);
+            curTable.free();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public long maxPosition() { return table.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        OffHeapTable curTable = table;
+        if (key == FREE) {
+            return curTable.capacity;
+        }
+        return position(curTable, key);     // not true, if table link is updated
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        OffHeapTable curTable = table;
+        if (pos == curTable.capacity) {
+            return FREE;    // ambiguous answer
+        }
+        return curTable.keyAt((int) pos);
+    }
+
+    @Override
+    public long[] valueAt(long pos) {
+        OffHeapTable curTable = table;
+        return containsAt(curTable, (int) pos) ? copy(curTable, (int) pos) : null;
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        return containsAt(table, (int) pos);
+    }
+
+    private static boolean containsAt(OffHeapTable curTable, int pos) {
+        if (pos == curTable.capacity) {
+            return curTable.containsFreeKey;
+        }
+        return curTable.keyAt(pos) != FREE;
+    }
+
+
+    /**
+     * Writes the map in the format of Long2BitLongaHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        OffHeapTable curTable = table;
+
+        out.writeInt(sizeBitSet);
+        out.writeInt(curTable.capacity);
+        out.writeInt(curTable.size);
+        out.writeFloat(maxLoadFactor);
+
+        for (int i = 0; i < curTable.capacity; i++) {
+            out.writeLong(curTable.keyAt(i));
+            out.writeInt(wordsPerKey);
+            for (int j = 0; j < wordsPerKey; j++) {
+                out.writeLong(curTable.values.getLong(wordIndex(i, j)));
+            }
+        }
+        out.writeBoolean(curTable.containsFreeKey);
+        out.writeInt(wordsPerKey);
+        for (int j = 0; j < wordsPerKey; j++) {
+            out.writeLong(curTable.values.getLong(wordIndex(curTable.capacity, j)));
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        sizeBitSet = in.readInt();
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+        wordsPerKey = (sizeBitSet>>BITS_PER_WORD) + 1;
+        OffHeapTable newTable = new OffHeapTable(capacity, maxLoadFactor, 8 * wordsPerKey);
+
+        for (int i = 0; i <= capacity; i++) {
+            if (i < capacity) {
+                newTable.setKey(i, in.readLong());
+            } else {
+                newTable.containsFreeKey = in.readBoolean();
+            }
+            int len = in.readInt();
+            for (int j = 0; j < len; j++) {
+                long word = in.readLong();
+                if (j < wordsPerKey) {
+                    newTable.values.putLong(wordIndex(i, j), word);
+                }
+            }
+        }
+        newTable.size = size;
+
+        table = newTable;
+    }
+
+
+    @Override
+    public Iterator<MutableLongBitLongaEntry> entryIterator() {
+        return new OffHeapIterator(table);
+    }
+
+    /**
+     * Entry value is the same buffer for all entries, it is overwritten by next().
+     */
+    protected class OffHeapIterator implements Iterator<MutableLongBitLongaEntry> {
+        private final OffHeapTable curTable;
+        private int index = 0;
+        private final long[] value = new long[wordsPerKey];
+        private final MutableLongBitLongaEntry entry = new MutableLongBitLongaEntry();
+
+        OffHeapIterator(OffHeapTable curTable) {
+            this.curTable = curTable;
+            entry.setValue(value);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((index < curTable.capacity) && (curTable.keyAt(index) == FREE)) {
+                index++;
+            }
+            if (index < curTable.capacity) {
+                return true;
+            }
+            if (index == curTable.capacity && curTable.containsFreeKey) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongBitLongaEntry next() {
+            if (hasNext()){
+                entry.setKey(index < curTable.capacity ? curTable.keyAt(index) : FREE);
+                for (int j = 0; j < value.length; j++) {
+                    value[j] = curTable.values.getLong(wordIndex(index, j));
+                }
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
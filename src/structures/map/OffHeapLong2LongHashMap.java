@@ -0,0 +1,403 @@
+package structures.map;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.Long2LongHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongLongEntry;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Long2LongHashMap with keys and values in direct memory, see OffHeapTable.<br></br>
+ * All methods are overridden, the inherited on-heap table is left with a single cell,
+ * so the map can be used everywhere instead of Long2LongHashMap (e.g. as a small map of BigLong2LongHashMap).
+ * Map is synchronized the same way as Long2LongHashMap.<br></br>
+ * Memory of the tables left after enlarging is released by GC, call free() to release the current one.
+ */
+public class OffHeapLong2LongHashMap extends Long2LongHashMap {
+
+    protected volatile OffHeapTable table;
+
+
+    public OffHeapLong2LongHashMap() {
+        this(20, DEFAULT_MAX_LOAD_FACTOR);  // 1 M elements
+    }
+    public OffHeapLong2LongHashMap(int capacity) {
+        this(
+                NumUtils.getPowerOf2(capacity),
+                DEFAULT_MAX_LOAD_FACTOR
+        );
+    }
+    public OffHeapLong2LongHashMap(int logCapacity, float maxLoadFactor) {
+        super(0, maxLoadFactor);
+        table = new OffHeapTable(1 << logCapacity, maxLoadFactor, 8);
+    }
+
+
+    private static long value(OffHeapTable curTable, int pos) {
+        return curTable.values.getLong(pos << 3);
+    }
+
+    private static void setValue(OffHeapTable curTable, int pos, long value) {
+        curTable.values.putLong(pos << 3, value);
+    }
+
+
+    @Override
+    public boolean add(long key) {
+        return put(key, 0) == -1;
+    }
+
+    @Override
+    public long put(long key, long value) {
+        if (key == FREE) {
+            writeLock.lock();
+            try {
+                OffHeapTable curTable = table;
+                long prev = value(curTable, curTable.capacity);
+                setValue(curTable, curTable.capacity, value);
+                if (!curTable.containsFreeKey) {
+                    curTable.containsFreeKey = true;
+                    curTable.size++;
+                    return -1;
+                }
+                return prev;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        while (true) {
+            OffHeapTable curTable = table;
+            int pos = curTable.getPositionInt(key);
+            writeLock.lock();
+            try {
+                long cur = curTable.keyAt(pos);
+                if (curTable == table && (cur == FREE || cur == key)) {  // i.e. nothing has changed
+                    long prev = value(curTable, pos);
+                    setValue(curTable, pos, value);
+                    if (cur == FREE) {
+                        curTable.setKey(pos, key);
+                        curTable.size++;
+                        if (curTable.size >= curTable.maxFill) {
+                            enlargeAndRehash();
+                        }
+                        return -1;
+                    }
+                    return prev;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public long addAndBound(long key, long incValue) {
+        if (key == FREE) {
+            writeLock.lock();
+            try {
+                OffHeapTable curTable = table;
+                long prev = value(curTable, curTable.capacity);
+                setValue(curTable, curTable.capacity, NumUtils.addAndBound(prev, incValue));
+                if (!curTable.containsFreeKey) {
+                    curTable.containsFreeKey = true;
+                    curTable.size++;
+                }
+                return prev;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        while (true) {
+            OffHeapTable curTable = table;
+            int pos = curTable.getPositionInt(key);
+            writeLock.lock();
+            try {
+                long cur = curTable.keyAt(pos);
+                if (curTable == table && (cur == FREE || cur == key)) {  // i.e. nothing has changed
+                    long prev = value(curTable, pos);
+                    setValue(curTable, pos, NumUtils.addAndBound(prev, incValue));
+                    if (cur == FREE) {
+                        curTable.setKey(pos, key);
+                        curTable.size++;
+                        if (curTable.size >= curTable.maxFill) {
+                            enlargeAndRehash();
+                        }
+                    }
+                    return prev;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public long get(long key) {
+        OffHeapTable curTable = table;
+        if (key == FREE) {
+            if (!curTable.containsFreeKey) {
+                return -1;
+            }
+            return value(curTable, curTable.capacity);
+        }
+        int pos = curTable.getPositionInt(key);
+        if (curTable.keyAt(pos) == key) {
+            return value(curTable, pos);
+        } else {
+            // assuming keys[pos] == FREE
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean contains(long key) {
+        OffHeapTable curTable = table;
+        if (key == FREE) {
+            return curTable.containsFreeKey;
+        }
+        return curTable.keyAt(curTable.getPositionInt(key)) == key;
+    }
+
+
+    private void enlargeAndRehash() {
+        OffHeapTable curTable = table;
+        if (curTable.capacity >= OffHeapTable.MAX_CAPACITY) {
+            throw new RuntimeException("Can't enlarge off-heap map (can't create single buffer of 2^31 bytes)!");
+        }
+        OffHeapTable newTable = new OffHeapTable(2 * curTable.capacity, maxLoadFactor, 8);
+
+        // coping elements
+        for (int oldPos = 0; oldPos < curTable.capacity; oldPos++) {
+            long key = curTable.keyAt(oldPos);
+            if (key != FREE) {
+                int pos = newTable.getPositionInt(key);
+                newTable.setKey(pos, key);
+                setValue(newTable, pos, value(curTable, oldPos));
+            }
+        }
+        setValue(newTable, newTable.capacity, value(curTable, curTable.capacity));
+        newTable.containsFreeKey = curTable.containsFreeKey;
+        newTable.size = curTable.size;
+
+        table = newTable;   // the old one can still be read by other threads, so it is left to GC
+    }
+
+    @Override
+    public long size() { return table.size; }
+
+    @Override
+    public long capacity() { return table.capacity; }
+
+    /**
+     * @return bytes of direct memory taken by the current table
+     */
+    public long offHeapBytes() { return table.bytes(); }
+
+
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void reset() {
+        writeLock.lock();
+        try {
+            table.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /**
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    @Override
+    public void resetValues() {
+        writeLock.lock();
+        try {
+            table.clearValues();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Releases direct memory of the map at once, the map becomes empty with the minimal capacity.
+     * USE ONLY then no other threads are working with this map!!!
+     */
+    public void free() {
+        writeLock.lock();
+        try {
+            OffHeapTable curTable = table;
+            table = new OffHeapTable(1, maxLoadFactor, 8);
+            curTable.free();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+
+    @Override
+    public long maxPosition() { return table.capacity; }
+
+    @Override
+    public long getPosition(long key) {
+        OffHeapTable curTable = table;
+        if (key == FREE) {
+            return curTable.capacity;
+        }
+        int pos = curTable.getPositionInt(key);
+        if (curTable.keyAt(pos) == key) {
+            return pos;
+        }
+        return -1;  // not true, if table link is updated
+    }
+
+    @Override
+    public long elementAt(long pos) {
+        OffHeapTable curTable = table;
+        if (pos == curTable.capacity) {
+            return FREE;    // ambiguous answer
+        }
+        return curTable.keyAt((int) pos);
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        OffHeapTable curTable = table;
+        if (pos == curTable.capacity) {
+            return curTable.containsFreeKey;
+        }
+        return curTable.keyAt((int) pos) != FREE;
+    }
+
+    @Override
+    public long valueAt(long pos) {
+        OffHeapTable curTable = table;
+        if (pos == curTable.capacity) {
+            if (!curTable.containsFreeKey) {
+                return -1;
+            }
+            return value(curTable, curTable.capacity);
+        }
+
+        if (curTable.keyAt((int) pos) == FREE) {
+            return -1;
+        }
+        return value(curTable, (int) pos);
+    }
+
+
+    /**
+     * Writes the map in the format of Long2LongHashMap.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        OffHeapTable curTable = table;
+
+        out.writeInt(curTable.capacity);
+        out.writeInt(curTable.size);
+        out.writeFloat(maxLoadFactor);
+
+        for (int i = 0; i < curTable.capacity; i++) {
+            out.writeLong(curTable.keyAt(i));
+            out.writeLong(value(curTable, i));
+        }
+        out.writeBoolean(curTable.containsFreeKey);
+        out.writeLong(value(curTable, curTable.capacity));
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int size = in.readInt();
+        maxLoadFactor = in.readFloat();
+
+        OffHeapTable newTable = new OffHeapTable(capacity, maxLoadFactor, 8);
+
+        for (int i = 0; i < capacity; i++) {
+            newTable.setKey(i, in.readLong());
+            setValue(newTable, i, in.readLong());
+        }
+        newTable.containsFreeKey = in.readBoolean();
+        setValue(newTable, capacity, in.readLong());
+        newTable.size = size;
+
+        table = newTable;
+    }
+
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongLongEntry> it = entryIterator();
+        return new Iterator<MutableLong>() {
+            private final MutableLong value = new MutableLong();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                value.setValue(it.next().getKey());
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MutableLongLongEntry> entryIterator() {
+        return new OffHeapIterator(table);
+    }
+
+    protected class OffHeapIterator implements Iterator<MutableLongLongEntry> {
+        private final OffHeapTable curTable;
+        private int index = 0;
+        private final MutableLongLongEntry entry = new MutableLongLongEntry();
+
+        OffHeapIterator(OffHeapTable curTable) {
+            this.curTable = curTable;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((index < curTable.capacity) && (curTable.keyAt(index) == FREE)) {
+                index++;
+            }
+            if (index < curTable.capacity) {
+                return true;
+            }
+            if (index == curTable.capacity && curTable.containsFreeKey) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongLongEntry next() {
+            if (hasNext()){
+                entry.setKey(index < curTable.capacity ? curTable.keyAt(index) : FREE);
+                entry.setValue(value(curTable, index));
+                index++;
+                return entry;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
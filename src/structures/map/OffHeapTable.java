@@ -0,0 +1,164 @@
+package structures.map;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing table of long keys and fixed size values, both in direct memory (outside of the Java heap).<br></br>
+ * The value of the cell pos takes bytes [pos * valueBytes, (pos + 1) * valueBytes) of values buffer,
+ * the extra cell capacity holds the value of FREE key.<br></br>
+ * Buffers are accessed by absolute get/put only, so the table can be read and written by many threads at once
+ * (the synchronization is up to the map). Direct memory is limited by -XX:MaxDirectMemorySize (-Xmx by default).
+ */
+class OffHeapTable {
+    static final long FREE = LongHashSet.FREE;
+
+    /**
+     * Maximal capacity, keys buffer can't exceed 2 Gb.
+     */
+    static final int MAX_CAPACITY = 1 << 27;
+
+    final ByteBuffer keys, values;
+    final int capacity, capacityMask, maxFill;
+    final int valueBytes;
+
+    volatile boolean containsFreeKey = false;
+    volatile int size = 0;
+
+    OffHeapTable(int capacity, float maxLoadFactor, int valueBytes) {
+        if (Integer.bitCount(capacity) != 1) {  // i.e. not power of 2
+            throw new RuntimeException("Bad capacity " + capacity + ".");
+        }
+        if (capacity > MAX_CAPACITY || (long) (capacity + 1) * valueBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can't create off-heap table of " + capacity + " cells " +
+                    "with values of " + valueBytes + " bytes (single buffer can't exceed 2 Gb)!");
+        }
+        keys = allocate(8L * capacity);
+        values = allocate((long) (capacity + 1) * valueBytes);
+        this.capacity = capacity;
+        capacityMask = capacity - 1;
+        maxFill = (int) Math.ceil(capacity * maxLoadFactor);
+        this.valueBytes = valueBytes;
+    }
+
+    /**
+     * Table over already filled buffers (e.g. mapped from a snapshot file, see MapSnapshot).
+     */
+    OffHeapTable(ByteBuffer keys, ByteBuffer values, int capacity, float maxLoadFactor, int valueBytes,
+                 int size, boolean containsFreeKey) {
+        if (Integer.bitCount(capacity) != 1) {  // i.e. not power of 2
+            throw new RuntimeException("Bad capacity " + capacity + ".");
+        }
+        if (keys.capacity() != 8L * capacity || values.capacity() != (long) (capacity + 1) * valueBytes) {
+            throw new IllegalArgumentException("Buffers don't match capacity " + capacity + "!");
+        }
+        this.keys = keys;
+        this.values = values;
+        this.capacity = capacity;
+        capacityMask = capacity - 1;
+        maxFill = (int) Math.ceil(capacity * maxLoadFactor);
+        this.valueBytes = valueBytes;
+        this.size = size;
+        this.containsFreeKey = containsFreeKey;
+    }
+
+
+    long keyAt(int pos) {
+        return keys.getLong(pos << 3);
+    }
+
+    void setKey(int pos, long key) {
+        keys.putLong(pos << 3, key);
+    }
+
+    /**
+     * NOT WORKING for FREE key, check it manually!
+     */
+    int getPositionInt(long key) {
+        int pos = (int) (HashCommon.murmurHash3(key) & capacityMask);
+        long cur;
+        while ((cur = keyAt(pos)) != FREE && cur != key) {
+            pos = (pos + 1) & capacityMask;
+        }
+        return pos;
+    }
+
+    /**
+     * Fills both buffers with zeroes, i.e. all keys become FREE.
+     */
+    void clear() {
+        fill(keys, 0, keys.capacity());
+        fill(values, 0, values.capacity());
+        containsFreeKey = false;
+        size = 0;
+    }
+
+    void clearValues() {
+        fill(values, 0, values.capacity());
+    }
+
+    static void fill(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            buffer.putLong(i, 0);
+        }
+        for (; i < to; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    long bytes() {
+        return (long) keys.capacity() + values.capacity();
+    }
+
+    /**
+     * Releases memory of the table at once instead of waiting for GC.
+     * USE ONLY then no other thread is working with the table, it can't be accessed after that!
+     */
+    void free() {
+        OffHeapTable.free(keys);
+        OffHeapTable.free(values);
+    }
+
+
+    static ByteBuffer allocate(long bytes) {
+        // fresh direct buffer is already filled with zeroes, i.e. with FREE keys
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Releases the memory of direct (or unmaps mapped) buffer. There is no public API for it in Java 8,
+     * so the cleaner of the buffer is invoked by reflection (sun.misc.Unsafe.invokeCleaner in Java 9+).
+     * If it fails, the memory is released by GC, when the buffer becomes unreachable.
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8, trying its cleaner
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // leaving it to GC
+        }
+    }
+}
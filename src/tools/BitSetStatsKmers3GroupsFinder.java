@@ -24,6 +24,7 @@ import structures.map.BigLong2BitSetHashMap;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.stream.Stream;
 
@@ -135,9 +136,10 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
             MutableLongShortEntry entry = it_all.next();
             long key = entry.getKey();
 
-            int n_1_A = allKmers.getWithEmpty(key).get(0, Alength).cardinality();
-            int n_1_B = allKmers.getWithEmpty(key).get(Alength, Alength+Blength).cardinality();
-            int n_1_C = allKmers.getWithEmpty(key).get(Alength+Blength, totalLength).cardinality();
+            BitSet presence = allKmers.getWithEmpty(key);
+            int n_1_A = presence.get(0, Alength).cardinality();
+            int n_1_B = presence.get(Alength, Alength+Blength).cardinality();
+            int n_1_C = presence.get(Alength+Blength, totalLength).cardinality();
 
             int n_0_A = Alength - n_1_A;
             int n_0_B = Blength - n_1_B;
@@ -292,9 +294,10 @@ public class BitSetStatsKmers3GroupsFinder extends Tool {
                     }
                 }
 
-                int n_1_A = allKmers.getWithEmpty(key).get(0, Alength).cardinality();
-                int n_1_B = allKmers.getWithEmpty(key).get(Alength, Alength+Blength).cardinality();
-                int n_1_C = allKmers.getWithEmpty(key).get(Alength+Blength, totalLength).cardinality();
+                BitSet presence = allKmers.getWithEmpty(key);
+                int n_1_A = presence.get(0, Alength).cardinality();
+                int n_1_B = presence.get(Alength, Alength+Blength).cardinality();
+                int n_1_C = presence.get(Alength+Blength, totalLength).cardinality();
                 if ((n_1_A + n_1_C) == 0 || (n_1_B + n_1_A) == 0 || (n_1_B + n_1_C) == 0) {
                     nUniqueLeft++;
                 }
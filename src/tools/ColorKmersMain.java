@@ -2,6 +2,9 @@ package tools;
 
 import algo.ColoredKmerOperations;
 import io.IOUtils;
+import io.SortedKmersMerger;
+import io.SortedKmersReader;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -17,8 +20,11 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
@@ -94,6 +100,10 @@ public class ColorKmersMain extends Tool {
         info("Loading class file...");
         Map<String, Integer> file2Color = readFileToColor(classFile.get());
         debug("Memory used (before processing files) = " + Misc.usedMemoryAsString() + ", Time = " + t);
+        if (SortedKmersReader.areSorted(kmersFiles.get())) {
+            runMerging(file2Color);
+            return;
+        }
         info("Loading kmers files...");
         BigLong2ShortHashMap hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
         for (File kmersFile : kmersFiles.get()) {
@@ -135,6 +145,68 @@ public class ColorKmersMain extends Tool {
         info(NumUtils.groupDigits(c) + " colored k-mers printed to " + outFile.getPath());
     }
 
+    /**
+     * Streaming version for sorted k-mers files, the result is written in increasing order of k-mers.
+     */
+    private void runMerging(Map<String, Integer> file2Color) throws ExecutionFailedException {
+        File[] files = kmersFiles.get();
+        int[] colors = new int[files.length];
+        for (int i = 0; i < files.length; i++) {
+            colors[i] = file2Color.get(FileUtils.removeExtension(files[i].getName(), ".kmers.bin"));
+        }
+
+        File outDir = outputDir.get();
+        if (!outDir.exists()) {
+            outDir.mkdirs();
+        }
+        File outFile = new File(outDir, "colored_kmers.kmers.bin");
+        File stFile = new File(outDir, "colored_kmers.stat.txt");
+
+        info("Merging sorted kmers files...");
+        debug("Starting to print k-mers to " + outFile.getPath());
+        QuickQuantitativeStatistics<Long> stats = new QuickQuantitativeStatistics<Long>();
+        long c = 0;
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+            try {
+                while (merger.next()) {
+                    boolean found = false;
+                    long value = 0;
+                    for (int i = 0; i < merger.presentCount; i++) {
+                        int f = merger.present[i];
+                        short freq = (short) merger.values[f];
+                        if (freq > maximalBadFrequency.get()) {
+                            found = true;
+                            if (countValues.get()) {
+                                value = ColoredKmerOperations.addValue(value, colors[f], freq);
+                            } else {
+                                value = ColoredKmerOperations.addValue(value, colors[f]);
+                            }
+                        }
+                    }
+                    if (!found) {
+                        continue;
+                    }
+                    stats.add(value);
+                    if (value > 0) {
+                        stream.writeLong(merger.key);
+                        stream.writeLong(value);
+                        c++;
+                    }
+                }
+            } finally {
+                stream.close();
+                merger.close();
+            }
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Cannot merge k-mers files to: " + outFile, e);
+        }
+        info(NumUtils.groupDigits(c) + " colored k-mers printed to " + outFile.getPath());
+    }
+
     public ColorKmersMain() {
         super(NAME, DESCRIPTION);
     }
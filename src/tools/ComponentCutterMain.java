@@ -65,6 +65,12 @@ public class ComponentCutterMain extends Tool {
             .withDefaultValue(workDir.append("components.bin"))
             .create());
 
+    public final Parameter<Boolean> offHeap = addParameter(new BoolParameterBuilder("off-heap")
+            .optional()
+            .withDescription("keep k-mers map in direct memory instead of the Java heap " +
+                    "(set its size by -XX:MaxDirectMemorySize)")
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -79,6 +85,7 @@ public class ComponentCutterMain extends Tool {
         Timer t = new Timer();
         debug("Loading sequences from files...");
         BigLong2ShortHashMap hm = IOUtils.loadReads(sequencesFiles.get(), k.get(), minLen.get(),
+                offHeap.get() ? IOUtils.MapMemoryMode.OFF_HEAP : IOUtils.MapMemoryMode.HEAP,
                 availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
         if (hm.size() == 0) {
@@ -98,6 +105,8 @@ public class ComponentCutterMain extends Tool {
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return;
+        } finally {
+            IOUtils.free(hm);
         }
         info("Total " + NumUtils.groupDigits(components.size()) + " components were found");
         if (components.size() == 0) {
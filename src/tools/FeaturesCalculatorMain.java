@@ -1,6 +1,8 @@
 package tools;
 
 import io.IOUtils;
+import io.LoadingEngine;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
@@ -19,8 +21,15 @@ import ru.ifmo.genetics.utils.tool.values.InValue;
 import structures.ConnectedComponent;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class FeaturesCalculatorMain extends Tool {
     public static final String NAME = "features-calculator";
@@ -63,6 +72,13 @@ public class FeaturesCalculatorMain extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Integer> batchSize = addParameter(new IntParameterBuilder("batch-size")
+            .optional()
+            .withDescription("number of reads files processed at once with common k-mers index " +
+                    "(0 to process reads files one by one)")
+            .withDefaultValue(0)
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -94,14 +110,23 @@ public class FeaturesCalculatorMain extends Tool {
 
 
         // preparing
-        BigLong2LongHashMap hm = new BigLong2LongHashMap(
-                (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        for (ConnectedComponent component : components) {
-            for (long kmer : component.kmers) {
-                hm.put(kmer, 0);
+        boolean batchMode = batchSize.get() > 0 && readsFiles.get() != null && readsFiles.get().length > 0;
+        BigLong2LongHashMap hm = null;
+        if (!batchMode || (kmersFiles.get() != null && kmersFiles.get().length > 0)) {
+            hm = new BigLong2LongHashMap(
+                    (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
+            for (ConnectedComponent component : components) {
+                for (long kmer : component.kmers) {
+                    hm.put(kmer, 0);
+                }
             }
+            debug("Kmers in components = " + NumUtils.groupDigits(hm.size()));
+        }
+        Long2IntOpenHashMap index = null;
+        if (batchMode) {
+            index = buildIndex(components);
+            debug("Kmers in components index = " + NumUtils.groupDigits(index.size()));
         }
-        debug("Kmers in components = " + NumUtils.groupDigits(hm.size()));
         final long[] vector = new long[components.size()];
         final double[] breadth = new double[components.size()];
         debug("Memory used (before processing files) = " + Misc.usedMemoryAsString() + ", Time for preparing = " + t);
@@ -114,10 +139,18 @@ public class FeaturesCalculatorMain extends Tool {
 
         BigLong2ShortHashMap selected = null;
         if (selectedKmers.get() != null && selectedKmers.get().length > 0) {
-            selected = IOUtils.loadKmers(selectedKmers.get(), 0, availableProcessors.get(), logger);
+            selected = IOUtils.loadKmers(selectedKmers.get(), 0,
+                    (hm != null) ? hm::contains : index::containsKey, availableProcessors.get(), logger);
         }
 
-        if (readsFiles.get() != null) {
+        if (batchMode) {
+            File[] files = readsFiles.get();
+            calculateForReadsInBatches(components, index, selected, files, outDir);
+            for (File readsFile : files) {
+                featuresFiles[curFiles] = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".vec");
+                curFiles++;
+            }
+        } else if (readsFiles.get() != null) {
             for (File readsFile : readsFiles.get()) {
                 hm.resetValues();
                 IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), hm,
@@ -166,6 +199,110 @@ public class FeaturesCalculatorMain extends Tool {
         debug("Features-calculator has finished! Time = " + t);
     }
 
+    private static Long2IntOpenHashMap buildIndex(List<ConnectedComponent> components) {
+        Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+        index.defaultReturnValue(-1);
+        for (ConnectedComponent component : components) {
+            for (long kmer : component.kmers) {
+                if (!index.containsKey(kmer)) {
+                    index.put(kmer, index.size());
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Calculates features for reads files by batches of batchSize files.<br></br>
+     * Files of a batch are processed at once, the index of components k-mers is shared by all of them,
+     * and every file counts k-mers to its own array by index slots, so nothing is rebuilt or reset per file.
+     * Vectors are written, when the whole batch is processed.
+     */
+    private void calculateForReadsInBatches(List<ConnectedComponent> components, final Long2IntOpenHashMap index,
+                                            BigLong2ShortHashMap selected, File[] files, File outDir)
+            throws ExecutionFailedException, IOException {
+        // slots of (selected) k-mers of every component
+        final int[][] componentSlots = new int[components.size()][];
+        for (int i = 0; i < components.size(); i++) {
+            ConnectedComponent component = components.get(i);
+            int[] slots = new int[component.kmers.size()];
+            int n = 0;
+            for (long kmer : component.kmers) {
+                if (selected == null || selected.getWithZero(kmer) > 0) {
+                    slots[n++] = index.get(kmer);
+                }
+            }
+            componentSlots[i] = Arrays.copyOf(slots, n);
+        }
+
+        int batch = Math.min(batchSize.get(), files.length);
+        final int threads = Math.max(1, availableProcessors.get() / batch);
+        info("Processing " + files.length + " reads files by batches of " + batch + " files, " +
+                threads + " threads per file");
+        LoadingEngine.getInstance(threads * batch);     // enough loading threads for the whole batch
+        ExecutorService executor = Executors.newFixedThreadPool(batch);
+        try {
+            for (int from = 0; from < files.length; from += batch) {
+                int to = Math.min(files.length, from + batch);
+                final long[][] vectors = new long[to - from][components.size()];
+                final double[][] breadths = new double[to - from][components.size()];
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int f = from; f < to; f++) {
+                    final File readsFile = files[f];
+                    final int j = f - from;
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws ExecutionFailedException, IOException {
+                            AtomicIntegerArray counts = new AtomicIntegerArray(index.size());
+                            IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), index, counts,
+                                    threads, logger);
+                            buildVector(componentSlots, counts, vectors[j], breadths[j]);
+                            return null;
+                        }
+                    }));
+                }
+
+                for (int f = from; f < to; f++) {
+                    try {
+                        futures.get(f - from).get();
+                    } catch (InterruptedException e) {
+                        throw new ExecutionFailedException("Thread was interrupted", e);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof ExecutionFailedException) {
+                            throw (ExecutionFailedException) e.getCause();
+                        }
+                        throw new ExecutionFailedException("Processing of file " + files[f] + " failed", e.getCause());
+                    }
+                    String name = ReadersUtils.readDnaLazy(files[f]).name();
+                    File outFile = new File(outDir, name + ".vec");
+                    File outBreadthFile = new File(outDir, name + ".breadth");
+                    printVector(vectors[f - from], breadths[f - from], outFile, outBreadthFile);
+                    info("Features for file " + files[f].getName() + " printed to " + outFile);
+                    info("Components breadth coverage for file " + files[f].getName() + " printed to " + outBreadthFile);
+                }
+                debug("Memory used (after batch) = " + Misc.usedMemoryAsString());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void buildVector(int[][] componentSlots, AtomicIntegerArray counts, long[] vector, double[] breadth) {
+        int threshold = this.threshold.get();
+        for (int i = 0; i < componentSlots.length; i++) {
+            long kmers = 0, kmersFound = 0;
+            for (int slot : componentSlots[i]) {
+                int value = counts.get(slot);
+                if (value > threshold) {
+                    kmers += value;
+                    kmersFound++;
+                }
+            }
+            vector[i] = kmers;
+            breadth[i] = ((double) kmersFound) / componentSlots[i].length;
+        }
+    }
+
     private void buildAndPrintVector(final List<ConnectedComponent> components, final BigLong2LongHashMap hm,
                                      final int threshold, final BigLong2ShortHashMap selected, final long[] vector, final double[] breadth, File outFile,
                                      File outBreadthFile) throws ExecutionFailedException {
@@ -213,7 +350,15 @@ public class FeaturesCalculatorMain extends Tool {
                 }
             }
 
-            // writing to file
+            printVector(vector, breadth, outFile, outBreadthFile);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Calculating thread was interrupted!", e);
+        }
+    }
+
+    private void printVector(long[] vector, double[] breadth, File outFile, File outBreadthFile)
+            throws ExecutionFailedException {
+        try {
             PrintWriter out = new PrintWriter(new BufferedWriter(
                     new OutputStreamWriter(new FileOutputStream(outFile)), 1 << 20));   // 1 Mb buffer
             for (long kmers : vector) {
@@ -230,8 +375,6 @@ public class FeaturesCalculatorMain extends Tool {
             bout.close();
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't write vector to file " + outFile, e);
-        } catch (InterruptedException e) {
-            throw new ExecutionFailedException("Calculating thread was interrupted!", e);
         }
     }
 
@@ -1,11 +1,15 @@
 package tools;
 
 import io.IOUtils;
+import io.LoadingEngine;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
@@ -16,7 +20,18 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class KmersCounterForManyFilesMain extends Tool {
 
@@ -42,6 +57,13 @@ public class KmersCounterForManyFilesMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> compressedOutput = addParameter(new BoolParameterBuilder("compressed-output")
+            .optional()
+            .withShortOpt("z")
+            .withDescription("save k-mers sorted and block-compressed (.kmers.bin version 2)")
+            .withDefaultValue(false)
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -77,36 +99,167 @@ public class KmersCounterForManyFilesMain extends Tool {
             names.add(ReadersUtils.readDnaLazy(f).name());
         }
 
+        List<File[]> samples = new ArrayList<File[]>();
         int i=0;
         while (i < files.length) {
             if ((names.get(i).endsWith("_r1") && i+1<files.length && names.get(i+1).endsWith("_r2")) ||
                     (names.get(i).endsWith("_R1") && i+1<files.length && names.get(i+1).endsWith("_R2"))) {
-                KmersCounterMain counter = new KmersCounterMain();
-                counter.workDir.set(workDir.append("sub-counter"));
-                counter.k.set(k);
-                counter.inputFiles.set(new File[]{files[i], files[i+1]});
-                counter.maximalBadFrequency.set(maximalBadFrequency);
-                counter.outputDir.set(outputDir);
-                counter.statsDir.set(statsDir);
-
-                addStep(counter);
-                counters.add(counter);
+                samples.add(new File[]{files[i], files[i+1]});
                 i += 2;
             } else {
-                KmersCounterMain counter = new KmersCounterMain();
-                counter.workDir.set(workDir.append("sub-counter"));
-                counter.k.set(k);
-                counter.inputFiles.set(new File[]{files[i]});
-                counter.maximalBadFrequency.set(maximalBadFrequency);
-                counter.outputDir.set(outputDir);
-                counter.statsDir.set(statsDir);
-
-                addStep(counter);
-                counters.add(counter);
+                samples.add(new File[]{files[i]});
                 i += 1;
             }
         }
 
+        for (int j = 0; j < samples.size(); j++) {
+            File[] sampleFiles = samples.get(j);
+            KmersCounterMain counter = new KmersCounterMain();
+            counter.workDir.set(workDir.append("sub-counter-" + (j + 1)));     // separate dirs for concurrent runs
+            counter.k.set(k);
+            counter.inputFiles.set(sampleFiles);
+            counter.maximalBadFrequency.set(maximalBadFrequency);
+            counter.compressedOutput.set(compressedOutput);
+            counter.outputDir.set(outputDir);
+            counter.statsDir.set(statsDir);
+            counters.add(counter);
+        }
+
+        List<KmersCounterMain> toRun = new ArrayList<KmersCounterMain>();
+        boolean shouldContinue = (continueParameter.get() != null && continueParameter.get());
+        for (KmersCounterMain counter : counters) {
+            if (shouldContinue && counter.loadFinishedRun()) {
+                info("K-mers for " + counter.inputFiles.get()[0].getName() + " were counted in previous run, " +
+                        "loading results...");
+            } else {
+                toRun.add(counter);
+            }
+        }
+        runConcurrently(toRun);
+    }
+
+
+    /**
+     * Memory for counting k-mers of one nucleotide of reads, as the map takes about 13 bytes per k-mer,
+     * and there are less distinct k-mers than nucleotides in reads.
+     */
+    static final double MEMORY_PER_NUCLEOTIDE = 8;
+    static final double COMPRESSION_RATIO = 4;
+
+    /**
+     * Estimates memory needed to count k-mers of given reads files by their size.
+     */
+    static long estimateMemory(File[] files) {
+        double nucleotides = 0;
+        for (File f : files) {
+            String name = f.getName().toLowerCase();
+            double n = f.length();
+            if (name.endsWith(".gz") || name.endsWith(".bz2")) {
+                n *= COMPRESSION_RATIO;
+            }
+            if (name.contains(".fastq") || name.contains(".fq")) {
+                n /= 2;     // qualities and headers
+            }
+            nucleotides += n;
+        }
+        return (long) (nucleotides * MEMORY_PER_NUCLEOTIDE);
+    }
+
+    /**
+     * Runs counters of several samples at once, while their estimated memory fits into available memory.
+     * Samples are taken from the largest one, smaller samples fill the rest of memory.
+     * Free processors are divided among started samples in proportion to their memory,
+     * so a large sample gets the whole machine, and small ones are counted side by side.
+     */
+    private void runConcurrently(List<KmersCounterMain> counters) throws ExecutionFailedException {
+        int processors = availableProcessors.get();
+        long budget = Math.max(1, Misc.availableMemory());
+        info("Counting k-mers for " + counters.size() + " samples, memory = " + NumUtils.memoryAsString(budget));
+
+        List<KmersCounterMain> queue = new ArrayList<KmersCounterMain>(counters);
+        final Map<KmersCounterMain, Long> memory = new HashMap<KmersCounterMain, Long>();
+        for (KmersCounterMain counter : queue) {
+            memory.put(counter, Math.min(budget, estimateMemory(counter.inputFiles.get())));
+        }
+        Collections.sort(queue, new Comparator<KmersCounterMain>() {
+            @Override
+            public int compare(KmersCounterMain o1, KmersCounterMain o2) {
+                return Long.compare(memory.get(o2), memory.get(o1));
+            }
+        });
+
+        LoadingEngine.getInstance(processors);     // enough loading threads for all samples at once
+        ExecutorService executor = Executors.newFixedThreadPool(processors);
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+        Map<Future<Void>, KmersCounterMain> running = new HashMap<Future<Void>, KmersCounterMain>();
+        long freeMemory = budget;
+        int freeProcessors = processors;
+        ExecutionFailedException failure = null;
+        try {
+            while (!running.isEmpty() || (!queue.isEmpty() && failure == null)) {
+                List<KmersCounterMain> started = new ArrayList<KmersCounterMain>();
+                long startedMemory = 0;
+                if (failure == null) {
+                    for (KmersCounterMain counter : queue) {
+                        if (started.size() < freeProcessors && startedMemory + memory.get(counter) <= freeMemory) {
+                            started.add(counter);
+                            startedMemory += memory.get(counter);
+                        }
+                    }
+                }
+
+                int left = freeProcessors;
+                for (int j = 0; j < started.size(); j++) {
+                    final KmersCounterMain counter = started.get(j);
+                    int others = started.size() - 1 - j;
+                    int threads = (others == 0) ? left :
+                            (int) Math.max(1, freeProcessors * memory.get(counter) / Math.max(1, startedMemory));
+                    threads = Math.min(threads, left - others);
+                    left -= threads;
+
+                    counter.availableProcessors.set(threads);
+                    queue.remove(counter);
+                    debug("Starting counter for " + counter.inputFiles.get()[0].getName() + " on " + threads +
+                            " threads, estimated memory = " + NumUtils.memoryAsString(memory.get(counter)));
+                    running.put(completion.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws ExecutionFailedException {
+                            counter.resetFinished();
+                            counter.simpleRun();
+                            try {
+                                counter.markFinished();
+                            } catch (IOException e) {
+                                throw new ExecutionFailedException("Can't mark counter as finished", e);
+                            }
+                            return null;
+                        }
+                    }), counter);
+                }
+                freeMemory -= startedMemory;
+                freeProcessors = left;
+
+                Future<Void> done = completion.take();
+                KmersCounterMain counter = running.remove(done);
+                freeMemory += memory.get(counter);
+                freeProcessors += counter.availableProcessors.get();
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof ExecutionFailedException)
+                                ? (ExecutionFailedException) e.getCause()
+                                : new ExecutionFailedException("Counter failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     @Override
@@ -1,22 +1,29 @@
 package tools;
 
+import io.DiskKmersCounter;
 import io.IOUtils;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.pairs.Pair;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.HyperLogLog;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 public class KmersCounterMain extends Tool {
 
@@ -44,6 +51,39 @@ public class KmersCounterMain extends Tool {
             .withDefaultValue(1)
             .create());
 
+    public final Parameter<Boolean> compressedOutput = addParameter(new BoolParameterBuilder("compressed-output")
+            .optional()
+            .withShortOpt("z")
+            .withDescription("save k-mers sorted and block-compressed (.kmers.bin version 2)")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> skipSingletons = addParameter(new BoolParameterBuilder("skip-singletons")
+            .optional()
+            .withDescription("don't keep k-mers seen once in memory (two-stage counting with Bloom filter), " +
+                    "such k-mers are missing in statistics and their number is approximate")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Boolean> diskMode = addParameter(new BoolParameterBuilder("disk-mode")
+            .optional()
+            .withDescription("count k-mers out of memory: split them to bins on disk by minimizers and count bins one by one")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<Integer> memoryCap = addParameter(new IntParameterBuilder("memory-cap")
+            .optional()
+            .withDescription("memory for counting one bin in disk mode (in Mb)")
+            .withDefaultValue((int) (Runtime.getRuntime().maxMemory() / 2 / (1 << 20)))
+            .withDefaultComment("half of the available memory")
+            .create());
+
+    public final Parameter<File> tempDir = addParameter(new FileParameterBuilder("temp-dir")
+            .optional()
+            .withDescription("directory for temporary bin files in disk mode")
+            .withDefaultValue(workDir.append("bins"))
+            .create());
+
     public final Parameter<File> outputDir = addParameter(new FileParameterBuilder("output-dir")
             .withDescription("Output directory")
             .withDefaultValue(workDir.append("kmers"))
@@ -73,9 +113,28 @@ public class KmersCounterMain extends Tool {
         }
 
 
+        boolean withoutSingletons = skipSingletons.get() && maximalBadFrequency.get() >= 1;
+        if (skipSingletons.get() && !withoutSingletons) {
+            warn("--skip-singletons is ignored, as k-mers seen once are good with maximal bad frequency 0");
+        }
+
+        if (diskMode.get()) {
+            runOnDisk(withoutSingletons);
+            return;
+        }
+
         Timer t = new Timer();
-        BigLong2ShortHashMap hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
-                availableProcessors.get(),  logger);
+        BigLong2ShortHashMap hm;
+        long singletons = 0;
+        if (withoutSingletons) {
+            Pair<BigLong2ShortHashMap, Long> p = IOUtils.loadReadsWithoutSingletons(inputFiles.get(), k.get(), 0,
+                    availableProcessors.get(), logger);
+            hm = p.first();
+            singletons = p.second();
+        } else {
+            hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
+                    availableProcessors.get(),  logger);
+        }
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
@@ -91,32 +150,110 @@ public class KmersCounterMain extends Tool {
         String name = getName();
         File outFile = new File(outDir, name + ".kmers.bin");
         File stFile = new File(stDir, name + ".stat.txt");
+        File sketchFile = IOUtils.sketchFileFor(outFile);
 
 
         debug("Starting to print k-mers to " + outFile.getPath());
         long c = 0;
         try {
-            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
+            HyperLogLog sketch = new HyperLogLog();
+            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile,
+                    compressedOutput.get() ? IOUtils.KmersFileFormat.BLOCK : IOUtils.KmersFileFormat.PLAIN, k.get(),
+                    sketch);
+            IOUtils.printSketch(sketch, sketchFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
-                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them is good (not erroneous)");
+        printSummary(hm.size() + singletons, c);
 
-        if (hm.size() == 0) {
+        info("Good k-mers printed to " + outFile.getPath() + ", their sketch to " + sketchFile.getPath());
+        resultingKmerFilesPr.set(outFile);
+    }
+
+    private void runOnDisk(boolean withoutSingletons) throws ExecutionFailedException, IOException {
+        File outDir = outputDir.get();
+        if (!outDir.exists()) {
+            outDir.mkdirs();
+        }
+        File stDir = statsDir.get();
+        if (!stDir.exists()) {
+            stDir.mkdirs();
+        }
+
+        String name = getName();
+        File outFile = new File(outDir, name + ".kmers.bin");
+        File stFile = new File(stDir, name + ".stat.txt");
+        File sketchFile = IOUtils.sketchFileFor(outFile);
+
+        Timer t = new Timer();
+        DiskKmersCounter.Result result = DiskKmersCounter.countReads(inputFiles.get(), k.get(), 0,
+                maximalBadFrequency.get(), withoutSingletons, (long) memoryCap.get() << 20, tempDir.get(), outFile, stFile,
+                compressedOutput.get() ? IOUtils.KmersFileFormat.BLOCK : IOUtils.KmersFileFormat.PLAIN,
+                availableProcessors.get(), logger);
+        IOUtils.printSketch(result.sketch, sketchFile);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+        printSummary(result.kmers + result.singletons, result.good);
+
+        info("Good k-mers printed to " + outFile.getPath() + ", their sketch to " + sketchFile.getPath());
+        resultingKmerFilesPr.set(outFile);
+    }
+
+    private void printSummary(long kmers, long good) {
+        info(NumUtils.groupDigits(kmers) + " k-mers found, "
+                + NumUtils.groupDigits(good) + " (" + String.format("%.1f", good * 100.0 / kmers) + "%) of them is good (not erroneous)");
+
+        if (kmers == 0) {
             warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
-        } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
+        } else if (good == 0 || good < (long) (kmers * 0.03)) {
             warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
         }
         long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
-        if (hm.size() == allKmersNumber) {
+        if (kmers == allKmersNumber) {
             warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
+        } else if (kmers >= (long) (allKmersNumber * 0.99)) {
             warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
         }
+    }
 
-        info("Good k-mers printed to " + outFile.getPath());
+    /**
+     * Checks that a previous run with the same parameters was marked as finished by {@link #markFinished()},
+     * and its output files exist. If so, its resulting k-mers file is set as the result of this run.
+     */
+    boolean loadFinishedRun() throws IOException {
+        File success = new File(workDir.get(), SUCCESS_FILE);
+        String name = getName();
+        File outFile = new File(outputDir.get(), name + ".kmers.bin");
+        File stFile = new File(statsDir.get(), name + ".stat.txt");
+        if (!success.exists() || !outFile.exists() || !stFile.exists()) {
+            return false;
+        }
+        String finished = new String(Files.readAllBytes(success.toPath()), StandardCharsets.UTF_8);
+        if (!finished.equals(runDescription())) {
+            return false;
+        }
         resultingKmerFilesPr.set(outFile);
+        return true;
+    }
+
+    /**
+     * Marks the run as finished in the working directory, {@link #resetFinished()} removes the mark.
+     */
+    void markFinished() throws IOException {
+        workDir.get().mkdirs();
+        Files.write(new File(workDir.get(), SUCCESS_FILE).toPath(), runDescription().getBytes(StandardCharsets.UTF_8));
+    }
+
+    void resetFinished() {
+        new File(workDir.get(), SUCCESS_FILE).delete();
+    }
+
+    private String runDescription() {
+        return "reads = " + Arrays.toString(inputFiles.get()) + ", k = " + k.get() +
+                ", maximal-bad-frequence = " + maximalBadFrequency.get() +
+                ", compressed-output = " + compressedOutput.get() +
+                ", skip-singletons = " + skipSingletons.get() +
+                ", output-dir = " + outputDir.get() + ", stats-dir = " + statsDir.get() + "\n";
     }
 
     private String getName() throws IOException {
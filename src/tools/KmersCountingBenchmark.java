@@ -0,0 +1,102 @@
+package tools;
+
+import io.IOUtils;
+import io.MinimizerKmersCounter;
+import it.unimi.dsi.fastutil.longs.Long2ShortMap;
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class KmersCountingBenchmark extends Tool {
+
+    public static final String NAME = "kmers-counting-benchmark";
+
+    public static final String DESCRIPTION = "Compares time of k-mers counting by IOUtils.loadReads " +
+            "and by minimizer-grouped counting, and checks that their results are the same";
+
+
+    public final Parameter<Integer> k = addParameter(new IntParameterBuilder("k")
+            .mandatory()
+            .withShortOpt("k")
+            .withDescription("k-mer size (maximum 31 due to realization details)")
+            .create());
+
+    public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
+            .withShortOpt("i")
+            .mandatory()
+            .withDescription("list of reads files to count k-mers in")
+            .create());
+
+    public final Parameter<Integer> runs = addParameter(new IntParameterBuilder("runs")
+            .optional()
+            .withShortOpt("r")
+            .withDescription("number of runs of every counting method, the best time is reported")
+            .withDefaultValue(3)
+            .create());
+
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException, IOException {
+        long loadTime = Long.MAX_VALUE, minimizerTime = Long.MAX_VALUE;
+        BigLong2ShortHashMap loaded = null;
+        Long2ShortOpenHashMap[] grouped = null;
+        for (int run = 0; run < runs.get(); run++) {
+            loaded = null;
+            System.gc();
+            Timer t = new Timer();
+            loaded = IOUtils.loadReads(inputFiles.get(), k.get(), 0, availableProcessors.get(), logger);
+            loadTime = Math.min(loadTime, t.getTime());
+            info("Run " + (run + 1) + ": loadReads - " + t);
+
+            grouped = null;
+            System.gc();
+            t = new Timer();
+            grouped = MinimizerKmersCounter.countReads(inputFiles.get(), k.get(), 0, availableProcessors.get(), logger);
+            minimizerTime = Math.min(minimizerTime, t.getTime());
+            info("Run " + (run + 1) + ": minimizer-grouped counting - " + t);
+        }
+
+        info("Best time: loadReads - " + Timer.timeToString(loadTime) +
+                ", minimizer-grouped counting - " + Timer.timeToString(minimizerTime) +
+                String.format(" (%.2fx)", (double) loadTime / Math.max(1, minimizerTime)));
+
+        long groupedSize = 0;
+        for (Long2ShortOpenHashMap map : grouped) {
+            groupedSize += map.size();
+        }
+        if (loaded.size() != groupedSize) {
+            throw new ExecutionFailedException("Results differ: " + NumUtils.groupDigits(loaded.size()) + " and " +
+                    NumUtils.groupDigits(groupedSize) + " k-mers");
+        }
+        for (Long2ShortOpenHashMap map : grouped) {     // maps have no common k-mers
+            for (Long2ShortMap.Entry entry : map.long2ShortEntrySet()) {
+                if (loaded.getWithZero(entry.getLongKey()) != entry.getShortValue()) {
+                    throw new ExecutionFailedException("Results differ: frequencies of k-mer " + entry.getLongKey() +
+                            " are " + loaded.getWithZero(entry.getLongKey()) + " and " + entry.getShortValue());
+                }
+            }
+        }
+        info("Results are the same, " + NumUtils.groupDigits(loaded.size()) + " k-mers");
+    }
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public static void main(String[] args) {
+        new KmersCountingBenchmark().mainImpl(args);
+    }
+
+    public KmersCountingBenchmark() {
+        super(NAME, DESCRIPTION);
+    }
+}
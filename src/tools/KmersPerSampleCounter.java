@@ -1,6 +1,10 @@
 package tools;
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import io.SortedKmersReader;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -15,6 +19,7 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 
@@ -71,6 +76,15 @@ public class KmersPerSampleCounter  extends Tool {
             outDir.mkdirs();
         }
 
+        try {
+            if (SortedKmersReader.areSorted(inputFiles.get())) {
+                runMerging(outDir, t);
+                return;
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't read k-mers files", e);
+        }
+
 
         info("Loading all k-mers...");
         BigLong2ShortHashMap hm = null;
@@ -80,8 +94,14 @@ public class KmersPerSampleCounter  extends Tool {
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
             if (hm == null) {
+                // the first sample is counted in place, all its loaded k-mers are present in it
                 hm = filt_hm;
-                hm.resetValues();
+                Iterator<MutableLongShortEntry> it = hm.entryIterator();
+                while (it.hasNext()) {
+                    MutableLongShortEntry entry = it.next();
+                    hm.put(entry.getKey(), (short) (entry.getValue() > 0 ? 1 : 0));
+                }
+                continue;
             }
 
             Iterator<MutableLongShortEntry> it = filt_hm.entryIterator();
@@ -112,6 +132,16 @@ public class KmersPerSampleCounter  extends Tool {
             }
         }
         hm.reset();
+
+        // printing in key order, the same as for sorted files
+        LongArrayList selected = new LongArrayList((int) hm_filtered.size());
+        {
+            Iterator<MutableLongShortEntry> it_filtered = hm_filtered.entryIterator();
+            while (it_filtered.hasNext()) {
+                selected.add(it_filtered.next().getKey());
+            }
+        }
+        LongArrays.radixSort(selected.elements(), 0, selected.size());
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
@@ -125,29 +155,94 @@ public class KmersPerSampleCounter  extends Tool {
         }
         debug("Starting to print k-mers to " + outFile.getPath());
 
-        {
-            Iterator<MutableLongShortEntry> it_filtered = hm_filtered.entryIterator();
-            while (it_filtered.hasNext()) {
-                MutableLongShortEntry entry = it_filtered.next();
-                long key = entry.getKey();
-                out.print("\t" + new ShortKmer(key, k.get()));
-            }
-            out.println();
+        for (int j = 0; j < selected.size(); j++) {
+            out.print("\t" + new ShortKmer(selected.getLong(j), k.get()));
         }
+        out.println();
 
 
         for (File file: inputFiles.get()) {
-            BigLong2ShortHashMap file_hm = IOUtils.loadKmers(new File[]{file}, 0,
+            BigLong2ShortHashMap file_hm = IOUtils.loadKmers(new File[]{file}, 0, hm_filtered::contains,
                     availableProcessors.get(), logger);
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
             out.print(file.getName().replace(".kmers.bin", ""));
 
-            Iterator<MutableLongShortEntry> it_filtered = hm_filtered.entryIterator();
-            while (it_filtered.hasNext()) {
-                MutableLongShortEntry entry = it_filtered.next();
-                long key = entry.getKey();
-                out.print("\t" + file_hm.getWithZero(key));
+            for (int j = 0; j < selected.size(); j++) {
+                out.print("\t" + file_hm.getWithZero(selected.getLong(j)));
+            }
+            out.println();
+        }
+        out.close();
+
+        info("K-mers printed to " + outFile.getPath());
+    }
+
+    /**
+     * Streaming version for sorted k-mers files, only selected k-mers are kept in memory.
+     */
+    private void runMerging(File outDir, Timer t) throws ExecutionFailedException {
+        info("Selecting k-mers from sorted files...");
+        int thresh = inputFiles.get().length * percentPresent.get()/100;
+        LongArrayList selected = new LongArrayList();
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(inputFiles.get());
+            try {
+                while (merger.next()) {
+                    int samples = 0;
+                    for (int i = 0; i < merger.presentCount; i++) {
+                        if (merger.values[merger.present[i]] > 0) {
+                            samples++;
+                        }
+                    }
+                    if (samples >= thresh) {
+                        selected.add(merger.key);
+                    }
+                }
+            } finally {
+                merger.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't merge k-mers files", e);
+        }
+        debug(selected.size() + " k-mers selected");
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+
+        info("Calculating presence of selected k-mers...");
+        File outFile = new File(outDir, "selected_kmers_"+ percentPresent.get() +".txt");
+        PrintWriter out;
+        try {
+            out = new PrintWriter(outFile);
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Couldn't open output file", e);
+        }
+        debug("Starting to print k-mers to " + outFile.getPath());
+
+        for (int j = 0; j < selected.size(); j++) {
+            out.print("\t" + new ShortKmer(selected.getLong(j), k.get()));
+        }
+        out.println();
+
+        for (File file: inputFiles.get()) {
+            out.print(file.getName().replace(".kmers.bin", ""));
+            try {
+                SortedKmersReader reader = new SortedKmersReader(file);
+                try {
+                    boolean hasNext = reader.next();
+                    for (int j = 0; j < selected.size(); j++) {
+                        long key = selected.getLong(j);
+                        while (hasNext && reader.key < key) {
+                            hasNext = reader.next();
+                        }
+                        out.print("\t" + ((hasNext && reader.key == key) ? reader.value : 0));
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                out.close();
+                throw new ExecutionFailedException("Can't read k-mers file " + file, e);
             }
             out.println();
         }
@@ -2,6 +2,9 @@ package tools;
 
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import io.SortedKmersReader;
+import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -16,7 +19,10 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -87,6 +93,15 @@ public class KmersSamplesCounter extends Tool {
             stDir.mkdirs();
         }
 
+        try {
+            if (SortedKmersReader.areSorted(inputFiles.get())) {
+                runMerging(outDir, stDir);
+                return;
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't read k-mers files", e);
+        }
+
         BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(),
                 availableProcessors.get(), logger);
         hm.resetValues();
@@ -139,6 +154,59 @@ public class KmersSamplesCounter extends Tool {
         resultingKmerFilesPr.set(outFile);
     }
 
+    /**
+     * Streaming version for sorted k-mers files, the result is written in increasing order of k-mers.
+     */
+    private void runMerging(File outDir, File stDir) throws ExecutionFailedException {
+        File outFile = new File(outDir, "n_samples.kmers.bin");
+        File stFile = new File(stDir, "n_samples.stat.txt");
+
+        info("Merging sorted k-mers files...");
+        debug("Starting to print k-mers to " + outFile.getPath());
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long c = 0;
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(inputFiles.get());
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
+            try {
+                while (merger.next()) {
+                    short samples = 0;
+                    for (int i = 0; i < merger.presentCount; i++) {
+                        if (merger.values[merger.present[i]] > maximalBadFrequency.get()) {
+                            samples++;
+                        }
+                    }
+                    if (samples > 0) {
+                        stats.add(samples);
+                        stream.writeLong(merger.key);
+                        stream.writeShort(samples);
+                        c++;
+                    }
+                }
+            } finally {
+                stream.close();
+                merger.close();
+            }
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't merge k-mers files", e);
+        }
+
+        info(NumUtils.groupDigits(c) + " k-mers found in samples");
+        if (c == 0) {
+            warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
+        }
+        long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
+        if (c == allKmersNumber) {
+            warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
+        } else if (c >= (long) (allKmersNumber * 0.99)) {
+            warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
+        }
+        info("Good k-mers printed to " + outFile.getPath());
+        resultingKmerFilesPr.set(outFile);
+    }
+
     @Override
     protected void cleanImpl() {
     }
@@ -0,0 +1,159 @@
+package tools;
+
+import io.IOUtils;
+import ru.ifmo.genetics.utils.FileUtils;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import structures.HyperLogLog;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class KmersSketchEstimator extends Tool {
+
+    public static final String NAME = "kmers-sketch-estimator";
+
+    public static final String DESCRIPTION = "Estimates numbers of distinct k-mers in samples, their unions and intersections by HyperLogLog sketches";
+
+
+    public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("sketches")
+            .mandatory()
+            .withShortOpt("i")
+            .withDescription("list of sketch files (" + IOUtils.SKETCH_EXTENSION + ") or k-mers files with sketches next to them")
+            .create());
+
+    public final Parameter<File[]> secondFiles = addParameter(new FileMVParameterBuilder("second-group")
+            .optional()
+            .withShortOpt("j")
+            .withDescription("list of sketch files of the second group, to estimate intersection of groups")
+            .create());
+
+    public final Parameter<Boolean> pairwise = addParameter(new BoolParameterBuilder("pairwise")
+            .optional()
+            .withDefaultValue(false)
+            .withDescription("if SET print matrix of estimated pairwise intersections of all samples")
+            .create());
+
+    public final Parameter<File> outputFile = addParameter(new FileParameterBuilder("output-file")
+            .optional()
+            .withShortOpt("o")
+            .withDescription("file to print to")
+            .withDefaultValue((File) null)
+            .withDefaultComment("print to the screen")
+            .create());
+
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException {
+        File[] first = inputFiles.get();
+        File[] second = (secondFiles.get() == null) ? new File[0] : secondFiles.get();
+
+        HyperLogLog[] sketches = new HyperLogLog[first.length + second.length];
+        String[] names = new String[sketches.length];
+        for (int i = 0; i < sketches.length; i++) {
+            File file = (i < first.length) ? first[i] : second[i - first.length];
+            File sketchFile = file.getName().endsWith(IOUtils.SKETCH_EXTENSION) ? file : IOUtils.sketchFileFor(file);
+            try {
+                sketches[i] = IOUtils.loadSketch(sketchFile);
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't load sketch " + sketchFile, e);
+            }
+            names[i] = FileUtils.removeExtension(sketchFile.getName(), IOUtils.SKETCH_EXTENSION);
+        }
+
+        PrintWriter out;
+        try {
+            out = (outputFile.get() != null) ? new PrintWriter(outputFile.get())
+                    : new PrintWriter(System.out);
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Couldn't open output file", e);
+        }
+
+        try {
+            long[] cardinality = new long[sketches.length];
+            out.println("# sample\tdistinct k-mers");
+            for (int i = 0; i < sketches.length; i++) {
+                cardinality[i] = sketches[i].cardinality();
+                out.println(names[i] + "\t" + cardinality[i]);
+            }
+
+            long unionFirst = union(sketches, 0, first.length).cardinality();
+            out.println("# union of " + first.length + " samples\t" + unionFirst);
+            if (second.length > 0) {
+                long unionSecond = union(sketches, first.length, sketches.length).cardinality();
+                long unionAll = union(sketches, 0, sketches.length).cardinality();
+                out.println("# union of " + second.length + " samples of the second group\t" + unionSecond);
+                out.println("# union of both groups\t" + unionAll);
+                out.println("# intersection of groups\t" + intersection(unionFirst, unionSecond, unionAll));
+                info("Estimated intersection of groups = "
+                        + NumUtils.groupDigits(intersection(unionFirst, unionSecond, unionAll)) + " k-mers");
+            }
+
+            if (pairwise.get()) {
+                out.println("# pairwise intersections");
+                for (int i = 0; i < sketches.length; i++) {
+                    out.print("\t" + names[i]);
+                }
+                out.println();
+                for (int i = 0; i < sketches.length; i++) {
+                    out.print(names[i]);
+                    for (int j = 0; j < sketches.length; j++) {
+                        long cij = (i == j) ? cardinality[i]
+                                : intersection(cardinality[i], cardinality[j], union(sketches[i], sketches[j]).cardinality());
+                        out.print("\t" + cij);
+                    }
+                    out.println();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ExecutionFailedException("Sketches are incompatible: " + e.getMessage(), e);
+        } finally {
+            out.flush();
+            if (outputFile.get() != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static HyperLogLog union(HyperLogLog[] sketches, int from, int to) {
+        HyperLogLog union = new HyperLogLog(sketches[from].logRegisters());
+        for (int i = from; i < to; i++) {
+            union.merge(sketches[i]);
+        }
+        return union;
+    }
+
+    private static HyperLogLog union(HyperLogLog a, HyperLogLog b) {
+        HyperLogLog union = new HyperLogLog(a.logRegisters());
+        union.merge(a);
+        union.merge(b);
+        return union;
+    }
+
+    /**
+     * |A & B| = |A| + |B| - |A | B|, the error of the estimate is of the order of the union error.
+     */
+    private static long intersection(long a, long b, long union) {
+        return Math.max(0, a + b - union);
+    }
+
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public KmersSketchEstimator() {
+        super(NAME, DESCRIPTION);
+    }
+
+    public static void main(String[] args) {
+        new KmersSketchEstimator().mainImpl(args);
+    }
+}
@@ -0,0 +1,107 @@
+package tools;
+
+import io.IOUtils;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.pairs.Pair;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+import structures.map.BigLong2BitLongaPackedHashMap;
+import structures.map.BigLong2BitShortaHashMap;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.MapSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+
+public class KmersSnapshotMain extends Tool {
+
+    public static final String NAME = "kmers-snapshot";
+
+    public static final String DESCRIPTION = "Loads k-mers and saves the map as a snapshot, that is reopened by other tools without rehashing";
+
+
+    public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("k-mers")
+            .mandatory()
+            .withShortOpt("i")
+            .withDescription("list of input files with k-mers in binary format")
+            .create());
+
+    public final Parameter<Integer> maximalBadFrequency = addParameter(new IntParameterBuilder("maximal-bad-frequency")
+            .optional()
+            .withShortOpt("b")
+            .withDescription("maximal frequency for a k-mer to be assumed erroneous")
+            .withDefaultValue(1)
+            .create());
+
+    public final Parameter<String> mapType = addParameter(new StringParameterBuilder("map-type")
+            .optional()
+            .withDescription("map to save: short (k-mers frequencies, as used by seq-builder, component-cutter, etc.), " +
+                    "bit-shorta or bit-longa (presence of k-mers in every input file)")
+            .withDefaultValue("short")
+            .create());
+
+    public final Parameter<File> outputFile = addParameter(new FileParameterBuilder("output-file")
+            .optional()
+            .withShortOpt("o")
+            .withDescription("file to save the snapshot to")
+            .withDefaultValue(workDir.append("kmers.snapshot"))
+            .create());
+
+
+    @Override
+    protected void runImpl() throws ExecutionFailedException {
+        File[] files = inputFiles.get();
+        File out = outputFile.get();
+        int threshold = maximalBadFrequency.get();
+
+        Object hm = null;
+        try {
+            if (mapType.get().equals("short")) {
+                Pair<BigLong2ShortHashMap, Long> loaded = IOUtils.loadKmersFreq(files, threshold,
+                        availableProcessors.get(), logger);
+                hm = loaded.first();
+                MapSnapshot.write(loaded.first(), out, threshold, loaded.second());
+            } else if (mapType.get().equals("bit-shorta")) {
+                BigLong2BitShortaHashMap map = IOUtils.loadBitShortaKmers(files, threshold, availableProcessors.get(), logger);
+                hm = map;
+                MapSnapshot.write(map, out, threshold, -1);
+            } else if (mapType.get().equals("bit-longa")) {
+                Long2BitLongaHashMapInterface map = IOUtils.loadBitLongaKmers(files, threshold, availableProcessors.get(), logger);
+                hm = map;
+                if (!(map instanceof BigLong2BitLongaPackedHashMap)) {
+                    throw new ExecutionFailedException("Can't save snapshot of " + map.getClass().getSimpleName());
+                }
+                MapSnapshot.write((BigLong2BitLongaPackedHashMap) map, out, threshold, -1);
+            } else {
+                throw new ExecutionFailedException("Unknown map type " + mapType.get() +
+                        ", expected short, bit-shorta or bit-longa");
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't write snapshot to " + out, e);
+        } finally {
+            IOUtils.free(hm);
+        }
+        debug("Memory used = " + Misc.usedMemoryAsString());
+        info("Snapshot of " + NumUtils.memoryAsString(out.length()) + " saved to " + out);
+    }
+
+
+    @Override
+    protected void cleanImpl() {
+    }
+
+    public KmersSnapshotMain() {
+        super(NAME, DESCRIPTION);
+    }
+
+    public static void main(String[] args) {
+        new KmersSnapshotMain().mainImpl(args);
+    }
+}
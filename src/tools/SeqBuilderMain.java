@@ -1,11 +1,12 @@
 package tools;
 
 import algo.SequencesFinders;
+import io.FrequencyHistogram;
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.*;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
-import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.pairs.Pair;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -20,7 +21,6 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
 
 public class SeqBuilderMain extends Tool {
     public static final String NAME = "seq-builder";
@@ -69,6 +69,12 @@ public class SeqBuilderMain extends Tool {
             .create());
 
 
+    public final Parameter<Boolean> offHeap = addParameter(new BoolParameterBuilder("off-heap")
+            .optional()
+            .withDescription("keep k-mers map in direct memory instead of the Java heap " +
+                    "(set its size by -XX:MaxDirectMemorySize)")
+            .create());
+
     // output values
     private final InMemoryValue<File> outputFilePr = new InMemoryValue<File>();
     public final InValue<File> outputFileOut = addOutput("output-file", outputFilePr, File.class);
@@ -77,26 +83,20 @@ public class SeqBuilderMain extends Tool {
     @Override
     protected void runImpl() throws ExecutionFailedException {
         Timer t = new Timer();
-        BigLong2ShortHashMap hm =
-                IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(), availableProcessors.get(), logger);
+        Pair<BigLong2ShortHashMap, FrequencyHistogram> loaded = IOUtils.loadKmersWithHistogram(inputFiles.get(),
+                maximalBadFrequency.get(), STAT_LEN,
+                offHeap.get() ? IOUtils.MapMemoryMode.OFF_HEAP : IOUtils.MapMemoryMode.HEAP,
+                availableProcessors.get(), logger);
+        BigLong2ShortHashMap hm = loaded.first();
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
-        long totalKmers = 0;
-        int[] stat = new int[STAT_LEN];
-        Iterator<MutableLongShortEntry> it = hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            int value = entry.getValue();
-            totalKmers += value;
-            if (value >= stat.length) {
-                value = stat.length - 1;
-            }
-            ++stat[value];
-        }
+        long totalKmers = loaded.second().totalFrequency();
+        int[] stat = loaded.second().toIntArray();
 
         try {
             dumpStat(stat, workDir + File.separator + DISTRIBUTION_FILENAME);
         } catch (FileNotFoundException e) {
+            IOUtils.free(hm);
             throw new ExecutionFailedException(e);
         }
 
@@ -149,6 +149,8 @@ public class SeqBuilderMain extends Tool {
         } catch (InterruptedException e) {
             e.printStackTrace();
             return;
+        } finally {
+            IOUtils.free(hm);
         }
         info(NumUtils.groupDigits(sequences.size()) + " sequences found");
         if (sequences.size() == 0) {
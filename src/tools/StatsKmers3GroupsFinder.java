@@ -19,8 +19,8 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
-import structures.map.BigLong2BitShortaHashMap;
-import structures.map.MutableLongBitShortaEntry;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.MutableLongBitLongaEntry;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -98,8 +98,7 @@ public class StatsKmers3GroupsFinder extends Tool {
         int totalLength = Alength + Blength + Clength;
 
         File[] all_files = Stream.of(Afiles.get(), Bfiles.get(), Cfiles.get()).flatMap(Stream::of).toArray(File[]::new);
-        //BigLong2BitLongaHashMap allKmers = IOUtils.loadBitLongaKmers(all_files, 0, availableProcessors.get(), logger);
-        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        Long2BitLongaHashMapInterface allKmers = IOUtils.loadBitLongaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
         ChiSquaredDistribution xi = new ChiSquaredDistributionImpl(2, 1e-15D);
@@ -132,10 +131,10 @@ public class StatsKmers3GroupsFinder extends Tool {
         info("Applying chi-squared test...");
         BigLong2ShortHashMap hm_chisq = new BigLong2ShortHashMap(
                 (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        Iterator<MutableLongBitShortaEntry> it_all = allKmers.entryIterator();
+        Iterator<MutableLongBitLongaEntry> it_all = allKmers.entryIterator();
         while (it_all.hasNext()) {
             n++;
-            MutableLongBitShortaEntry entry = it_all.next();
+            MutableLongBitLongaEntry entry = it_all.next();
             long key = entry.getKey();
 
             int n_1_A = allKmers.getCardinality(key, 0, Alength);
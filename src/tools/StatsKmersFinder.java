@@ -1,5 +1,6 @@
 package tools;
 
+import io.AsyncFileOutputStream;
 import io.IOUtils;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ChiSquaredDistribution;
@@ -19,8 +20,8 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
-import structures.map.BigLong2BitShortaHashMap;
-import structures.map.MutableLongBitShortaEntry;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.MutableLongBitLongaEntry;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -94,7 +95,7 @@ public class StatsKmersFinder extends Tool {
         int totalLength = Alength + Blength;
 
         File[] all_files = Stream.of(Afiles.get(), Bfiles.get()).flatMap(Stream::of).toArray(File[]::new);
-        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        Long2BitLongaHashMapInterface allKmers = IOUtils.loadBitLongaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
         ChiSquaredDistribution xi = new ChiSquaredDistributionImpl(1, 1e-15D);
@@ -126,10 +127,10 @@ public class StatsKmersFinder extends Tool {
         info("Applying chi-squared test...");
         BigLong2ShortHashMap hm_chisq = new BigLong2ShortHashMap(
                 (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        Iterator<MutableLongBitShortaEntry> it_all = allKmers.entryIterator();
+        Iterator<MutableLongBitLongaEntry> it_all = allKmers.entryIterator();
         while (it_all.hasNext()) {
             n++;
-            MutableLongBitShortaEntry entry = it_all.next();
+            MutableLongBitLongaEntry entry = it_all.next();
             long key = entry.getKey();
 
             int n_1_A = allKmers.getCardinality(key, 0, Alength);
@@ -180,16 +181,9 @@ public class StatsKmersFinder extends Tool {
 
         int i = 0;
         for (File file : Afiles.get()) {
-            BigLong2ShortHashMap add_hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
-            BigLong2ShortHashMap tmp_hm = tmp.first();
-            Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-                add_hm.put(key, tmp_hm.getWithZero(key));
-            }
-            AkmersHMs.add(add_hm);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, hm_chisq::contains,
+                    availableProcessors.get(), logger);
+            AkmersHMs.add(tmp.first());
             AkmersFreq[i] = tmp.second();
             i++;
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
@@ -197,16 +191,9 @@ public class StatsKmersFinder extends Tool {
 
         i = 0;
         for (File file : Bfiles.get()) {
-            BigLong2ShortHashMap add_hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, availableProcessors.get(), logger);
-            BigLong2ShortHashMap tmp_hm = tmp.first();
-            Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-                add_hm.put(key, tmp_hm.getWithZero(key));
-            }
-            BkmersHMs.add(add_hm);
+            Pair<BigLong2ShortHashMap, Long> tmp = IOUtils.loadKmersFreq(new File[]{file}, 0, hm_chisq::contains,
+                    availableProcessors.get(), logger);
+            BkmersHMs.add(tmp.first());
             BkmersFreq[i] = tmp.second();
             i++;
             debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
@@ -218,10 +205,8 @@ public class StatsKmersFinder extends Tool {
         File fileA = new File(outDir, "filtered_groupA.kmers.bin");
         File fileB = new File(outDir, "filtered_groupB.kmers.bin");
 
-        DataOutputStream streamA = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(fileA), 1 << 24));
-        DataOutputStream streamB = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(fileB), 1 << 24));
+        DataOutputStream streamA = new DataOutputStream(new AsyncFileOutputStream(fileA));
+        DataOutputStream streamB = new DataOutputStream(new AsyncFileOutputStream(fileB));
 
         double meanSumKmers = Stream.of(AkmersFreq, BkmersFreq).flatMapToDouble(Arrays::stream).sum() / totalLength;
         Iterator<MutableLongShortEntry> it = hm_chisq.entryIterator();
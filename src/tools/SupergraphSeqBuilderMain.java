@@ -1,5 +1,6 @@
 package tools;
 
+import io.FrequencyHistogram;
 import io.IOUtils;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.KmerIteratorFactory;
@@ -9,6 +10,7 @@ import ru.ifmo.genetics.structures.map.*;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.pairs.Pair;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
@@ -99,10 +101,11 @@ public class SupergraphSeqBuilderMain extends Tool {
     }
 
     private void addToSupergraph(BigLong2ShortHashMap superHM, File readsFile) throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm =
-                IOUtils.loadReads(new File[]{readsFile}, k.get(), 0, availableProcessors.get(), logger);
+        Pair<BigLong2ShortHashMap, FrequencyHistogram> loaded =
+                IOUtils.loadReadsWithHistogram(new File[]{readsFile}, k.get(), 0, STAT_LEN, availableProcessors.get(), logger);
+        BigLong2ShortHashMap hm = loaded.first();
 
-        int freqThreshold = getThreshold(hm);
+        int freqThreshold = getThreshold(loaded.second());
 
         long uniqueKmers = 0, uniqueAdded = 0, newKmers = 0;
 
@@ -125,23 +128,13 @@ public class SupergraphSeqBuilderMain extends Tool {
                 ", new k-mers added = " + newKmers);
     }
 
-    private int getThreshold(BigLong2ShortHashMap hm) {
+    private int getThreshold(FrequencyHistogram histogram) {
         if (maximalBadFrequency.get() != null) {
             return maximalBadFrequency.get();
         }
 
-        long totalKmers = 0;
-        int[] stat = new int[STAT_LEN];
-        Iterator<MutableLongShortEntry> it = hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            int v = entry.getValue();
-            totalKmers += v;
-            if (v >= stat.length) {
-                v = stat.length - 1;
-            }
-            ++stat[v];
-        }
+        long totalKmers = histogram.totalFrequency();
+        int[] stat = histogram.toIntArray();
 
         if (bottomCutPercent.get() != null) {
             long kmersToCut = totalKmers * bottomCutPercent.get() / 100;
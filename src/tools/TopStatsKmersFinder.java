@@ -1,5 +1,6 @@
 package tools;
 
+import io.AsyncFileOutputStream;
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
@@ -13,8 +14,8 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
-import structures.map.BigLong2BitShortaHashMap;
-import structures.map.MutableLongBitShortaEntry;
+import structures.map.Long2BitLongaHashMapInterface;
+import structures.map.MutableLongBitLongaEntry;
 
 import java.io.*;
 import java.util.Iterator;
@@ -94,7 +95,7 @@ public class TopStatsKmersFinder extends Tool {
         }
 
         int totalLength = Alength + Blength + Clength;
-        BigLong2BitShortaHashMap allKmers = IOUtils.loadBitShortaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        Long2BitLongaHashMapInterface allKmers = IOUtils.loadBitLongaKmers(all_files, maximalBadFrequency.get(), availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
         File outDir = outputDir.get();
@@ -110,10 +111,10 @@ public class TopStatsKmersFinder extends Tool {
         info("Applying chi-squared test...");
         BigLong2LongHashMap hm_chisq = new BigLong2LongHashMap(
                 (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
-        Iterator<MutableLongBitShortaEntry> it_all = allKmers.entryIterator();
+        Iterator<MutableLongBitLongaEntry> it_all = allKmers.entryIterator();
         Double[] pvalues = new Double[(int) allKmers.size()];
         while (it_all.hasNext()) {
-            MutableLongBitShortaEntry entry = it_all.next();
+            MutableLongBitLongaEntry entry = it_all.next();
             long key = entry.getKey();
 
             int n_1_A = allKmers.getCardinality(key, 0, Alength);
@@ -156,11 +157,11 @@ public class TopStatsKmersFinder extends Tool {
 
         File allKmersFile = new File(outDir, "all.kmers.bin");
         File allRanksFile = new File(outDir, "all_chi_squared_ranks.bin");
-        DataOutputStream streamKmers = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(allKmersFile), 1 << 24));
-        DataOutputStream streamRanks = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(allRanksFile), 1 << 24));
+        DataOutputStream streamKmers = new DataOutputStream(new AsyncFileOutputStream(allKmersFile));
+        DataOutputStream streamRanks = new DataOutputStream(new AsyncFileOutputStream(allRanksFile));
 
         File filteredKmersFile = new File(outDir, "top_" + NBest.get().toString() + "_chi_squared_specific.kmers.bin");
-        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filteredKmersFile), 1 << 24));
+        DataOutputStream stream = new DataOutputStream(new AsyncFileOutputStream(filteredKmersFile));
 
         int[] sortedIndices = IntStream.range(0, n)
                 .boxed().sorted((i, j) -> pvalues[j].compareTo(pvalues[i])) // sort in descending order
@@ -1,6 +1,8 @@
 package tools;
 
 import io.IOUtils;
+import io.SortedKmersMerger;
+import io.SortedKmersReader;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -15,7 +17,10 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Iterator;
 
@@ -99,6 +104,11 @@ public class UniqueKmersMultipleSamplesFinder extends Tool {
 
         Timer t = new Timer();
 
+        if (SortedKmersReader.areSorted(inputFiles.get()) && SortedKmersReader.areSorted(filterFiles.get())) {
+            runMerging();
+            return;
+        }
+
         BigLong2ShortHashMap hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 8);
         BigLong2ShortHashMap hm_cnt = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 8);
         for (File file : inputFiles.get()) {
@@ -184,6 +194,101 @@ public class UniqueKmersMultipleSamplesFinder extends Tool {
         }
     }
 
+    /**
+     * Streaming version for sorted k-mers files: input and filter files are merged together,
+     * and all output files are written at once in increasing order of k-mers.
+     */
+    private void runMerging() throws ExecutionFailedException {
+        File[] inputs = inputFiles.get(), filters = filterFiles.get();
+        File[] files = new File[inputs.length + filters.length];
+        System.arraycopy(inputs, 0, files, 0, inputs.length);
+        System.arraycopy(filters, 0, files, inputs.length, filters.length);
+        int b = maximalBadFrequency.get();
+
+        File outDir = outputDir.get();
+        if (!outDir.exists()) {
+            outDir.mkdirs();
+        }
+        File stDir = statsDir.get();
+        if (!stDir.exists()) {
+            stDir.mkdirs();
+        }
+
+        int outputs = maxSamples.get() - minSamples.get() + 1;
+        File[] outFiles = new File[outputs];
+        DataOutputStream[] streams = new DataOutputStream[outputs];
+        long[] c = new long[outputs];
+        long found = 0;
+
+        info("Merging sorted k-mers files...");
+        try {
+            SortedKmersMerger merger = new SortedKmersMerger(files);
+            try {
+                for (int j = 0; j < outputs; j++) {
+                    outFiles[j] = new File(outDir, "filtered_" + (minSamples.get() + j) + ".kmers.bin");
+                    debug("Starting to print k-mers to " + outFiles[j].getPath());
+                    streams[j] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(outFiles[j]), 1 << 20));
+                }
+
+                while (merger.next()) {
+                    short value = 0;
+                    int samples = 0;
+                    boolean filtered = false;
+                    for (int i = 0; i < merger.presentCount; i++) {
+                        int f = merger.present[i];
+                        short freq = (short) merger.values[f];
+                        if (freq <= b) {
+                            continue;
+                        }
+                        if (f < inputs.length) {
+                            value += freq;
+                            samples++;
+                        } else {
+                            filtered = true;
+                        }
+                    }
+                    if (samples == 0) {
+                        continue;
+                    }
+                    found++;
+                    if (filtered || value <= b) {
+                        continue;
+                    }
+                    for (int j = 0; j < outputs && samples > minSamples.get() + j - 1; j++) {
+                        streams[j].writeLong(merger.key);
+                        streams[j].writeShort(value);
+                        c[j]++;
+                    }
+                }
+            } finally {
+                for (DataOutputStream stream : streams) {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                }
+                merger.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't merge k-mers files", e);
+        }
+
+        for (int j = 0; j < outputs; j++) {
+            int i = minSamples.get() + j;
+            info(NumUtils.groupDigits(found) + " k-mers found, "
+                    + NumUtils.groupDigits(c[j]) + " (" + String.format("%.1f", c[j] * 100.0 / found)
+                    + "%) of them is good (present in one dataset and missing in other)");
+            if (c[j] == 0) {
+                info("No good k-mers found. Stop at maxSamples=" + i);
+                for (int l = j + 1; l < outputs; l++) {
+                    outFiles[l].delete();
+                }
+                break;
+            }
+            info("Good k-mers printed to " + outFiles[j].getPath());
+        }
+    }
+
     @Override
     protected void cleanImpl() {
         resultingKmerFilesPr.set(new File[]{new File(outputDir.get(), "filtered_" + minSamples.get() + ".kmers.bin")});
@@ -0,0 +1,92 @@
+package algo;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+
+import java.util.Random;
+import java.util.function.LongConsumer;
+
+import static org.junit.Assert.*;
+
+public class RollingKmersTest {
+    private static final String NUCS = "ACGT";
+
+    private final Random rand = new Random(239);
+
+    private static LongArrayList expectedKmers(String seq, int k) {
+        LongArrayList kmers = new LongArrayList();
+        for (String part : seq.split("[^ACGTacgt]+")) {     // k-mers with N are skipped
+            if (!part.isEmpty()) {
+                for (ShortKmer kmer : ShortKmer.kmersOf(new Dna(part.toUpperCase()), k)) {
+                    kmers.add(kmer.toLong());
+                }
+            }
+        }
+        return kmers;
+    }
+
+    private static LongConsumer collector(final LongArrayList list) {
+        return new LongConsumer() {
+            @Override
+            public void accept(long kmer) {
+                list.add(kmer);
+            }
+        };
+    }
+
+    private String randomSeq(int len, double nProbability) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append(rand.nextDouble() < nProbability ? 'N' : NUCS.charAt(rand.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testDna() {
+        for (int test = 0; test < 1000; test++) {
+            int k = rand.nextInt(31) + 1;
+            String seq = randomSeq(rand.nextInt(200), 0);
+            LongArrayList actual = new LongArrayList();
+            RollingKmers.forEachKmer(new Dna(seq), k, collector(actual));
+            assertEquals("k = " + k + ", seq = " + seq, expectedKmers(seq, k), actual);
+        }
+    }
+
+    @Test
+    public void testBytes() {
+        for (int test = 0; test < 1000; test++) {
+            int k = rand.nextInt(31) + 1;
+            String seq = randomSeq(rand.nextInt(200), 0);
+            if (test % 2 == 0) {
+                seq = seq.toLowerCase();
+            }
+            LongArrayList actual = new LongArrayList();
+            RollingKmers.forEachKmer(seq.getBytes(), 0, seq.length(), k, collector(actual));
+            assertEquals("k = " + k + ", seq = " + seq, expectedKmers(seq, k), actual);
+        }
+    }
+
+    @Test
+    public void testBytesWithN() {
+        for (int test = 0; test < 1000; test++) {
+            int k = rand.nextInt(31) + 1;
+            String seq = randomSeq(rand.nextInt(300), (test % 3 + 1) * 0.01);
+            String padded = "NN" + seq + "ACG";
+            LongArrayList actual = new LongArrayList();
+            RollingKmers.forEachKmer(padded.getBytes(), 2, 2 + seq.length(), k, collector(actual));
+            assertEquals("k = " + k + ", seq = " + seq, expectedKmers(seq, k), actual);
+        }
+    }
+
+    @Test
+    public void testCode() {
+        assertEquals(0, RollingKmers.code((byte) 'A'));
+        assertEquals(1, RollingKmers.code((byte) 'g'));
+        assertEquals(2, RollingKmers.code((byte) 'C'));
+        assertEquals(3, RollingKmers.code((byte) 't'));
+        assertEquals(-1, RollingKmers.code((byte) 'N'));
+    }
+}
@@ -0,0 +1,167 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class BlockKmersFormatTest {
+    private static final Logger logger = Logger.getLogger("BlockKmersFormatTest");
+
+    private Random rand;
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = File.createTempFile("kmers", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void after() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private BigLong2ShortHashMap randomKmers(int n) {
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(4, 16);
+        hm.put(0, (short) 5);       // FREE key of small maps
+        while (hm.size() < n) {
+            hm.put(rand.nextLong(), (short) (rand.nextInt(1000) + 1));
+        }
+        return hm;
+    }
+
+    private File print(BigLong2ShortHashMap hm, IOUtils.KmersFileFormat format, String name) throws IOException {
+        File file = new File(dir, name + ".kmers.bin");
+        IOUtils.printKmers(hm, 0, file, new File(dir, name + ".stat.txt"), format, 31);
+        return file;
+    }
+
+    private static void assertSameKmers(BigLong2ShortHashMap expected, BigLong2ShortHashMap actual) {
+        assertEquals(expected.size(), actual.size());
+        Iterator<MutableLongShortEntry> it = expected.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            assertEquals(entry.getValue(), actual.getWithZero(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testBlockRoundTrip() throws Exception {
+        int n = 2 * BlockKmersFormat.BLOCK_RECORDS + 1000;      // more than one block
+        BigLong2ShortHashMap hm = randomKmers(n);
+        File file = print(hm, IOUtils.KmersFileFormat.BLOCK, "block");
+
+        assertTrue(BlockKmersFormat.isBlockFormat(file));
+        BlockKmersFormat.Header header = BlockKmersFormat.readHeader(file);
+        assertEquals(BlockKmersFormat.VERSION, header.version);
+        assertEquals(31, header.k);
+        assertEquals(n, header.recordsCount);
+        assertEquals(3, header.blocksCount());
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            long key = it.next().getKey();
+            minKey = Math.min(minKey, key);
+            maxKey = Math.max(maxKey, key);
+        }
+        assertEquals(minKey, header.minKey);
+        assertEquals(maxKey, header.maxKey);
+
+        for (IOUtils.KmersLoadingMode loading : IOUtils.KmersLoadingMode.values()) {
+            BigLong2ShortHashMap loaded = IOUtils.loadKmers(new File[]{file}, 0, loading,
+                    IOUtils.MapMemoryMode.HEAP, 2, logger);
+            assertSameKmers(hm, loaded);
+            assertEquals(5, loaded.getWithZero(0));
+        }
+    }
+
+    @Test
+    public void testPlainFilesLoading() throws Exception {
+        BigLong2ShortHashMap hm = randomKmers(100000);
+        File file = print(hm, IOUtils.KmersFileFormat.PLAIN, "plain");
+
+        assertFalse(BlockKmersFormat.isBlockFormat(file));
+        assertEquals(hm.size() * 10, file.length());
+        for (IOUtils.KmersLoadingMode loading : IOUtils.KmersLoadingMode.values()) {
+            assertSameKmers(hm, IOUtils.loadKmers(new File[]{file}, 0, loading, IOUtils.MapMemoryMode.HEAP, 2, logger));
+        }
+
+        // both formats at once, frequencies are summed
+        File block = print(hm, IOUtils.KmersFileFormat.BLOCK, "block");
+        BigLong2ShortHashMap loaded = IOUtils.loadKmers(new File[]{file, block}, 0, 2, logger);
+        assertEquals(hm.size(), loaded.size());
+        assertEquals(10, loaded.getWithZero(0));
+    }
+
+    @Test
+    public void testMerger() throws Exception {
+        int filesCount = 3;
+        File[] files = new File[filesCount];
+        TreeMap<Long, long[]> expected = new TreeMap<Long, long[]>();    // signed order, as in files
+        for (int f = 0; f < filesCount; f++) {
+            BigLong2ShortHashMap hm = new BigLong2ShortHashMap(4, 16);
+            for (int i = 0; i < 200000; i++) {
+                long key = rand.nextInt(500000) - 250000L;      // common and negative keys
+                if (i % 1000 == 0) {
+                    key = rand.nextLong();
+                }
+                hm.put(key, (short) (rand.nextInt(1000) + 1));
+            }
+            Iterator<MutableLongShortEntry> it = hm.entryIterator();
+            while (it.hasNext()) {
+                MutableLongShortEntry entry = it.next();
+                long[] values = expected.get(entry.getKey());
+                if (values == null) {
+                    values = new long[filesCount];
+                    expected.put(entry.getKey(), values);
+                }
+                values[f] = entry.getValue();
+            }
+            files[f] = print(hm, IOUtils.KmersFileFormat.BLOCK, "s" + f);
+        }
+        assertTrue(SortedKmersReader.areSorted(files));
+
+        SortedKmersMerger merger = new SortedKmersMerger(files);
+        try {
+            assertEquals(filesCount, merger.filesCount());
+            Iterator<Map.Entry<Long, long[]>> it = expected.entrySet().iterator();
+            while (merger.next()) {
+                assertTrue(it.hasNext());
+                Map.Entry<Long, long[]> entry = it.next();
+                assertEquals((long) entry.getKey(), merger.key);
+                assertArrayEquals(entry.getValue(), merger.values);
+                int present = 0;
+                for (long value : entry.getValue()) {
+                    present += (value != 0) ? 1 : 0;
+                }
+                assertEquals(present, merger.presentCount);
+                for (int i = 0; i < merger.presentCount; i++) {
+                    assertTrue(entry.getValue()[merger.present[i]] != 0);
+                }
+            }
+            assertFalse(it.hasNext());
+        } finally {
+            merger.close();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package io;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.dna.Dna;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ReadsChunksTest {
+    private static final Logger logger = Logger.getLogger("ReadsChunksTest");
+
+    private static final String NUCS = "ACGT";
+    private static final int[] CHUNK_SIZES = {7, 64, 1000};     // records straddle chunk boundaries
+
+    private Random rand;
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        dir = File.createTempFile("reads", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void after() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+
+    private String randomSeq() {
+        int len = rand.nextInt(150) + 1;
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append(rand.nextInt(200) == 0 ? 'N' : NUCS.charAt(rand.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sanger qualities, some lines start with '@', some reads have zero quality ('!').
+     */
+    private String randomQuality(int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append(rand.nextInt(300) == 0 ? '!' : (char) ('"' + rand.nextInt(40)));
+        }
+        if (rand.nextInt(5) == 0) {
+            sb.setCharAt(0, '@');
+        }
+        return sb.toString();
+    }
+
+    private byte[] fastq(int reads, String eol) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < reads; i++) {
+            String seq = randomSeq();
+            sb.append("@read").append(i).append(eol).append(seq).append(eol);
+            sb.append(rand.nextBoolean() ? "+" : "+read" + i).append(eol);
+            sb.append(randomQuality(seq.length())).append(eol);
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] fasta(int reads, String eol) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < reads; i++) {
+            if (rand.nextInt(10) == 0) {
+                sb.append(";comment ").append(i).append(eol);
+            }
+            sb.append(">read").append(i).append(eol);
+            String seq = randomSeq();
+            if (rand.nextInt(4) == 0) {
+                seq = seq.toLowerCase();
+            }
+            int width = rand.nextInt(60) + 10;      // multiline sequences
+            for (int j = 0; j < seq.length(); j += width) {
+                sb.append(seq, j, Math.min(seq.length(), j + width)).append(eol);
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private File writeGzip(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    /**
+     * Writes data as BGZF blocks of random small sizes, followed by the empty EOF block.
+     */
+    private File writeBgzf(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            int off = 0;
+            while (off < data.length) {
+                int n = Math.min(data.length - off, rand.nextInt(300) + 1);
+                out.write(bgzfBlock(data, off, n));
+                off += n;
+            }
+            out.write(bgzfBlock(data, 0, 0));
+        }
+        return file;
+    }
+
+    private static byte[] bgzfBlock(byte[] data, int off, int n) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, off, n);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        while (!deflater.finished()) {
+            deflated.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, off, n);
+
+        int blockSize = 18 + deflated.size() + 8;
+        ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize);
+        block.write(new byte[]{31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 'B', 'C', 2, 0}, 0, 16);
+        writeLE(block, blockSize - 1, 2);
+        block.write(deflated.toByteArray(), 0, deflated.size());
+        writeLE(block, (int) crc.getValue(), 4);
+        writeLE(block, n, 4);
+        return block.toByteArray();
+    }
+
+    private static void writeLE(ByteArrayOutputStream out, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((value >>> (8 * i)) & 0xFF);
+        }
+    }
+
+
+    private static List<String> expectedReads(File file) throws IOException {
+        List<String> reads = new ArrayList<String>();
+        for (Dna dna : ReadersUtils.readDnaLazy(file)) {
+            reads.add(dna.toString());
+        }
+        return reads;
+    }
+
+    /**
+     * Reads the file by chunks of the given size on the current thread, so reads come in file order.
+     */
+    private static List<String> readByChunks(File file, int chunkSize) throws IOException {
+        final List<String> reads = new ArrayList<String>();
+        ReadsWorker worker = new ReadsWorker() {
+            @Override
+            public void process(byte[] seq, int from, int to) {
+                reads.add(new String(seq, from, to - from).toUpperCase());
+            }
+        };
+        ReadsDispatcher dispatcher = new ReadsDispatcher(file, chunkSize, 2, null);
+        try {
+            assertTrue(dispatcher.isChunked());
+            worker.setDispatcher(dispatcher);
+            worker.run();
+        } finally {
+            dispatcher.close();
+        }
+        assertEquals(reads.size(), dispatcher.reads);
+        return reads;
+    }
+
+    private static void assertSameReads(File file) throws IOException {
+        List<String> expected = expectedReads(file);
+        for (int chunkSize : CHUNK_SIZES) {
+            assertEquals(file.getName() + ", chunk size " + chunkSize, expected, readByChunks(file, chunkSize));
+        }
+    }
+
+
+    @Test
+    public void testFastq() throws Exception {
+        assertSameReads(write("reads.fastq", fastq(2000, "\n")));
+        assertSameReads(write("crlf.fastq", fastq(500, "\r\n")));
+    }
+
+    @Test
+    public void testFasta() throws Exception {
+        assertSameReads(write("reads.fasta", fasta(2000, "\n")));
+        assertSameReads(write("crlf.fasta", fasta(500, "\r\n")));
+    }
+
+    @Test
+    public void testSkippedReads() throws Exception {
+        String data = "@r1\nACGT\n+\nIIII\n" +
+                "@r2\nACNT\n+\nIIII\n" +        // N
+                "@r3\nACGT\n+\n@I!I\n" +        // zero quality
+                "@r4\nGGCC\n+r4\n@III\n";
+        File file = write("skipped.fastq", data.getBytes());
+        List<String> expected = new ArrayList<String>();
+        expected.add("ACGT");
+        expected.add("GGCC");
+        assertEquals(expected, expectedReads(file));
+        for (int chunkSize : CHUNK_SIZES) {
+            assertEquals(expected, readByChunks(file, chunkSize));
+        }
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        byte[] fastq = fastq(2000, "\n");
+        byte[] fasta = fasta(2000, "\n");
+        File[] gzipped = {writeGzip("plain.fastq.gz", fastq), writeGzip("plain.fasta.gz", fasta)};
+        File[] bgzipped = {writeBgzf("bgzf.fastq.gz", fastq), writeBgzf("bgzf.fasta.gz", fasta)};
+        for (File file : gzipped) {
+            assertFalse(GzipChunkSource.isBgzf(file));
+            assertSameReads(file);
+        }
+        for (File file : bgzipped) {
+            assertTrue(GzipChunkSource.isBgzf(file));
+            assertSameReads(file);
+        }
+    }
+
+    @Test
+    public void testLastRecordStart() {
+        String fastq = "@r1\nACGT\n+\n@III\n@r2\nAC";
+        assertEquals(fastq.indexOf("@r2"), lastRecordStart(fastq + "GT\n+\n", true));
+        // '+' line of r2 isn't there yet, and quality line of r1 is not a record start
+        assertEquals(-1, lastRecordStart("@r1\nACGT\n+\n@III\n@r2\nACGT\n", true));
+        assertEquals(-1, lastRecordStart("@r1\nACGT\n+\n@II", true));
+
+        String fasta = ">r1\nACGT\nAC\n;comment\n>r2\nAC";
+        assertEquals(fasta.indexOf(";comment"), lastRecordStart(fasta, false));
+        assertEquals(-1, lastRecordStart(">r1\nACGT\nACGT", false));
+    }
+
+    private static int lastRecordStart(String data, boolean fastq) {
+        byte[] bytes = data.getBytes();
+        return ReadsChunkParser.lastRecordStart(bytes, bytes.length, fastq);
+    }
+
+
+    @Test
+    public void testLoadReads() throws Exception {
+        File[] files = {
+                write("reads.fastq", fastq(1000, "\n")),
+                write("reads.fasta", fasta(1000, "\n")),
+                writeGzip("plain.fastq.gz", fastq(1000, "\n")),
+                writeBgzf("bgzf.fasta.gz", fasta(1000, "\n"))
+        };
+        int k = 11;
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (File file : files) {
+            for (Dna dna : ReadersUtils.readDnaLazy(file)) {
+                for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
+                    Integer count = expected.get(kmer.toLong());
+                    expected.put(kmer.toLong(), (count == null) ? 1 : count + 1);
+                }
+            }
+        }
+
+        BigLong2ShortHashMap hm = IOUtils.loadReads(files, k, 0, 2, logger);
+        assertEquals(expected.size(), hm.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), hm.getWithZero(entry.getKey()));
+        }
+    }
+}
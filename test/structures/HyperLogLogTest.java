@@ -0,0 +1,59 @@
+package structures;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HyperLogLogTest {
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue("expected ~" + expected + ", got " + actual, Math.abs(actual - expected) <= expected * 0.03 + 2);
+    }
+
+    @Test
+    public void testCardinality() {
+        Random rand = new Random(239);
+        for (int n : new int[]{0, 10, 1000, 100000, 3000000}) {
+            HyperLogLog hll = new HyperLogLog();
+            for (int i = 0; i < n; i++) {
+                long key = rand.nextLong() >>> 2;
+                hll.add(key);
+                hll.add(key);
+            }
+            assertClose(n, hll.cardinality());
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        HyperLogLog a = new HyperLogLog(), b = new HyperLogLog();
+        for (long i = 0; i < 200000; i++) {
+            a.add(i);
+            b.add(i + 100000);
+        }
+        a.merge(b);
+        assertClose(300000, a.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentPrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        HyperLogLog hll = new HyperLogLog(12);
+        for (long i = 0; i < 50000; i++) {
+            hll.add(i * 7);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hll.write(new DataOutputStream(bytes));
+        HyperLogLog read = HyperLogLog.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(12, read.logRegisters());
+        assertEquals(hll.cardinality(), read.cardinality());
+    }
+}
@@ -0,0 +1,107 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Long2BitLongaPackedHashMapTest {
+    private Random rand;
+    private Long2BitLongaPackedHashMap hm;
+    private Long2BitLongaHashMap expected;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new Long2BitLongaPackedHashMap(4, 0.75f, 130);     // small capacity to check rehashing
+        expected = new Long2BitLongaHashMap(20, 0.75f, 130);
+    }
+
+    @Test
+    public void testSet() {
+        long[] prev = hm.set(12, 62);
+        long[] cur = new long[3];
+        cur[0] = 1L<<62;
+        assertNull(prev);
+        assertArrayEquals(cur, hm.get(12));
+
+        prev = hm.set(12, 64);
+        assertArrayEquals(cur, prev);
+        cur[1] |= 1L<<0;
+        assertArrayEquals(cur, hm.get(12));
+
+        hm.reset();
+        assertNull(hm.get(12));
+        assertArrayEquals(new long[1], hm.getWithEmpty(12));
+    }
+
+    @Test
+    public void testSameAsLong2BitLongaHashMap() {
+        int n_tests = 10000;
+        long[] keys = new long[n_tests];
+        for (int i = 0; i < n_tests; i++) {
+            keys[i] = (i == 0) ? 0 : rand.nextLong();      // FREE key too
+            int n_sets = rand.nextInt(100) + 1;
+            for (int j = 0; j < n_sets; j++) {
+                int val = rand.nextInt(130);
+                assertArrayEquals(expected.set(keys[i], val), hm.set(keys[i], val));
+            }
+        }
+        assertEquals(expected.size(), hm.size());
+
+        for (int i = 0; i < n_tests; i++) {
+            assertArrayEquals(expected.get(keys[i]), hm.get(keys[i]));
+            assertEquals(expected.getCardinality(keys[i]), hm.getCardinality(keys[i]));
+            for (int j = 0; j < 100; j++) {
+                int x = rand.nextInt(131);
+                int y = rand.nextInt(131);
+                int from = Math.min(x, y);
+                int to = Math.max(x, y);
+                assertEquals(expected.getCardinality(keys[i], from, to), hm.getCardinality(keys[i], from, to));
+                assertEquals(expected.get(keys[i], x % 130), hm.get(keys[i], x % 130));
+            }
+        }
+
+        int entries = 0;
+        Iterator<MutableLongBitLongaEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitLongaEntry entry = it.next();
+            assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+
+    @Test
+    public void testConcurrentSetBit() throws InterruptedException {
+        final long[] keys = new long[20000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rand.nextLong();
+        }
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < keys.length; i++) {     // every thread sets its bits of all keys
+                        hm.setBit(keys[i], thread);
+                        hm.setBit(keys[i], 64 + thread);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(keys.length, hm.size());
+        for (long key : keys) {
+            assertEquals(2 * threads.length, hm.getCardinality(key));
+        }
+    }
+}
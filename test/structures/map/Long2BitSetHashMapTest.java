@@ -0,0 +1,82 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Long2BitSetHashMapTest {
+    private Random rand;
+    private Long2BitSetHashMap hm;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new Long2BitSetHashMap(4, 0.75f, 130);     // small capacity to check rehashing
+    }
+
+    @Test
+    public void testSet() {
+        assertNull(hm.set(12, 62));
+        BitSet cur = new BitSet();
+        cur.set(62);
+        assertEquals(cur, hm.get(12));
+
+        assertEquals(cur, hm.set(12, 130));     // beyond the size of the value
+        cur.set(130);
+        assertEquals(cur, hm.get(12));
+        assertTrue(hm.get(12, 130));
+        assertFalse(hm.get(12, 129));
+
+        hm.reset();
+        assertNull(hm.get(12));
+        assertEquals(new BitSet(), hm.getWithEmpty(12));
+    }
+
+    @Test
+    public void testSameAsBitSets() throws IOException {
+        Map<Long, BitSet> expected = new HashMap<Long, BitSet>();
+        for (int i = 0; i < 10000; i++) {
+            long key = (i == 0) ? 0 : rand.nextLong();      // FREE key too
+            expected.put(key, new BitSet());
+            int n_sets = rand.nextInt(20) + 1;
+            for (int j = 0; j < n_sets; j++) {
+                int bit = rand.nextInt(j < 10 ? 64 : 200);
+                hm.set(key, bit);
+                expected.get(key).set(bit);
+            }
+        }
+        assertEquals(expected.size(), hm.size());
+
+        for (Map.Entry<Long, BitSet> e : expected.entrySet()) {
+            assertEquals(e.getValue(), hm.get(e.getKey()));
+            for (int bit = 0; bit < 200; bit++) {
+                assertEquals(e.getValue().get(bit), hm.get(e.getKey(), bit));
+            }
+        }
+
+        int entries = 0;
+        Iterator<MutableLongBitSetEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitSetEntry entry = it.next();
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+        Long2BitSetHashMap read = new Long2BitSetHashMap(2);
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (Map.Entry<Long, BitSet> e : expected.entrySet()) {
+            assertEquals(e.getValue(), read.get(e.getKey()));
+        }
+    }
+}
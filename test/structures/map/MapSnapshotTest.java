@@ -0,0 +1,120 @@
+package structures.map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MapSnapshotTest {
+    private Random rand;
+    private File file;
+
+    @Before
+    public void before() throws IOException {
+        rand = new Random(239);
+        file = File.createTempFile("map", ".snapshot");
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void testShortMap() throws IOException {
+        BigLong2ShortHashMap expected = new BigLong2ShortHashMap(3, 4);     // small capacity to check rehashing
+        for (int i = 0; i < 10000; i++) {
+            long key = (i == 0) ? 0 : rand.nextLong();      // FREE key too
+            expected.put(key, (short) (rand.nextInt(1000) + 1));
+        }
+        MapSnapshot.write(expected, file, 1, 12345);
+
+        MapSnapshot.Header header = MapSnapshot.readHeader(file);
+        assertEquals(MapSnapshot.Type.SHORT, header.type);
+        assertEquals(1, header.freqThreshold);
+        assertEquals(12345, header.freqSum);
+        assertTrue(MapSnapshot.isSnapshot(file));
+
+        OffHeapBigLong2ShortHashMap hm = MapSnapshot.openShort(file);
+        assertEquals(expected.size(), hm.size());
+        int entries = 0;
+        Iterator<MutableLongShortEntry> it = expected.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            assertEquals(entry.getValue(), hm.get(entry.getKey()));
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+        assertEquals(-1, hm.get(rand.nextLong()));
+
+        // copy-on-write mapping, so the map can be changed and enlarged, but the file stays the same
+        for (int i = 0; i < 10000; i++) {
+            long key = rand.nextLong();
+            hm.put(key, (short) 7);
+            assertEquals(7, hm.get(key));
+        }
+        hm.free();
+
+        hm = MapSnapshot.openShort(file);
+        assertEquals(expected.size(), hm.size());
+        hm.free();
+    }
+
+    @Test
+    public void testBitShortaMap() throws IOException {
+        BigLong2BitShortaHashMap expected = new BigLong2BitShortaHashMap(3, 4, false, 40);
+        long[] keys = new long[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (i == 0) ? 0 : rand.nextLong();
+            for (int j = rand.nextInt(10); j >= 0; j--) {
+                expected.setBit(keys[i], rand.nextInt(40));
+            }
+        }
+        MapSnapshot.write(expected, file, 2, -1);
+
+        OffHeapBigLong2BitShortaHashMap hm = MapSnapshot.openBitShorta(file);
+        assertEquals(expected.size(), hm.size());
+        for (long key : keys) {
+            assertArrayEquals(expected.get(key), hm.get(key));
+            assertEquals(expected.getCardinality(key), hm.getCardinality(key));
+        }
+        hm.setBit(keys[1], 39);
+        assertTrue(hm.get(keys[1], 39));
+        hm.free();
+    }
+
+    @Test
+    public void testBitLongaMap() throws IOException {
+        BigLong2BitLongaPackedHashMap expected = new BigLong2BitLongaPackedHashMap(3, 4, false, 130);
+        long[] keys = new long[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (i == 0) ? 0 : rand.nextLong();
+            for (int j = rand.nextInt(10); j >= 0; j--) {
+                expected.setBit(keys[i], rand.nextInt(130));
+            }
+        }
+        MapSnapshot.write(expected, file, 2, -1);
+
+        OffHeapBigLong2BitLongaHashMap hm = MapSnapshot.openBitLonga(file);
+        assertEquals(expected.size(), hm.size());
+        for (long key : keys) {
+            assertArrayEquals(expected.get(key), hm.get(key));
+        }
+        hm.free();
+
+        try {
+            MapSnapshot.openShort(file);
+            fail("Map of other type is opened");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLong2BitLongaHashMapTest {
+    private Random rand;
+    private OffHeapLong2BitLongaHashMap hm;
+    private Long2BitLongaHashMap expected;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new OffHeapLong2BitLongaHashMap(4, 0.75f, 130);     // small capacity to check rehashing
+        expected = new Long2BitLongaHashMap(20, 0.75f, 130);
+    }
+
+    @Test
+    public void testSameAsLong2BitLongaHashMap() {
+        int n_tests = 10000;
+        long[] keys = new long[n_tests];
+        for (int i = 0; i < n_tests; i++) {
+            keys[i] = (i == 0) ? 0 : rand.nextLong();      // FREE key too
+            int n_sets = rand.nextInt(100) + 1;
+            for (int j = 0; j < n_sets; j++) {
+                int val = rand.nextInt(130);
+                assertArrayEquals(expected.set(keys[i], val), hm.set(keys[i], val));
+            }
+        }
+        assertEquals(expected.size(), hm.size());
+
+        for (int i = 0; i < n_tests; i++) {
+            assertArrayEquals(expected.get(keys[i]), hm.get(keys[i]));
+            assertEquals(expected.getCardinality(keys[i]), hm.getCardinality(keys[i]));
+            for (int j = 0; j < 100; j++) {
+                int x = rand.nextInt(131);
+                int y = rand.nextInt(131);
+                int from = Math.min(x, y);
+                int to = Math.max(x, y);
+                assertEquals(expected.getCardinality(keys[i], from, to), hm.getCardinality(keys[i], from, to));
+                assertEquals(expected.get(keys[i], x % 130), hm.get(keys[i], x % 130));
+            }
+        }
+
+        int entries = 0;
+        Iterator<MutableLongBitLongaEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongBitLongaEntry entry = it.next();
+            assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+
+        hm.free();
+        assertEquals(0, hm.size());
+        assertNull(hm.get(keys[1]));
+    }
+}
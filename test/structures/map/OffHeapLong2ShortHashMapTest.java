@@ -0,0 +1,94 @@
+package structures.map;
+
+import org.junit.Before;
+import org.junit.Test;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapLong2ShortHashMapTest {
+    private Random rand;
+    private OffHeapLong2ShortHashMap hm;
+    private Long2ShortHashMap expected;
+
+    @Before
+    public void before() {
+        rand = new Random(239);
+        hm = new OffHeapLong2ShortHashMap(4, 0.75f);     // small capacity to check rehashing
+        expected = new Long2ShortHashMap(20, 0.75f);
+    }
+
+    @Test
+    public void testSameAsLong2ShortHashMap() throws IOException {
+        int n_tests = 10000;
+        long[] keys = new long[n_tests];
+        for (int i = 0; i < n_tests; i++) {
+            keys[i] = (i == 0) ? 0 : rand.nextLong();      // FREE key too
+            if (rand.nextBoolean()) {
+                short value = (short) rand.nextInt(Short.MAX_VALUE);
+                assertEquals(expected.put(keys[i], value), hm.put(keys[i], value));
+            }
+            short inc = (short) rand.nextInt(Short.MAX_VALUE);
+            assertEquals(expected.addAndBound(keys[i], inc), hm.addAndBound(keys[i], inc));
+        }
+        assertEquals(expected.size(), hm.size());
+
+        for (int i = 0; i < n_tests; i++) {
+            assertEquals(expected.get(keys[i]), hm.get(keys[i]));
+            assertTrue(hm.contains(keys[i]));
+            assertEquals(-1, hm.get(rand.nextLong()));
+        }
+
+        int entries = 0;
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hm.write(new DataOutputStream(bytes));
+        Long2ShortHashMap read = new Long2ShortHashMap();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (long key : keys) {
+            assertEquals(expected.get(key), read.get(key));
+        }
+
+        hm.free();
+        assertEquals(0, hm.size());
+        assertEquals(-1, hm.get(keys[1]));
+    }
+
+    @Test
+    public void testBigMap() {
+        OffHeapBigLong2ShortHashMap big = new OffHeapBigLong2ShortHashMap(4, 4);
+        BigLong2ShortHashMap expectedBig = new BigLong2ShortHashMap(4, 4);
+        for (int i = 0; i < 10000; i++) {
+            long key = rand.nextInt(5000);
+            assertEquals(expectedBig.addAndBound(key, (short) 1), big.addAndBound(key, (short) 1));
+        }
+        assertEquals(expectedBig.size(), big.size());
+
+        big.prepare();
+        for (long pos = 0; pos <= big.maxPosition(); pos++) {
+            if (big.containsAt(pos)) {
+                assertEquals(expectedBig.get(big.keyAt(pos)), big.valueAt(pos));
+            }
+        }
+
+        big.free();
+        assertEquals(0, big.size());
+    }
+}